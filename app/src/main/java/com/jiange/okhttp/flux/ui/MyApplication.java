@@ -5,6 +5,7 @@ package com.jiange.okhttp.flux.ui;
 
 import android.app.Application;
 
+import com.jiange.okhttp.okhttp.CacheRule;
 import com.jiange.okhttp.okhttp.OKHttpConfig;
 import com.jiange.okhttp.okhttp.OKHttpManager;
 import com.jiange.okhttp.volley.request.BaseResponse;
@@ -32,7 +33,9 @@ public class MyApplication extends Application {
 
         OKHttpConfig OKHttpConfig = new OKHttpConfig.Builder().setBaseResponseClass(
             com.jiange.okhttp.okhttp.BaseResponse.class).setConnectTimeout(10).setReadTimeout(10).setWriteTimeout(10)
-            .setCache(new Cache(cacheDir, 10 * 1024 * 1024)).build();
+            .setCache(new Cache(cacheDir, 10 * 1024 * 1024))
+            .addCacheRule(new CacheRule.Builder().setMaxAge(10).setStaleIfError(3600).setOfflineFallback(true).build())
+            .build();
         OKHttpManager.init(this, OKHttpConfig);
 
     }
@@ -3,7 +3,7 @@
  */
 package com.jiange.okhttp.okhttp;
 
-import com.google.gson.Gson;
+import cn.ieclipse.af.volley.TypeAdapterRegistry;
 
 /**
  * 类/接口描述
@@ -53,7 +53,7 @@ public class BaseResponse implements OKBaseResponse {
         if (data instanceof String) {
             return (String) data;
         }
-        return new Gson().toJson(data);
+        return TypeAdapterRegistry.toJson(data);
     }
 
     @Override
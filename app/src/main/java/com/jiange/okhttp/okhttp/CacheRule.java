@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 20015 MaiNaEr All rights reserved
+ */
+package com.jiange.okhttp.okhttp;
+
+import java.util.regex.Pattern;
+
+import cn.ieclipse.af.volley.IUrl;
+
+/**
+ * 接口缓存规则, 通过{@link OKHttpConfig.Builder#addCacheRule(CacheRule)}配置,
+ * 按添加顺序匹配url正则或{@link IUrl}类型, 第一个匹配的规则生效
+ * <ul>
+ * <li>maxAge: 覆盖响应的Cache-Control, 缓存的有效时间</li>
+ * <li>staleIfError: 网络错误或5xx时, 使用过期不超过该时间的缓存</li>
+ * <li>offlineFallback: 无网络时直接使用缓存(only-if-cached), 不访问网络</li>
+ * <li>noStore: 不缓存</li>
+ * </ul>
+ *
+ * @author wangjian
+ */
+public final class CacheRule {
+
+    private final Pattern mPattern;
+    private final Class<? extends IUrl> mUrlType;
+    private final int mMaxAge;
+    private final int mStaleIfError;
+    private final boolean mOfflineFallback;
+    private final boolean mNoStore;
+
+    private CacheRule(Builder builder) {
+        this.mPattern = builder.pattern;
+        this.mUrlType = builder.urlType;
+        this.mMaxAge = builder.maxAge;
+        this.mStaleIfError = builder.staleIfError;
+        this.mOfflineFallback = builder.offlineFallback;
+        this.mNoStore = builder.noStore;
+    }
+
+    /**
+     * 是否匹配请求url
+     *
+     * @param url 请求url
+     * @return true 匹配
+     */
+    public boolean matches(IUrl url) {
+        if (mUrlType != null && !mUrlType.isInstance(url)) {
+            return false;
+        }
+        return mPattern == null || mPattern.matcher(url.getUrl()).find();
+    }
+
+    /**
+     * @return 缓存有效时间(秒), 0表示使用服务器的响应头
+     */
+    public int getMaxAge() {
+        return mMaxAge;
+    }
+
+    /**
+     * @return 出错时可使用的过期缓存时间(秒), 0表示不使用
+     */
+    public int getStaleIfError() {
+        return mStaleIfError;
+    }
+
+    public boolean isOfflineFallback() {
+        return mOfflineFallback;
+    }
+
+    public boolean isNoStore() {
+        return mNoStore;
+    }
+
+    public static class Builder {
+        private Pattern pattern;
+        private Class<? extends IUrl> urlType;
+        private int maxAge;
+        private int staleIfError;
+        private boolean offlineFallback;
+        private boolean noStore;
+
+        /**
+         * @param regex url正则, 部分匹配即可, 如"/config/"
+         */
+        public Builder setUrlPattern(String regex) {
+            this.pattern = regex != null ? Pattern.compile(regex) : null;
+            return this;
+        }
+
+        public Builder setUrlType(Class<? extends IUrl> urlType) {
+            this.urlType = urlType;
+            return this;
+        }
+
+        public Builder setMaxAge(int seconds) {
+            this.maxAge = seconds;
+            return this;
+        }
+
+        public Builder setStaleIfError(int seconds) {
+            this.staleIfError = seconds;
+            return this;
+        }
+
+        public Builder setOfflineFallback(boolean offlineFallback) {
+            this.offlineFallback = offlineFallback;
+            return this;
+        }
+
+        public Builder setNoStore(boolean noStore) {
+            this.noStore = noStore;
+            return this;
+        }
+
+        public CacheRule build() {
+            return new CacheRule(this);
+        }
+    }
+}
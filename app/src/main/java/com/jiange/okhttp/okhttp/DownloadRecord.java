@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 20015 MaiNaEr All rights reserved
+ */
+package com.jiange.okhttp.okhttp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * 断点续传记录, 与下载文件同目录保存为 <code>文件名.record</code>,
+ * 已下载的数据保存在 <code>文件名.part</code>, 已下载长度即part文件长度
+ *
+ * @author wangjian
+ */
+public class DownloadRecord {
+
+    private static final String RECORD_SUFFIX = ".record";
+    private static final String PART_SUFFIX = ".part";
+
+    private static final String KEY_URL = "url";
+    private static final String KEY_ETAG = "etag";
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+    private static final String KEY_LENGTH = "length";
+
+    private String url;
+    private String etag;
+    private String lastModified;
+    /**
+     * 文件总长度, -1表示未知
+     */
+    private long length = -1;
+
+    public DownloadRecord(String url, String etag, String lastModified, long length) {
+        this.url = url;
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.length = length;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * 获取If-Range请求头的值, 优先使用ETag
+     *
+     * @return ETag或Last-Modified, 都没有时返回null(不能续传)
+     */
+    public String getValidator() {
+        return etag != null ? etag : lastModified;
+    }
+
+    /**
+     * 是否可以续传到指定的url
+     *
+     * @param url 下载地址
+     * @return true 可以续传
+     */
+    public boolean canResume(String url) {
+        return this.url != null && this.url.equals(url) && getValidator() != null;
+    }
+
+    public static File getPartFile(File file) {
+        return new File(file.getPath() + PART_SUFFIX);
+    }
+
+    public static File getRecordFile(File file) {
+        return new File(file.getPath() + RECORD_SUFFIX);
+    }
+
+    /**
+     * 读取下载文件的续传记录
+     *
+     * @param file 下载的目标文件
+     * @return 续传记录, 没有或读取失败时返回null
+     */
+    public static DownloadRecord load(File file) {
+        File f = getRecordFile(file);
+        if (!f.exists()) {
+            return null;
+        }
+        Properties p = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(f);
+            p.load(in);
+            long length = Long.parseLong(p.getProperty(KEY_LENGTH, "-1"));
+            return new DownloadRecord(p.getProperty(KEY_URL), p.getProperty(KEY_ETAG),
+                p.getProperty(KEY_LAST_MODIFIED), length);
+        } catch (IOException e) {
+            return null;
+        } catch (NumberFormatException e) {
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * 保存续传记录
+     *
+     * @param file 下载的目标文件
+     * @throws IOException 保存失败
+     */
+    public void save(File file) throws IOException {
+        Properties p = new Properties();
+        p.setProperty(KEY_URL, url);
+        if (etag != null) {
+            p.setProperty(KEY_ETAG, etag);
+        }
+        if (lastModified != null) {
+            p.setProperty(KEY_LAST_MODIFIED, lastModified);
+        }
+        p.setProperty(KEY_LENGTH, String.valueOf(length));
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(getRecordFile(file));
+            p.store(out, null);
+        } finally {
+            close(out);
+        }
+    }
+
+    /**
+     * 删除续传记录及已下载的数据
+     *
+     * @param file 下载的目标文件
+     */
+    public static void delete(File file) {
+        getRecordFile(file).delete();
+        getPartFile(file).delete();
+    }
+
+    private static void close(java.io.Closeable c) {
+        if (c != null) {
+            try {
+                c.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+}
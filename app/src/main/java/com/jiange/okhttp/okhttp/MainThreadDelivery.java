@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 20015 MaiNaEr All rights reserved
+ */
+package com.jiange.okhttp.okhttp;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+
+/**
+ * 共享的主线程结果分发器, 合并同一帧内到达的结果, 一次性分发.
+ * <p>
+ * 每个请求单独post一个Message时, 同时发起的多个请求会多次唤醒主线程并各自触发一次布局.
+ * 这里将结果缓存到队列中, 只注册一个{@link Choreographer}帧回调, 在下一帧的traversal之前一并分发,
+ * 回调中引起的requestLayout合并到同一次布局. API 16以下没有Choreographer, 退化为一次Handler post.
+ * </p>
+ *
+ * @author wangjian
+ * @date 2016/3/23.
+ */
+public final class MainThreadDelivery {
+
+    private static final MainThreadDelivery sInstance = new MainThreadDelivery();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final Object mLock = new Object();
+    private ArrayList<Runnable> mPending = new ArrayList<>();
+    // 分发时与mPending交换, 避免每帧分配新的列表
+    private ArrayList<Runnable> mRunning = new ArrayList<>();
+    private boolean mScheduled;
+    private volatile FrameScheduler mFrameScheduler;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    private MainThreadDelivery() {
+    }
+
+    public static MainThreadDelivery getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * 加入待分发队列, 在下一帧开始时于主线程执行, 可在任意线程调用
+     *
+     * @param runnable 分发任务
+     */
+    public void post(Runnable runnable) {
+        synchronized (mLock) {
+            mPending.add(runnable);
+            if (mScheduled) {
+                return;
+            }
+            mScheduled = true;
+        }
+        schedule();
+    }
+
+    /**
+     * @return 等待分发的结果数
+     */
+    public int getPendingCount() {
+        synchronized (mLock) {
+            return mPending.size();
+        }
+    }
+
+    private void schedule() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            mHandler.post(mFlush);
+            return;
+        }
+        FrameScheduler scheduler = mFrameScheduler;
+        if (scheduler != null) {
+            // Choreographer.postFrameCallback是线程安全的
+            scheduler.schedule();
+        }
+        else if (Looper.myLooper() == Looper.getMainLooper()) {
+            scheduler = mFrameScheduler = new FrameScheduler(mFlush);
+            scheduler.schedule();
+        }
+        else {
+            // 主线程的Choreographer只能在主线程中获取, 首次在主线程中创建
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mFrameScheduler == null) {
+                        mFrameScheduler = new FrameScheduler(mFlush);
+                    }
+                    mFrameScheduler.schedule();
+                }
+            });
+        }
+    }
+
+    private void flush() {
+        ArrayList<Runnable> batch;
+        synchronized (mLock) {
+            batch = mPending;
+            mPending = mRunning;
+            mRunning = batch;
+            mScheduled = false;
+        }
+        try {
+            for (int i = 0, size = batch.size(); i < size; i++) {
+                batch.get(i).run();
+            }
+        } finally {
+            batch.clear();
+        }
+    }
+
+    /**
+     * 单独的类, API 16以下不会加载Choreographer
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static final class FrameScheduler implements Choreographer.FrameCallback {
+        private final Choreographer mChoreographer = Choreographer.getInstance();
+        private final Runnable mFlush;
+
+        private FrameScheduler(Runnable flush) {
+            this.mFlush = flush;
+        }
+
+        void schedule() {
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFlush.run();
+        }
+    }
+}
@@ -11,10 +11,17 @@ import android.text.TextUtils;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 
+import cn.ieclipse.af.volley.IUrl;
+import cn.ieclipse.af.volley.ProgressReporter;
+import okhttp3.CacheControl;
+import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.Okio;
+import okio.Sink;
 
 /**
  * 类/接口描述
@@ -36,24 +43,38 @@ public abstract class OKDownLoadController<Listener> extends OKHttpController<Li
 
     protected abstract class BaseDownLoadTask<Input> extends LoadTask<Input, File> {
 
-        private int DOWN_PROGRESS = 1;
         private int DOWN_SUCCESS = 2;
         private int DOWN_FAILURE = 3;
 
-        private ResponseBody mBody;
+        /**
+         * 文件总长度(包括已下载的部分), -1表示未知
+         */
+        private long mTotal = -1;
+        /**
+         * 续传的起始位置
+         */
+        private long mOffset;
+        private String mUrl;
+        private DownloadRecord mRecord;
 
         private File mFile;
 
+        /**
+         * 节流的进度回调, 避免每次读取都向主线程发送消息
+         */
+        private final ProgressReporter mReporter = new ProgressReporter(new ProgressReporter.Callback() {
+            @Override
+            public void onProgress(long transferred, long total, int progress) {
+                inProgress(total > 0 ? transferred * 1.0f / total : 0, total);
+            }
+        });
+
         private Handler mHandler = new Handler(Looper.getMainLooper()) {
             @Override
             public void handleMessage(Message msg) {
                 super.handleMessage(msg);
                 if (msg != null) {
-                    if (msg.what == DOWN_PROGRESS && mBody != null) {
-                        float progress = (float) msg.obj;
-                        inProgress(progress, mBody.contentLength());
-                    }
-                    else if (msg.what == DOWN_SUCCESS) {
+                    if (msg.what == DOWN_SUCCESS) {
                         File file = (File) msg.obj;
                         onSuccess(file);
                     }
@@ -71,22 +92,78 @@ public abstract class OKDownLoadController<Listener> extends OKHttpController<Li
             mHandler.sendMessage(message);
         }
 
+        @Override
+        protected boolean isCoalescable(IUrl url) {
+            // 每个下载任务保存到不同的文件
+            return false;
+        }
+
+        /**
+         * 是否支持断点续传, 默认支持. 服务器需支持Range请求并返回ETag或Last-Modified
+         *
+         * @return true 支持
+         */
+        protected boolean isResumable() {
+            return true;
+        }
+
+        /**
+         * 获取进度回调, 可设置回调的最小间隔及最小进度变化
+         *
+         * @return 进度回调
+         */
+        public ProgressReporter getProgressReporter() {
+            return mReporter;
+        }
+
+        @Override
+        protected void onPrepareRequest(IUrl url, Request.Builder builder) {
+            mReporter.reset();
+            // 下载的文件不写入http缓存
+            builder.cacheControl(new CacheControl.Builder().noStore().build());
+            mOffset = 0;
+            mTotal = -1;
+            mRecord = null;
+            mUrl = url.getUrl();
+            mFile = null;
+            String fileDir = getFileDir();
+            String fileName = getFileName();
+            if (TextUtils.isEmpty(fileDir) || TextUtils.isEmpty(fileName)) {
+                return;
+            }
+            mFile = new File(fileDir, fileName);
+            if (!isResumable()) {
+                return;
+            }
+            DownloadRecord record = DownloadRecord.load(mFile);
+            File part = DownloadRecord.getPartFile(mFile);
+            if (record != null && record.canResume(mUrl) && part.length() > 0) {
+                // If-Range: 文件已改变时服务器返回200及完整的文件
+                mRecord = record;
+                mOffset = part.length();
+                builder.header("Range", "bytes=" + mOffset + "-");
+                builder.header("If-Range", record.getValidator());
+                log("resume download from " + mOffset + " : " + mUrl);
+            }
+        }
+
+        @Override
+        protected boolean isSuccessful(Response response) {
+            int code = response.code();
+            return code == 200 || code == 206 || code == 416;
+        }
+
         @Override
         protected void convertData(Response response) {
             if (response != null) {
-                ResponseBody body = response.body();
-                mBody = body;
-                String fileDir = getFileDir();
-                String fileName = getFileName();
+                if (mFile == null) {
+                    postMessage(DOWN_FAILURE, "the methord getFileDir() or getFileName() is null");
+                    return;
+                }
                 try {
-                    if (!TextUtils.isEmpty(fileDir) && !TextUtils.isEmpty(fileName)) {
-                        mFile = saveFile(body.byteStream(), body.contentLength(), fileDir, fileName);
-                        if (mFile != null) {
-                            postMessage(DOWN_SUCCESS, mFile);
-                        }
-                    }
-                    else {
-                        postMessage(DOWN_FAILURE, "the methord getFileDir() or getFileName() is null");
+                    File file = save(response);
+                    if (file != null) {
+                        postMessage(DOWN_SUCCESS, file);
                     }
                 } catch (Exception e) {
                     postMessage(DOWN_FAILURE, e.getMessage());
@@ -103,33 +180,125 @@ public abstract class OKDownLoadController<Listener> extends OKHttpController<Li
 
         protected abstract String getFileName();
 
-        private File saveFile(InputStream inputStream, final long contentLength, String destFileDir,
-                              String destFileName) throws IOException {
-            byte[] buf = new byte[2048];
-            int length = 0;
+        private File save(Response response) throws IOException {
+            ResponseBody body = response.body();
+            File part = DownloadRecord.getPartFile(mFile);
+            int code = response.code();
+            if (code == 416) {
+                body.close();
+                // 请求的范围无效, 已下载完成时直接使用, 否则重新下载
+                if (mRecord != null && mRecord.getLength() > 0 && part.length() == mRecord.getLength()) {
+                    return complete(part);
+                }
+                DownloadRecord.delete(mFile);
+                throw new IOException("requested range not satisfiable, please retry");
+            }
+            boolean append = false;
+            if (code == 206) {
+                String etag = response.header("ETag");
+                long start = parseRangeStart(response.header("Content-Range"));
+                if (mRecord == null || start != mOffset
+                    || (etag != null && mRecord.getEtag() != null && !etag.equals(mRecord.getEtag()))) {
+                    body.close();
+                    DownloadRecord.delete(mFile);
+                    throw new IOException("partial content mismatched, please retry");
+                }
+                append = true;
+                long length = body.contentLength();
+                mTotal = length >= 0 ? mOffset + length : mRecord.getLength();
+            }
+            else {
+                mOffset = 0;
+                mTotal = body.contentLength();
+                DownloadRecord.delete(mFile);
+                if (isResumable()) {
+                    DownloadRecord record = new DownloadRecord(mUrl, response.header("ETag"),
+                        response.header("Last-Modified"), mTotal);
+                    if (record.getValidator() != null) {
+                        record.save(mFile);
+                    }
+                }
+            }
+            saveFile(body.source(), part, append);
+            return complete(part);
+        }
+
+        private File complete(File part) throws IOException {
+            if (mFile.exists()) {
+                mFile.delete();
+            }
+            if (!part.renameTo(mFile)) {
+                throw new IOException("can't rename " + part + " to " + mFile);
+            }
+            DownloadRecord.getRecordFile(mFile).delete();
+            return mFile;
+        }
+
+        /**
+         * 解析Content-Range: bytes start-end/total
+         */
+        private long parseRangeStart(String contentRange) {
+            if (contentRange == null) {
+                return -1;
+            }
+            int s = contentRange.indexOf(' ');
+            int e = contentRange.indexOf('-', s + 1);
+            if (s < 0 || e < 0) {
+                return -1;
+            }
+            try {
+                return Long.parseLong(contentRange.substring(s + 1, e).trim());
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+
+        /**
+         * 每次读取的最大字节数, 默认使用{@link OKHttpConfig#getDownloadBufferSize()}
+         *
+         * @return buffer size
+         */
+        protected int getBufferSize() {
+            return OKHttpManager.getConfig().getDownloadBufferSize();
+        }
+
+        /**
+         * 下载完成时是否同步(fsync)到磁盘, 默认使用{@link OKHttpConfig#isDownloadSync()}
+         *
+         * @return true 同步
+         */
+        protected boolean isSync() {
+            return OKHttpManager.getConfig().isDownloadSync();
+        }
+
+        private void saveFile(BufferedSource source, File file, boolean append) throws IOException {
+            long bufferSize = getBufferSize();
+            long length = 0;
             FileOutputStream fos = null;
             try {
-                long sum = 0;
+                long sum = mOffset;
 
-                File dir = new File(destFileDir);
-                if (!dir.exists()) {
+                File dir = file.getParentFile();
+                if (dir != null && !dir.exists()) {
                     dir.mkdirs();
                 }
-                File file = new File(dir, destFileName);
-                fos = new FileOutputStream(file);
-                while ((length = inputStream.read(buf)) != -1) {
+                fos = new FileOutputStream(file, append);
+                // okio的segment直接写入文件, 不经过中间的byte[]
+                Sink sink = Okio.sink(fos);
+                Buffer buffer = new Buffer();
+                while ((length = source.read(buffer, bufferSize)) != -1) {
                     sum += length;
-                    fos.write(buf, 0, length);
-                    long finalSum = sum;
-                    float prgress = finalSum * 1.0f / contentLength;
-                    postMessage(DOWN_PROGRESS, prgress);
+                    sink.write(buffer, length);
+                    mReporter.update(sum, mTotal);
+                }
+                sink.flush();
+                if (isSync()) {
+                    fos.getFD().sync();
                 }
-                fos.flush();
-                return file;
             } finally {
                 try {
-                    if (inputStream != null) {
-                        inputStream.close();
+                    if (source != null) {
+                        source.close();
                     }
                 } catch (IOException e) {
                 }
@@ -143,4 +312,4 @@ public abstract class OKDownLoadController<Listener> extends OKHttpController<Li
         }
     }
 
-}
\ No newline at end of file
+}
@@ -3,6 +3,10 @@
  */
 package com.jiange.okhttp.okhttp;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import cn.ieclipse.af.volley.IUrl;
 import okhttp3.Cache;
 
 /**
@@ -13,11 +17,19 @@ import okhttp3.Cache;
  */
 public class OKHttpConfig {
 
+    /**
+     * 下载默认每次读取64K
+     */
+    public static final int DEFAULT_DOWNLOAD_BUFFER_SIZE = 64 << 10;
     private long mConnectTimeout;
     private long mReadTimeout;
     private long mWriteTimeout;
     private Cache mCache;
     private Class<? extends OKBaseResponse> mBaseResponseClass;
+    private int mDownloadBufferSize;
+    private boolean mDownloadSync;
+    private List<CacheRule> mCacheRules;
+    private int mMaxRequests;
 
     private OKHttpConfig(Builder builder) {
         this.mBaseResponseClass = builder.baseResponseClass;
@@ -25,6 +37,10 @@ public class OKHttpConfig {
         this.mWriteTimeout = builder.writeTimeout;
         this.mReadTimeout = builder.readTimeout;
         this.mCache = builder.cache;
+        this.mDownloadBufferSize = builder.downloadBufferSize;
+        this.mDownloadSync = builder.downloadSync;
+        this.mCacheRules = new ArrayList<>(builder.cacheRules);
+        this.mMaxRequests = builder.maxRequests;
     }
 
     public long getConnectTimeout() {
@@ -47,12 +63,43 @@ public class OKHttpConfig {
         return mBaseResponseClass;
     }
 
+    public int getDownloadBufferSize() {
+        return mDownloadBufferSize;
+    }
+
+    public boolean isDownloadSync() {
+        return mDownloadSync;
+    }
+
+    public int getMaxRequests() {
+        return mMaxRequests;
+    }
+
+    /**
+     * 获取url匹配的缓存规则
+     *
+     * @param url 请求url
+     * @return 第一个匹配的规则, 没有时返回null(使用服务器的缓存响应头)
+     */
+    public CacheRule getCacheRule(IUrl url) {
+        for (CacheRule rule : mCacheRules) {
+            if (rule.matches(url)) {
+                return rule;
+            }
+        }
+        return null;
+    }
+
     public static class Builder {
         private Class<? extends OKBaseResponse> baseResponseClass;
         private long connectTimeout;
         private long readTimeout;
         private long writeTimeout;
         private Cache cache;
+        private int downloadBufferSize = DEFAULT_DOWNLOAD_BUFFER_SIZE;
+        private boolean downloadSync;
+        private List<CacheRule> cacheRules = new ArrayList<>();
+        private int maxRequests = PriorityDispatcher.DEFAULT_MAX_REQUESTS;
 
         public Builder setBaseResponseClass(Class<? extends OKBaseResponse> baseResponseClass) {
             this.baseResponseClass = baseResponseClass;
@@ -79,6 +126,58 @@ public class OKHttpConfig {
             return this;
         }
 
+        /**
+         * 设置下载时每次读取的最大字节数
+         *
+         * @param downloadBufferSize 默认{@link #DEFAULT_DOWNLOAD_BUFFER_SIZE}
+         * @return builder
+         */
+        public Builder setDownloadBufferSize(int downloadBufferSize) {
+            if (downloadBufferSize > 0) {
+                this.downloadBufferSize = downloadBufferSize;
+            }
+            return this;
+        }
+
+        /**
+         * 设置下载完成时是否同步(fsync)到磁盘, 默认false
+         *
+         * @param downloadSync true 同步
+         * @return builder
+         */
+        public Builder setDownloadSync(boolean downloadSync) {
+            this.downloadSync = downloadSync;
+            return this;
+        }
+
+        /**
+         * 添加缓存规则, 按添加顺序匹配
+         *
+         * @param rule 缓存规则
+         * @return builder
+         * @see CacheRule
+         */
+        public Builder addCacheRule(CacheRule rule) {
+            if (rule != null) {
+                this.cacheRules.add(rule);
+            }
+            return this;
+        }
+
+        /**
+         * 设置同时执行的最大请求数, 等待的请求按优先级执行
+         *
+         * @param maxRequests 默认{@link PriorityDispatcher#DEFAULT_MAX_REQUESTS}
+         * @return builder
+         * @see PriorityDispatcher
+         */
+        public Builder setMaxRequests(int maxRequests) {
+            if (maxRequests > 0) {
+                this.maxRequests = maxRequests;
+            }
+            return this;
+        }
+
         public OKHttpConfig build() {
             return new OKHttpConfig(this);
         }
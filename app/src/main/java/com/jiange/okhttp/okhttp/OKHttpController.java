@@ -3,23 +3,29 @@
  */
 package com.jiange.okhttp.okhttp;
 
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
+import android.os.SystemClock;
 import android.text.TextUtils;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
 
 import java.io.IOException;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import cn.ieclipse.af.util.ParamEncoder;
+import cn.ieclipse.af.volley.EnvelopeDecoder;
 import cn.ieclipse.af.volley.IUrl;
+import cn.ieclipse.af.volley.InFlightRequests;
+import cn.ieclipse.af.volley.NetworkMetrics;
+import cn.ieclipse.af.volley.RequestGroups;
+import cn.ieclipse.af.volley.RequestKey;
+import cn.ieclipse.af.volley.RequestPriority;
+import cn.ieclipse.af.volley.TypeAdapterRegistry;
 import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.FormBody;
@@ -28,6 +34,7 @@ import okhttp3.OkHttpClient;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
+import okhttp3.ResponseBody;
 
 /**
  * okhttp加载基类，子类需继承之实现自定义功能
@@ -39,8 +46,20 @@ public abstract class OKHttpController<Listener> {
 
     public static final int SUCCESS_CODE = 0x01;
     public static final int ERROR_CODE = 0x02;
+    /**
+     * 是否打印响应内容
+     */
+    public static boolean DEBUG = false;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /**
+     * 所有controller中正在执行的合并请求
+     */
+    private static final InFlightRequests<OKHttpController<?>.LoadTask<?, ?>> sFlights = new InFlightRequests<>();
     protected Listener mListener;
-    private Call mCall = null;
+    /**
+     * task的取消分组(controller之外), 如所在的Activity
+     */
+    private Object mGroup;
 
     public OKHttpController() {
     }
@@ -54,18 +73,52 @@ public abstract class OKHttpController<Listener> {
         this.mListener = l;
     }
 
-    private void log(String msg) {
+    /**
+     * 设置task的取消分组, 如AfActivity/AfFragment, 销毁时取消该分组的请求. {@link #onDestroy()}总会取消本controller的请求
+     *
+     * @param group 分组
+     * @see RequestGroups
+     */
+    public void setGroup(Object group) {
+        this.mGroup = group;
+    }
+
+    public Object getGroup() {
+        return mGroup;
+    }
+
+    protected void log(String msg) {
         android.util.Log.e(OKHttpController.class.getSimpleName(), msg);
     }
 
-    protected abstract class LoadTask<Input, Output> implements Callback {
+    protected abstract class LoadTask<Input, Output> implements Callback, RequestGroups.Cancelable {
 
         private OkHttpClient mClient = OKHttpManager.getOkHttpClient();
         private MediaType MEDIA_TYPE_PLAIN = MediaType.parse("text/plain;charset=utf-8");
         protected Class<Output> mDataClazz;
         protected Class<?> mDataItemClass;
-        private Gson mGson = new Gson();
         protected Input input;
+        private InFlightRequests.Flight<OKHttpController<?>.LoadTask<?, ?>> mFlight;
+        private RequestPriority mPriority = RequestPriority.NORMAL;
+        private Call mCall;
+        private Object mTaskGroup;
+        private volatile boolean mCanceled;
+        // NetworkMetrics计时, 开启时才记录
+        private String mEndpoint;
+        private long mStartTime;
+
+        /**
+         * 设置请求优先级, 默认{@link RequestPriority#NORMAL}, 加入合并请求时使用已有请求的优先级
+         *
+         * @param priority 优先级
+         */
+        public void setPriority(RequestPriority priority) {
+            this.mPriority = priority != null ? priority : RequestPriority.NORMAL;
+        }
+
+        public RequestPriority getPriority() {
+            return mPriority;
+        }
 
         protected abstract IUrl getUrl();
 
@@ -91,9 +144,16 @@ public abstract class OKHttpController<Listener> {
         public void load(Input input, Class<Output> clazz) {
             this.input = input;
             this.mDataClazz = clazz;
+            this.mCanceled = false;
+            this.mCall = null;
 
             IUrl url = getUrl();
             log("request url = " + url.getUrl());
+            mEndpoint = null;
+            if (NetworkMetrics.isEnabled()) {
+                mEndpoint = NetworkMetrics.getEndpoint(url.getUrl());
+                mStartTime = SystemClock.elapsedRealtime();
+            }
             // 获取请求方法
             int method = url.getMethod();
             Request.Builder builder = null;
@@ -130,13 +190,103 @@ public abstract class OKHttpController<Listener> {
                     break;
             }
 
-            // 构建tag
-            String tag = getClass().getName();
-            // 封装请求.cacheControl(new CacheControl.Builder().maxAge(5, TimeUnit.SECONDS).build())
+            onPrepareRequest(url, builder);
+            // 构建tag, 有缓存规则时tag为规则, 由OKHttpManager的拦截器处理
+            CacheRule rule = OKHttpManager.getConfig().getCacheRule(url);
+            Object tag = rule != null ? rule : getClass().getName();
             Request request = builder.tag(tag).build();
-            // 执行请求
-            mCall = mClient.newCall(request);
-            mCall.enqueue(this);
+            // 相同的请求正在执行时, 共享该请求及响应内容
+            mFlight = null;
+            RequestKey key = isCoalescable(url) ? getRequestKey(request) : null;
+            if (key != null) {
+                mFlight = sFlights.join(key, this);
+                if (mFlight != null) {
+                    log("join in-flight request: " + key);
+                    attach();
+                    return;
+                }
+            }
+            // 按优先级执行请求
+            Call call = mClient.newCall(request);
+            if (key != null) {
+                mFlight = sFlights.start(key, this, call);
+            }
+            mCall = call;
+            attach();
+            OKHttpManager.getDispatcher().enqueue(call, mPriority, this);
+        }
+
+        /**
+         * 取消请求, 合并的请求只有没有task等待时才取消
+         */
+        @Override
+        public void cancel() {
+            mCanceled = true;
+            detach();
+            if (mFlight != null) {
+                if (sFlights.leave(mFlight, this)) {
+                    ((Call) mFlight.getCall()).cancel();
+                }
+            }
+            else if (mCall != null) {
+                mCall.cancel();
+            }
+        }
+
+        private void attach() {
+            RequestGroups.add(OKHttpController.this, this);
+            mTaskGroup = mGroup;
+            if (mTaskGroup != null && mTaskGroup != OKHttpController.this) {
+                RequestGroups.add(mTaskGroup, this);
+            }
+        }
+
+        private void detach() {
+            RequestGroups.remove(OKHttpController.this, this);
+            if (mTaskGroup != null) {
+                RequestGroups.remove(mTaskGroup, this);
+            }
+        }
+
+        /**
+         * 请求构建前调用, 子类可添加请求头等, 如断点续传的Range
+         *
+         * @param url     请求url(已拼接get参数)
+         * @param builder 请求builder
+         */
+        protected void onPrepareRequest(IUrl url, Request.Builder builder) {
+        }
+
+        /**
+         * 响应是否成功, 默认只接受200
+         *
+         * @param response 响应
+         * @return true 成功, 将调用{@link #convertData(Response)}
+         */
+        protected boolean isSuccessful(Response response) {
+            return response.isSuccessful() && response.code() == 200;
+        }
+
+        /**
+         * 相同的请求(method, url, body相同)是否合并为一次网络请求, 默认只合并GET请求
+         *
+         * @param url 请求url
+         * @return true 合并
+         */
+        protected boolean isCoalescable(IUrl url) {
+            return url.getMethod() == Method.GET;
+        }
+
+        /**
+         * 获取请求的唯一标识, 由method, url及body组成, 参数已排序及规范化
+         *
+         * @param request 请求
+         * @return 请求标识
+         * @see RequestKey
+         */
+        protected RequestKey getRequestKey(Request request) {
+            String body = request.body() != null ? getBody(input) : null;
+            return RequestKey.create(request.method(), request.url().toString(), body);
         }
 
         // 拼接get请求参数
@@ -150,26 +300,94 @@ public abstract class OKHttpController<Listener> {
 
         @Override
         public final void onFailure(Call call, IOException e) {
+            if (call.isCanceled()) {
+                return;
+            }
             sendMessage(e.getMessage(), ERROR_CODE);
         }
 
         @Override
         public final void onResponse(Call call, Response response) {
-            if (response != null && response.isSuccessful() && response.code() == 200) {
-                convertData(response);
+            if (mFlight == null) {
+                // 请求已结束, 解析结果可能不会回调
+                detach();
             }
-            else {
-                throw new NullPointerException("base response is null, please check your http response.");
+            try {
+                if (response != null && isSuccessful(response)) {
+                    if (mFlight == null) {
+                        convertData(response);
+                    }
+                    else {
+                        shareData(response);
+                    }
+                }
+                else {
+                    // 不能在okhttp线程中抛出异常, 同时需要结束合并的请求
+                    sendMessage("base response is null, please check your http response.", ERROR_CODE);
+                }
+            } finally {
+                // 失败的响应也要关闭body, 否则连接不能复用
+                if (response != null && response.body() != null) {
+                    response.body().close();
+                }
+                // 被拦截或data为空时没有回调, 也要结束合并的请求, 否则之后相同的请求都会加入该请求而没有回调
+                complete();
+            }
+        }
+
+        /**
+         * 合并的请求只共享响应内容, 每个task按自己的输出类型及拦截器解析
+         */
+        private void shareData(Response response) {
+            byte[] bytes;
+            String charset;
+            try {
+                ResponseBody body = response.body();
+                bytes = body.bytes();
+                charset = getCharset(body);
+            } catch (IOException e) {
+                sendMessage(e.getMessage(), ERROR_CODE);
+                return;
+            }
+            List<OKHttpController<?>.LoadTask<?, ?>> members = sFlights.deliver(mFlight, true);
+            for (OKHttpController<?>.LoadTask<?, ?> task : members) {
+                // 结果只回调给自己
+                task.mFlight = null;
+                task.releaseFlight();
+                task.convertData(bytes, charset);
             }
         }
 
         protected void convertData(Response response) {
+            try {
+                ResponseBody body = response.body();
+                byte[] bytes = body.bytes();
+                convertData(bytes, getCharset(body));
+            } catch (IOException e) {
+                sendMessage(e.getMessage(), ERROR_CODE);
+            }
+        }
+
+        /**
+         * 解析响应内容, 合并的请求中每个task都会调用
+         *
+         * @param bytes   响应内容
+         * @param charset 响应编码
+         */
+        protected void convertData(byte[] bytes, String charset) {
             Output out = null;
-            String body = null;
             try {
-                body = response.body().string().trim();
-                // 解析成OKBaseResponse
-                OKBaseResponse baseResponse = mGson.fromJson(body, getBaseResponseClass());
+                if (DEBUG) {
+                    log("response = " + new String(bytes, charset));
+                }
+                // 解析成OKBaseResponse, data直接解析成目标类型
+                Type dataType = getDataType();
+                EnvelopeDecoder<? extends OKBaseResponse> decoder = EnvelopeDecoder.get(getBaseResponseClass());
+                long start = mEndpoint != null ? SystemClock.elapsedRealtime() : 0;
+                OKBaseResponse baseResponse = decoder.decode(bytes, charset, dataType);
+                if (start > 0) {
+                    NetworkMetrics.record(mEndpoint, NetworkMetrics.Phase.PARSE, SystemClock.elapsedRealtime() - start);
+                }
                 if (!onInterceptor(baseResponse)) {
                     // mDataClazz是否是BaseResponse
                     if (mDataClazz != null) {
@@ -180,18 +398,22 @@ public abstract class OKHttpController<Listener> {
                             return;
                         }
                     }
+                    Object bound = decoder.getData(baseResponse, dataType);
+                    if (bound != null) {
+                        sendMessage(bound, SUCCESS_CODE);
+                        return;
+                    }
                     // 解析成BaseResponse中的data
                     String data = baseResponse.getData();
                     if (!TextUtils.isEmpty(data)) {
-                        log("response = " + body);
                         if (mDataItemClass != null && mDataClazz == null) {
-                            out = mGson.fromJson(data, type(List.class, mDataItemClass));
+                            out = TypeAdapterRegistry.fromJson(data, type(List.class, mDataItemClass));
                             if (out == null) {
                                 out = (Output) new ArrayList<>(0);
                             }
                         }
                         else {
-                            out = mGson.fromJson(data, mDataClazz);
+                            out = TypeAdapterRegistry.fromJson(data, mDataClazz);
                         }
                         sendMessage(out, SUCCESS_CODE);
                     }
@@ -208,6 +430,26 @@ public abstract class OKHttpController<Listener> {
             }
         }
 
+        private String getCharset(ResponseBody body) {
+            MediaType contentType = body.contentType();
+            return contentType != null ? contentType.charset(UTF_8).name() : UTF_8.name();
+        }
+
+        /**
+         * 获取data的目标类型, 解析响应时data将直接绑定到此类型
+         *
+         * @return 输出类型, load2List时为List&lt;item&gt;, 输出为OKBaseResponse时为null
+         */
+        protected Type getDataType() {
+            if (mDataClazz != null) {
+                return isOKBaseResponse(mDataClazz) ? null : mDataClazz;
+            }
+            if (mDataItemClass != null) {
+                return type(List.class, mDataItemClass);
+            }
+            return null;
+        }
+
         /**
          * 数据加载完成或失败
          *
@@ -215,24 +457,84 @@ public abstract class OKHttpController<Listener> {
          * @param what
          */
         protected void sendMessage(Object obj, int what) {
-            Message msg = Message.obtain();
-            msg.obj = obj;
-            msg.what = what;
-            handler.sendMessage(msg);
+            if (mFlight == null) {
+                detach();
+                post(obj, what);
+                return;
+            }
+            // 合并的请求失败, 结果分发给所有task
+            List<OKHttpController<?>.LoadTask<?, ?>> members = sFlights.deliver(mFlight, true);
+            for (OKHttpController<?>.LoadTask<?, ?> task : members) {
+                task.releaseFlight();
+                task.post(obj, what);
+            }
+        }
+
+        /**
+         * 结束合并的请求并释放所有task, 已分发结果时什么也不做
+         */
+        private void complete() {
+            if (mFlight == null) {
+                return;
+            }
+            List<OKHttpController<?>.LoadTask<?, ?>> members = sFlights.finish(mFlight);
+            for (OKHttpController<?>.LoadTask<?, ?> task : members) {
+                task.releaseFlight();
+            }
         }
 
-        Handler handler = new Handler(Looper.getMainLooper()) {
-            @Override
-            public void handleMessage(Message msg) {
-                super.handleMessage(msg);
-                if (msg.what == SUCCESS_CODE) {
-                    onSuccess((Output) msg.obj);
+        private void releaseFlight() {
+            detach();
+        }
+
+        private void post(final Object obj, final int what) {
+            if (!isDeliverOnMainThread()) {
+                deliver(obj, what, 0);
+                return;
+            }
+            final long postTime = SystemClock.uptimeMillis();
+            MainThreadDelivery.getInstance().post(new Runnable() {
+                @Override
+                public void run() {
+                    deliver(obj, what, postTime);
                 }
-                else if (msg.what == ERROR_CODE) {
-                    onError(msg.obj.toString());
+            });
+        }
+
+        @SuppressWarnings("unchecked")
+        private void deliver(Object obj, int what, long postTime) {
+            if (mCanceled) {
+                return;
+            }
+            if (mEndpoint != null) {
+                // 主线程排队时间及请求总时间
+                if (postTime > 0) {
+                    NetworkMetrics.record(mEndpoint, NetworkMetrics.Phase.DELIVERY,
+                        SystemClock.uptimeMillis() - postTime);
                 }
+                NetworkMetrics.record(mEndpoint, NetworkMetrics.Phase.TOTAL,
+                    SystemClock.elapsedRealtime() - mStartTime);
             }
-        };
+            if (what == SUCCESS_CODE) {
+                onSuccess((Output) obj);
+            }
+            else if (what == ERROR_CODE) {
+                onError(obj.toString());
+            }
+        }
+
+        /**
+         * 是否在主线程中回调{@link #onSuccess(Object)}/{@link #onError(String)}, 默认true,
+         * 主线程的结果由{@link MainThreadDelivery}按帧合并分发.
+         * <p>
+         * 不操作View的调用者(如数据同步)可覆盖返回false, 解析及回调都在请求线程中完成, 不再切换到主线程
+         * </p>
+         *
+         * @return true 在主线程中回调
+         */
+        protected boolean isDeliverOnMainThread() {
+            return true;
+        }
 
         /**
          * Get parameter encoding
@@ -279,18 +581,8 @@ public abstract class OKHttpController<Listener> {
                 body = null;
             }
             else if (input instanceof Map) {
-                Map map = (Map) input;
-                StringBuilder sb = new StringBuilder();
-                for (Object key : map.keySet()) {
-                    sb.append(key);
-                    sb.append('=');
-                    sb.append(OkStringUtils.getRequestParamValue(map.get(key), getParamsEncoding()));
-                    sb.append('&');
-                }
-                if (sb.length() > 1) {
-                    sb.deleteCharAt(sb.length() - 1);
-                }
-                body = sb.toString();
+                // 参数按名称排序, 相同的参数拼接的url相同, 不影响缓存命中
+                body = ParamEncoder.encode((Map<?, ?>) input, getParamsEncoding());
             }
             else {
                 body = OkStringUtils.getRequestParam(input, getParamsEncoding());
@@ -301,13 +593,8 @@ public abstract class OKHttpController<Listener> {
     }
 
     public void onDestroy() {
-        if (mCall != null && !mCall.isExecuted()) {
-            try {
-                mCall.cancel();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        }
+        // 取消本controller的请求, 合并的请求没有task等待时才取消
+        RequestGroups.cancel(this);
     }
 
     public Class<? extends OKBaseResponse> getBaseResponseClass() {
@@ -337,19 +624,7 @@ public abstract class OKHttpController<Listener> {
     }
 
     public static ParameterizedType type(final Class raw, final Type... args) {
-        return new ParameterizedType() {
-            public Type getRawType() {
-                return raw;
-            }
-
-            public Type[] getActualTypeArguments() {
-                return args;
-            }
-
-            public Type getOwnerType() {
-                return null;
-            }
-        };
+        return TypeAdapterRegistry.type(raw, args);
     }
 
     public interface Method {
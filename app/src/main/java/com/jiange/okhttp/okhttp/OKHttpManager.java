@@ -16,12 +16,17 @@
 package com.jiange.okhttp.okhttp;
 
 import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
+import cn.ieclipse.af.volley.OkHttpStack;
+import okhttp3.CacheControl;
 import okhttp3.Interceptor;
 import okhttp3.OkHttpClient;
+import okhttp3.Request;
 import okhttp3.Response;
 
 /**
@@ -41,6 +46,7 @@ public final class OKHttpManager {
     private static OKHttpManager mInstance;
     private OkHttpClient mOkHttpClient;
     private OkHttpClient.Builder mBuilder;
+    private PriorityDispatcher mDispatcher;
 
     private OKHttpManager(Context context, OKHttpConfig config) {
         mContext = context;
@@ -59,7 +65,8 @@ public final class OKHttpManager {
     }
 
     private void buildInfo() {
-        mBuilder = new OkHttpClient.Builder();
+        // 与volley(OkHttpStack)共享连接池, dispatcher及dns
+        mBuilder = OkHttpStack.getSharedClient().newBuilder();
         long connectTimeout = mConfig.getConnectTimeout() > 0 ? mConfig.getConnectTimeout() : DEFAULT_SECONDS;
         long readTimeout = mConfig.getReadTimeout() > 0 ? mConfig.getReadTimeout() : DEFAULT_SECONDS;
         long writeTimeout = mConfig.getWriteTimeout() > 0 ? mConfig.getWriteTimeout() : DEFAULT_SECONDS;
@@ -70,9 +77,11 @@ public final class OKHttpManager {
         if (mConfig.getCache() != null) {
             mBuilder.cache(mConfig.getCache());
         }
-        mBuilder.addInterceptor(INTERCEPTOR);
+        mBuilder.addInterceptor(mCacheInterceptor);
+        mBuilder.addNetworkInterceptor(NETWORK_CACHE_INTERCEPTOR);
 
         mOkHttpClient = mBuilder.build();
+        mDispatcher = new PriorityDispatcher(mConfig.getMaxRequests());
     }
 
     static OKHttpManager getInstance() {
@@ -95,6 +104,13 @@ public final class OKHttpManager {
         return getInstance().mOkHttpClient;
     }
 
+    /**
+     * @return 按优先级执行请求的dispatcher
+     */
+    public static PriorityDispatcher getDispatcher() {
+        return getInstance().mDispatcher;
+    }
+
     public Context getContext() {
         return mContext;
     }
@@ -118,13 +134,100 @@ public final class OKHttpManager {
 //        }
 //    }
 //
-    private static final Interceptor INTERCEPTOR = new Interceptor() {
+    /**
+     * 请求的缓存规则, 见{@link OKHttpController.LoadTask#load(Object, Class)}
+     */
+    private static CacheRule getCacheRule(Request request) {
+        Object tag = request.tag();
+        return tag instanceof CacheRule ? (CacheRule) tag : null;
+    }
+
+    private boolean isNetworkAvailable() {
+        try {
+            ConnectivityManager cm = (ConnectivityManager) mContext.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo info = cm.getActiveNetworkInfo();
+            return info != null && info.isConnected();
+        } catch (SecurityException e) {
+            // 没有ACCESS_NETWORK_STATE权限时认为网络可用
+            return true;
+        }
+    }
+
+    /**
+     * 应用拦截器, 处理请求端的缓存规则: no-store, 离线时只读缓存, 出错时使用过期缓存
+     */
+    private final Interceptor mCacheInterceptor = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            CacheRule rule = getCacheRule(request);
+            if (rule == null) {
+                return chain.proceed(request);
+            }
+            if (rule.isNoStore()) {
+                return chain.proceed(request.newBuilder().cacheControl(
+                    new CacheControl.Builder().noStore().build()).build());
+            }
+            if (rule.isOfflineFallback() && !isNetworkAvailable()) {
+                // 不访问网络, 没有缓存时返回504
+                return chain.proceed(request.newBuilder().cacheControl(CacheControl.FORCE_CACHE).build());
+            }
+            if (rule.getStaleIfError() <= 0) {
+                return chain.proceed(request);
+            }
+            Response response;
+            try {
+                response = chain.proceed(request);
+            } catch (IOException e) {
+                Response cached = proceedStale(chain, request, rule);
+                if (cached != null) {
+                    return cached;
+                }
+                throw e;
+            }
+            if (response.code() >= 500) {
+                Response cached = proceedStale(chain, request, rule);
+                if (cached != null) {
+                    response.body().close();
+                    return cached;
+                }
+            }
+            return response;
+        }
+
+        private Response proceedStale(Chain chain, Request request, CacheRule rule) throws IOException {
+            CacheControl cacheControl = new CacheControl.Builder().onlyIfCached().maxStale(rule.getStaleIfError(),
+                TimeUnit.SECONDS).build();
+            Response cached = chain.proceed(request.newBuilder().cacheControl(cacheControl).build());
+            if (cached.code() == 504) {
+                cached.body().close();
+                return null;
+            }
+            return cached;
+        }
+    };
+
+    /**
+     * 网络拦截器, 按缓存规则改写响应的Cache-Control, 决定响应如何写入{@link okhttp3.Cache}
+     */
+    private static final Interceptor NETWORK_CACHE_INTERCEPTOR = new Interceptor() {
         @Override
         public Response intercept(Chain chain) throws IOException {
-            Response originalResponse = chain.proceed(chain.request());
-            //android.util.Log.e("head", originalResponse.headers().toString());
-            return originalResponse.newBuilder().removeHeader("Pragma").header("Cache-Control", String.format(
-                "max-age=%d", 10)).build();
+            Request request = chain.request();
+            Response originalResponse = chain.proceed(request);
+            CacheRule rule = getCacheRule(request);
+            if (rule == null) {
+                return originalResponse;
+            }
+            if (rule.isNoStore()) {
+                return originalResponse.newBuilder().removeHeader("Pragma").header("Cache-Control", "no-store")
+                    .build();
+            }
+            if (rule.getMaxAge() > 0) {
+                return originalResponse.newBuilder().removeHeader("Pragma").header("Cache-Control", String.format(
+                    "max-age=%d", rule.getMaxAge())).build();
+            }
+            return originalResponse;
         }
     };
 
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 20015 MaiNaEr All rights reserved
+ */
+package com.jiange.okhttp.okhttp;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import cn.ieclipse.af.volley.NetworkMetrics;
+import cn.ieclipse.af.volley.RequestPriority;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Response;
+
+/**
+ * 按优先级执行okhttp请求, okhttp自带的Dispatcher是先进先出的.
+ * <p>
+ * 等待中的请求按{@link RequestPriority}排序, 低优先级的请求等待超过其aging时间后不再被新的高优先级请求插队, 不会饿死.
+ * </p>
+ *
+ * @author wangjian
+ * @date 2016/3/23.
+ */
+public final class PriorityDispatcher {
+
+    /**
+     * 默认同时执行的请求数, 与okhttp Dispatcher的每个host最大请求数相同
+     */
+    public static final int DEFAULT_MAX_REQUESTS = 5;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicLong mSequence = new AtomicLong();
+
+    public PriorityDispatcher(int maxRequests) {
+        mExecutor = new ThreadPoolExecutor(maxRequests, maxRequests, 60, TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "OkHttp Priority-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * 按优先级异步执行请求, 回调与{@link Call#enqueue(Callback)}相同, 在工作线程中调用
+     *
+     * @param call     请求
+     * @param priority 优先级
+     * @param callback 回调
+     */
+    public void enqueue(Call call, RequestPriority priority, Callback callback) {
+        mExecutor.execute(new PriorityCall(call, priority, callback, mSequence.getAndIncrement()));
+    }
+
+    /**
+     * @return 等待执行的请求数
+     */
+    public int getQueuedCount() {
+        return mExecutor.getQueue().size();
+    }
+
+    private static final class PriorityCall implements Runnable, Comparable<PriorityCall> {
+        private final Call call;
+        private final RequestPriority priority;
+        private final Callback callback;
+        private final long sequence;
+        private final long time = SystemClock.elapsedRealtime();
+
+        private PriorityCall(Call call, RequestPriority priority, Callback callback, long sequence) {
+            this.call = call;
+            this.priority = priority != null ? priority : RequestPriority.NORMAL;
+            this.callback = callback;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (NetworkMetrics.isEnabled()) {
+                NetworkMetrics.record(NetworkMetrics.getEndpoint(call.request().url().toString()),
+                    NetworkMetrics.Phase.QUEUE, SystemClock.elapsedRealtime() - time);
+            }
+            Response response;
+            try {
+                if (call.isCanceled()) {
+                    throw new IOException("Canceled");
+                }
+                response = call.execute();
+            } catch (IOException e) {
+                callback.onFailure(call, e);
+                return;
+            }
+            try {
+                callback.onResponse(call, response);
+            } catch (IOException e) {
+                // 与enqueue相同, 回调抛出的异常不再回调onFailure
+                android.util.Log.w(PriorityDispatcher.class.getSimpleName(), "callback failure", e);
+            }
+        }
+
+        @Override
+        public int compareTo(PriorityCall another) {
+            return RequestPriority.compare(priority, time, sequence, another.priority, another.time,
+                another.sequence);
+        }
+    }
+}
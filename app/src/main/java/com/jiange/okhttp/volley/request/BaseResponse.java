@@ -3,9 +3,8 @@
  */
 package com.jiange.okhttp.volley.request;
 
-import com.google.gson.Gson;
-
 import cn.ieclipse.af.volley.IBaseResponse;
+import cn.ieclipse.af.volley.TypeAdapterRegistry;
 
 /**
  * 类/接口描述
@@ -54,6 +53,6 @@ public class BaseResponse implements IBaseResponse {
         if (data instanceof String) {
             return (String) data;
         }
-        return new Gson().toJson(data);
+        return TypeAdapterRegistry.toJson(data);
     }
 }
@@ -39,6 +39,15 @@ public abstract class AfBaseAdapter<T> extends BaseAdapter {
         mDataHolder.setDataCheck(checkMode);
     }
 
+    /**
+     * Set the key extractor of data check, see {@link AfDataHolder#setKeyExtractor(AfDataHolder.KeyExtractor)}
+     *
+     * @param extractor key extractor
+     */
+    public void setKeyExtractor(AfDataHolder.KeyExtractor<T> extractor) {
+        mDataHolder.setKeyExtractor(extractor);
+    }
+
     public int getDataCheck() {
         return mDataHolder.getDataCheck();
     }
@@ -71,6 +80,8 @@ public abstract class AfBaseAdapter<T> extends BaseAdapter {
         }
         try {
             onUpdateView(convertView, position);
+        } catch (PagedList.PageLoadException e) {
+            throw e;
         } catch (Exception e){
             e.printStackTrace();
         }
@@ -15,7 +15,7 @@
  */
 package cn.ieclipse.af.adapter;
 
-import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 
 /**
@@ -34,6 +34,17 @@ import java.util.List;
  * and tail</li>
  * </ul>
  * </p>
+ * <p>
+ * By default the existed data is found by {@link List#indexOf(Object)}, it is
+ * O(n) per data. Set a {@link KeyExtractor} to find it by a key to position
+ * index, the check is O(1) amortized. The holder list is a
+ * {@link RingArrayList}, adding to top does not shift the whole list.
+ * </p>
+ * <p>
+ * For a very long list, set a {@link PagedList} by {@link #setDataList(List)}
+ * to keep only the pages around the accessed positions in memory. Note that
+ * building the key index or checking without key reads all its pages.
+ * </p>
  *
  * @author Jamling
  * @date 2015/10/30.
@@ -56,9 +67,42 @@ public class AfDataHolder<T> {
      */
     public static final int CHECK_BOTH = 0x03;
     
+    /**
+     * Extract the identity key of data, two data with equal keys
+     * ({@link Object#equals(Object)} and {@link Object#hashCode()}) are the
+     * same data.
+     */
+    public interface KeyExtractor<T> {
+        /**
+         * Get the key of data
+         * 
+         * @param t
+         *            data object
+         * @return the key, null if the data has no key, it is always added
+         */
+        Object getKey(T t);
+    }
+    
     protected int mDataCheck = CHECK_NONE;
     protected List<T> mDataList;
     protected int mSize = 0;
+    private KeyExtractor<T> mKeyExtractor;
+    /**
+     * key to sequence, position = sequence - mHeadSeq, so adding to top
+     * doesn't change the sequences
+     */
+    private HashMap<Object, Integer> mIndex;
+    private int mHeadSeq;
+    /**
+     * the list has data with equal keys, only the first one is indexed
+     */
+    private boolean mDuplicated;
+    private int mIndexVersion = -1;
+    /**
+     * version of the list changed by holder, used if the list is not a
+     * {@link RingArrayList}
+     */
+    private int mVersion;
     
     /**
      * Set data check mode, combined value of {@link #CHECK_NONE}
@@ -80,6 +124,22 @@ public class AfDataHolder<T> {
         return mDataCheck;
     }
     
+    /**
+     * Set the key extractor used by data check, if null (default), the
+     * data is checked by {@link List#indexOf(Object)}.
+     * 
+     * @param extractor
+     *            key extractor
+     */
+    public void setKeyExtractor(KeyExtractor<T> extractor) {
+        this.mKeyExtractor = extractor;
+        invalidateIndex();
+    }
+    
+    public KeyExtractor<T> getKeyExtractor() {
+        return mKeyExtractor;
+    }
+    
     /**
      * Clear the data, the holder will be empty
      */
@@ -91,6 +151,7 @@ public class AfDataHolder<T> {
             checkDataList();
         }
         mSize = 0;
+        invalidateIndex();
     }
     
     /**
@@ -106,17 +167,18 @@ public class AfDataHolder<T> {
                 int size = list.size();
                 for (int i = 0; i < size; i++) {
                     T t = list.get(i);
-                    int idx = mDataList.indexOf(t);
+                    int idx = indexOf(t);
                     if (idx >= 0) {
-                        mDataList.set(idx, t);
+                        replace(idx, t);
                     }
                     else {
-                        mDataList.add(t);
+                        append(t);
                     }
                 }
             }
             else {
                 mDataList.addAll(list);
+                invalidateIndex();
             }
             mSize = mDataList.size();
         }
@@ -133,19 +195,20 @@ public class AfDataHolder<T> {
         if (list != null) {
             if ((mDataCheck & CHECK_TOP) == CHECK_TOP) {
                 int size = list.size();
-                for (int i = size - 1; i > 0; i--) {
+                for (int i = size - 1; i >= 0; i--) {
                     T t = list.get(i);
-                    int idx = mDataList.indexOf(t);
+                    int idx = indexOf(t);
                     if (idx >= 0) {
-                        mDataList.set(idx, t);
+                        replace(idx, t);
                     }
                     else {
-                        mDataList.add(0, t);
+                        prepend(t);
                     }
                 }
             }
             else {
                 mDataList.addAll(0, list);
+                invalidateIndex();
             }
             mSize = mDataList.size();
         }
@@ -161,13 +224,13 @@ public class AfDataHolder<T> {
         checkDataList();
         if (t != null) {
             if ((mDataCheck & CHECK_TOP) == CHECK_TOP) {
-                int idx = mDataList.indexOf(t);
+                int idx = indexOf(t);
                 if (idx >= 0) {
-                    mDataList.set(idx, t);
+                    replace(idx, t);
                     return;
                 }
             }
-            mDataList.add(0, t);
+            prepend(t);
             mSize += 1;
         }
     }
@@ -182,13 +245,13 @@ public class AfDataHolder<T> {
         checkDataList();
         if (t != null) {
             if ((mDataCheck & CHECK_TAIL) == CHECK_TAIL) {
-                int idx = mDataList.indexOf(t);
+                int idx = indexOf(t);
                 if (idx >= 0) {
-                    mDataList.set(idx, t);
+                    replace(idx, t);
                     return;
                 }
             }
-            mDataList.add(t);
+            append(t);
             mSize += 1;
         }
     }
@@ -202,11 +265,184 @@ public class AfDataHolder<T> {
     public void remove(int position) {
         checkDataList();
         if (position >= 0 && position < mSize) {
-            mDataList.remove(position);
+            T t = mDataList.remove(position);
+            mVersion++;
             mSize -= 1;
+            if (position == 0 && !mDuplicated && isIndexValid(1)) {
+                // the sequences of the rest are not changed
+                mIndex.remove(mKeyExtractor.getKey(t));
+                mHeadSeq++;
+                mIndexVersion = getVersion();
+            }
+            else {
+                invalidateIndex();
+            }
+        }
+    }
+    
+    /**
+     * Replace the data of position, the key index is kept if the key is not
+     * changed.
+     * 
+     * @param position
+     *            data position of this holder
+     * @param t
+     *            new data object
+     */
+    public void set(int position, T t) {
+        checkDataList();
+        if (position < 0 || position >= mSize) {
+            return;
+        }
+        boolean sameKey = mKeyExtractor != null && isIndexValid(0);
+        if (sameKey) {
+            Object key = mKeyExtractor.getKey(t);
+            sameKey = key != null && key.equals(mKeyExtractor.getKey(mDataList.get(position)));
+        }
+        if (sameKey) {
+            replace(position, t);
+        }
+        else {
+            mDataList.set(position, t);
+            mVersion++;
+            invalidateIndex();
         }
     }
     
+    /**
+     * Get the position of data in this holder, the key index is used if the
+     * {@link KeyExtractor} set.
+     * 
+     * @param t
+     *            data object
+     * @return position or -1 if not found
+     */
+    public int indexOf(T t) {
+        checkDataList();
+        if (mKeyExtractor == null) {
+            return mDataList.indexOf(t);
+        }
+        Object key = mKeyExtractor.getKey(t);
+        if (key == null) {
+            return -1;
+        }
+        if (!isIndexValid(0)) {
+            buildIndex();
+        }
+        Integer seq = mIndex.get(key);
+        if (seq == null) {
+            return -1;
+        }
+        int position = seq - mHeadSeq;
+        if (position < 0 || position >= mDataList.size()
+                || !key.equals(mKeyExtractor.getKey(mDataList.get(position)))) {
+            // the list was changed outside, e.g. set()
+            buildIndex();
+            seq = mIndex.get(key);
+            return seq == null ? -1 : seq - mHeadSeq;
+        }
+        return position;
+    }
+    
+    private void replace(int position, T t) {
+        // same key, the index is not changed
+        boolean valid = isIndexValid(0);
+        mDataList.set(position, t);
+        mVersion++;
+        if (valid) {
+            mIndexVersion = getVersion();
+        }
+    }
+    
+    private void append(T t) {
+        boolean valid = isIndexValid(0);
+        mDataList.add(t);
+        mVersion++;
+        if (valid) {
+            Object key = mKeyExtractor.getKey(t);
+            if (key != null) {
+                if (mIndex.containsKey(key)) {
+                    // added without data check, keep the first one
+                    mDuplicated = true;
+                }
+                else {
+                    mIndex.put(key, mHeadSeq + mDataList.size() - 1);
+                }
+            }
+            mIndexVersion = getVersion();
+        }
+    }
+    
+    private void prepend(T t) {
+        boolean valid = isIndexValid(0);
+        mDataList.add(0, t);
+        mVersion++;
+        if (valid) {
+            mHeadSeq--;
+            Object key = mKeyExtractor.getKey(t);
+            if (key != null) {
+                if (mIndex.containsKey(key)) {
+                    mDuplicated = true;
+                }
+                // the first one is found as indexOf() does
+                mIndex.put(key, mHeadSeq);
+            }
+            mIndexVersion = getVersion();
+        }
+    }
+    
+    /**
+     * @param removed
+     *            count of data removed by holder since last indexed
+     * @return whether the key index matches the list
+     */
+    private boolean isIndexValid(int removed) {
+        if (mKeyExtractor == null || mIndex == null) {
+            return false;
+        }
+        return mIndexVersion >= 0
+                && getVersion() == mIndexVersion + removed;
+    }
+    
+    private void buildIndex() {
+        if (mIndex == null) {
+            mIndex = new HashMap<>();
+        }
+        else {
+            mIndex.clear();
+        }
+        mHeadSeq = 0;
+        mDuplicated = false;
+        int size = mDataList.size();
+        for (int i = 0; i < size; i++) {
+            Object key = mKeyExtractor.getKey(mDataList.get(i));
+            if (key == null) {
+                continue;
+            }
+            if (mIndex.containsKey(key)) {
+                mDuplicated = true;
+            }
+            else {
+                mIndex.put(key, i);
+            }
+        }
+        mIndexVersion = getVersion();
+    }
+    
+    private void invalidateIndex() {
+        mIndexVersion = -1;
+    }
+    
+    private int getVersion() {
+        if (mDataList instanceof RingArrayList) {
+            return ((RingArrayList<T>) mDataList).getVersion();
+        }
+        if (mDataList instanceof PagedList) {
+            return ((PagedList<T>) mDataList).getVersion();
+        }
+        return mVersion;
+    }
+    
     /**
      * Get this holder size
      * 
@@ -237,6 +473,10 @@ public class AfDataHolder<T> {
      */
     public List<T> getDataList() {
         checkDataList();
+        if (!(mDataList instanceof RingArrayList) && !(mDataList instanceof PagedList)) {
+            // a foreign list can't tell whether it is modified outside
+            invalidateIndex();
+        }
         return mDataList;
     }
     
@@ -250,11 +490,12 @@ public class AfDataHolder<T> {
         this.mDataList = list;
         checkDataList();
         mSize = mDataList.size();
+        invalidateIndex();
     }
     
     private void checkDataList() {
         if (mDataList == null) {
-            mDataList = new ArrayList<>(0);
+            mDataList = new RingArrayList<>();
         }
     }
 }
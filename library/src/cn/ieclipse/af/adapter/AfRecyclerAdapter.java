@@ -15,13 +15,27 @@
  */
 package cn.ieclipse.af.adapter;
 
+import android.annotation.TargetApi;
 import android.content.Context;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.support.v7.widget.RecyclerView;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * 类/接口描述
@@ -31,8 +45,57 @@ import java.util.List;
  */
 public abstract class AfRecyclerAdapter<T, VH extends AfViewHolder> extends RecyclerView.Adapter {
 
+    /**
+     * 所有adapter共用的diff线程
+     */
+    private static final ExecutorService sDiffExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "AfRecyclerAdapter-diff");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
     private AfDataHolder<T> mDataHolder = new AfDataHolder<>();
     private LayoutInflater mInflater;
+    private boolean mDiffEnabled = true;
+    /**
+     * 正在计算diff的新数据, 计算完成后替换mDataHolder中的数据
+     */
+    private List<T> mPendingList;
+    private Future<?> mDiffTask;
+    private int mDiffGeneration;
+    /**
+     * 待通知的更新位置, 每帧合并为range通知
+     */
+    private final BitSet mChangedPositions = new BitSet();
+    private boolean mChangeScheduled;
+    private final Runnable mDispatchChanges = new Runnable() {
+        @Override
+        public void run() {
+            mChangeScheduled = false;
+            dispatchPendingChanges();
+        }
+    };
+    /**
+     * key对应的stable id
+     */
+    private final HashMap<Object, Long> mStableIds = new HashMap<>();
+    private long mNextStableId;
+    private final ListDiff.Callback<T> mDiffCallback = new ListDiff.Callback<T>() {
+        @Override
+        public Object getKey(T item) {
+            return getItemKey(item);
+        }
+
+        @Override
+        public boolean areContentsTheSame(T oldItem, T newItem) {
+            return AfRecyclerAdapter.this.areContentsTheSame(oldItem, newItem);
+        }
+    };
 
     public AfRecyclerAdapter(Context context) {
         mInflater = LayoutInflater.from(context);
@@ -46,9 +109,272 @@ public abstract class AfRecyclerAdapter<T, VH extends AfViewHolder> extends Recy
         mDataHolder.setDataCheck(checkMode);
     }
 
+    /**
+     * Set the key extractor of data check, see {@link AfDataHolder#setKeyExtractor(AfDataHolder.KeyExtractor)}.
+     * The key is used as stable id only if {@link #setHasStableIds(boolean)} is called with true, see
+     * {@link #getItemId(int)}.
+     *
+     * @param extractor key extractor
+     */
+    public void setKeyExtractor(AfDataHolder.KeyExtractor<T> extractor) {
+        mDataHolder.setKeyExtractor(extractor);
+        mStableIds.clear();
+    }
+
+    /**
+     * 获取数据位置, 设置了{@link #setKeyExtractor(AfDataHolder.KeyExtractor)}时按key索引查找, O(1)
+     *
+     * @param data 数据
+     * @return 位置, 不存在时返回-1
+     */
+    public int indexOf(T data) {
+        return mDataHolder.indexOf(data);
+    }
+
+    /**
+     * 调用{@link #setHasStableIds(boolean)}开启后, 以{@link #getItemKey(Object)}作为stable id. key必须唯一,
+     * CHECK_NONE或不检查数据的添加不会去重, 相同的key会使两个位置的id相同, 需由调用者保证
+     *
+     * @param position 位置
+     * @return stable id, 未开启或没有key时为{@link RecyclerView#NO_ID}
+     */
+    @Override
+    public long getItemId(int position) {
+        if (!hasStableIds()) {
+            return RecyclerView.NO_ID;
+        }
+        T item = getItem(position);
+        Object key = item == null ? null : getItemKey(item);
+        if (key == null) {
+            return RecyclerView.NO_ID;
+        }
+        Long id = mStableIds.get(key);
+        if (id == null) {
+            if (mStableIds.size() > 2 * getItemCount() + 64) {
+                pruneStableIds();
+            }
+            id = mNextStableId++;
+            mStableIds.put(key, id);
+        }
+        return id;
+    }
+
+    /**
+     * 移除已不存在的key的id
+     */
+    private void pruneStableIds() {
+        HashMap<Object, Long> ids = new HashMap<>(mStableIds);
+        mStableIds.clear();
+        int count = getItemCount();
+        for (int i = 0; i < count; i++) {
+            T item = getItem(i);
+            if (item == null) {
+                continue;
+            }
+            Object key = getItemKey(item);
+            Long id = ids.get(key);
+            if (id != null) {
+                mStableIds.put(key, id);
+            }
+        }
+    }
+
+    /**
+     * 按key更新数据, 同一帧内的多次更新合并为一次{@link #notifyItemRangeChanged(int, int)},
+     * 适用于推送等频繁的局部更新
+     *
+     * @param data 新数据, 与已有数据的key相同
+     * @return 数据是否存在
+     * @see #indexOf(Object)
+     */
+    public boolean patchItem(T data) {
+        applyPendingList();
+        int idx = mDataHolder.indexOf(data);
+        if (idx < 0) {
+            return false;
+        }
+        mDataHolder.set(idx, data);
+        mChangedPositions.set(idx);
+        scheduleChanges();
+        return true;
+    }
+
+    /**
+     * 批量按key更新数据
+     *
+     * @param list 新数据
+     * @return 更新的数量
+     * @see #patchItem(Object)
+     */
+    public int patchItems(Collection<T> list) {
+        int count = 0;
+        if (list != null) {
+            for (T data : list) {
+                if (patchItem(data)) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void scheduleChanges() {
+        if (mChangeScheduled) {
+            return;
+        }
+        mChangeScheduled = true;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            FrameCallback.post(mDispatchChanges);
+        }
+        else {
+            sMainHandler.post(mDispatchChanges);
+        }
+    }
+
+    /**
+     * 通知合并的更新, 数据结构变化(增删)前调用, 使位置与当前数据一致
+     */
+    private void dispatchPendingChanges() {
+        int start = mChangedPositions.nextSetBit(0);
+        while (start >= 0) {
+            int end = mChangedPositions.nextClearBit(start);
+            notifyItemRangeChanged(start, end - start);
+            start = mChangedPositions.nextSetBit(end);
+        }
+        mChangedPositions.clear();
+    }
+
+    /**
+     * 设置数据, 与当前数据在后台线程中比较, 在主线程中按差异调用notifyItemRange*,
+     * 保留item动画且只重新绑定变化的item. 计算完成前再次设置数据时, 之前的计算被取消.
+     * <p>
+     * 计算完成前{@link #getDataList()}仍是当前数据. 数据被复制到adapter自己的list中, 之后修改传入的list(如缓存的结果)不影响adapter,
+     * 传入不可修改的list也可以继续添加数据
+     * </p>
+     * <p>
+     * 新数据或当前数据为{@link PagedList}时不计算差异, 避免读取所有页
+     * </p>
+     *
+     * @param list 新数据
+     * @see #setDiffEnabled(boolean)
+     */
     public void setDataList(List<T> list) {
-        mDataHolder.setDataList(list);
-        notifyDataSetChanged();
+        if (list == null) {
+            list = new RingArrayList<>();
+        }
+        else if (!(list instanceof PagedList)) {
+            // 不持有调用者的list, 之后的添加不修改它
+            list = new RingArrayList<>(list);
+        }
+        dispatchPendingChanges();
+        int count = mDataHolder.getCount();
+        boolean paged = list instanceof PagedList || isPaged();
+        if (!mDiffEnabled || paged || count == 0 || list.isEmpty()) {
+            cancelDiff();
+            mDataHolder.setDataList(list);
+            if (!mDiffEnabled || count > 0 && !list.isEmpty()) {
+                // a paged list is not copied to diff
+                notifyDataSetChanged();
+            }
+            else if (count > 0) {
+                notifyItemRangeRemoved(0, count);
+            }
+            else if (!list.isEmpty()) {
+                notifyItemRangeInserted(0, list.size());
+            }
+            return;
+        }
+        diffTo(list);
+    }
+
+    /**
+     * 是否在后台计算数据差异, 默认true; false时{@link #setDataList(List)}等调用notifyDataSetChanged
+     *
+     * @param enable 是否启用diff
+     */
+    public void setDiffEnabled(boolean enable) {
+        this.mDiffEnabled = enable;
+    }
+
+    /**
+     * 获取item的标识, diff时标识相同的item为同一个item, 默认使用{@link #setKeyExtractor(AfDataHolder.KeyExtractor)}
+     * 设置的key, 未设置时为item本身(equals/hashCode). 在diff线程中调用
+     *
+     * @param item 数据
+     * @return item标识
+     */
+    protected Object getItemKey(T item) {
+        AfDataHolder.KeyExtractor<T> extractor = mDataHolder.getKeyExtractor();
+        return extractor != null ? extractor.getKey(item) : item;
+    }
+
+    /**
+     * 同一个item的内容是否相同, 不同时重新绑定该item. 默认是否为同一个对象, 在diff线程中调用
+     *
+     * @param oldItem 当前数据
+     * @param newItem 新数据
+     * @return true 内容相同
+     */
+    protected boolean areContentsTheSame(T oldItem, T newItem) {
+        return oldItem == newItem;
+    }
+
+    private void diffTo(final List<T> list) {
+        cancelDiff();
+        final List<T> oldList = new ArrayList<>(mDataHolder.getDataList());
+        // list是setDataList中的副本, 只在主线程中应用后修改
+        final List<T> newList = list;
+        final int generation = mDiffGeneration;
+        mPendingList = list;
+        mDiffTask = sDiffExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                final ListDiff.Result result = ListDiff.compute(oldList, newList, mDiffCallback);
+                if (result == null) {
+                    // cancelled by newer data
+                    return;
+                }
+                sMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation != mDiffGeneration) {
+                            return;
+                        }
+                        mPendingList = null;
+                        mDiffTask = null;
+                        dispatchPendingChanges();
+                        mDataHolder.setDataList(list);
+                        result.dispatchTo(AfRecyclerAdapter.this);
+                    }
+                });
+            }
+        });
+    }
+
+    private void cancelDiff() {
+        mDiffGeneration++;
+        if (mDiffTask != null) {
+            mDiffTask.cancel(true);
+            mDiffTask = null;
+        }
+        mPendingList = null;
+    }
+
+    /**
+     * 直接修改数据前, 立即应用正在计算diff的数据
+     */
+    private void applyPendingList() {
+        if (mPendingList != null) {
+            List<T> list = mPendingList;
+            cancelDiff();
+            mChangedPositions.clear();
+            mDataHolder.setDataList(list);
+            notifyDataSetChanged();
+        }
+    }
+
+    private boolean isPaged() {
+        return mDataHolder.getDataList() instanceof PagedList;
     }
 
     public List<T> getDataList() {
@@ -56,37 +382,125 @@ public abstract class AfRecyclerAdapter<T, VH extends AfViewHolder> extends Recy
     }
 
     public void add(T data) {
+        applyPendingList();
+        dispatchPendingChanges();
+        int count = mDataHolder.getCount();
         mDataHolder.add(data);
-        notifyItemInserted(mDataHolder.getCount());
+        notifyAdded(data, count, count);
     }
 
     public void add2Top(T data) {
+        applyPendingList();
+        dispatchPendingChanges();
+        int count = mDataHolder.getCount();
         mDataHolder.add2Top(data);
-        notifyItemInserted(0);
+        notifyAdded(data, count, 0);
+    }
+
+    private void notifyAdded(T data, int count, int position) {
+        if (mDataHolder.getCount() > count) {
+            notifyItemInserted(position);
+        }
+        else if (data != null) {
+            // 已存在, 替换
+            int idx = mDataHolder.indexOf(data);
+            if (idx >= 0) {
+                notifyItemChanged(idx);
+            }
+        }
     }
 
     public void add2Top(List<T> list) {
+        if (list == null || list.isEmpty()) {
+            return;
+        }
+        applyPendingList();
+        dispatchPendingChanges();
+        int count = mDataHolder.getCount();
+        int[] existing = findExisting(list, AfDataHolder.CHECK_TOP);
         mDataHolder.addAll2Top(list);
-        notifyDataSetChanged();
+        notifyRange(0, count);
+        // 已存在的数据被替换, 位置后移了新增的数量
+        notifyReplaced(existing, mDataHolder.getCount() - count);
     }
 
     public void addAll(List<T> list) {
+        if (list == null || list.isEmpty()) {
+            return;
+        }
+        applyPendingList();
+        dispatchPendingChanges();
+        int count = mDataHolder.getCount();
+        int[] existing = findExisting(list, AfDataHolder.CHECK_TAIL);
         mDataHolder.addAll(list);
-        notifyDataSetChanged();
+        notifyRange(count, count);
+        notifyReplaced(existing, 0);
+    }
+
+    /**
+     * 设置数据检查时, 查找添加前已存在(将被替换)的数据位置, 设置了key时为O(1)
+     *
+     * @param list  要添加的数据
+     * @param check 检查模式
+     * @return 已存在的位置, 没有检查时为null
+     */
+    private int[] findExisting(List<T> list, int check) {
+        if ((mDataHolder.getDataCheck() & check) == 0 || !mDiffEnabled || mDataHolder.getCount() == 0) {
+            return null;
+        }
+        int[] positions = new int[list.size()];
+        int size = 0;
+        for (T t : list) {
+            int idx = t == null ? -1 : mDataHolder.indexOf(t);
+            if (idx >= 0) {
+                positions[size++] = idx;
+            }
+        }
+        return size == 0 ? null : Arrays.copyOf(positions, size);
+    }
+
+    private void notifyReplaced(int[] positions, int offset) {
+        if (positions == null || !mDiffEnabled) {
+            return;
+        }
+        for (int position : positions) {
+            notifyItemChanged(position + offset);
+        }
+    }
+
+    private void notifyRange(int position, int count) {
+        int added = mDataHolder.getCount() - count;
+        if (!mDiffEnabled) {
+            notifyDataSetChanged();
+        }
+        else if (added > 0) {
+            notifyItemRangeInserted(position, added);
+        }
     }
 
     public void updateItem(int position, T data) {
-        mDataHolder.getDataList().set(position, data);
+        applyPendingList();
+        mDataHolder.set(position, data);
         notifyItemChanged(position);
         //notifyItemChanged(msg.arg1, msg.obj);
     }
 
     public void clearData() {
+        cancelDiff();
+        mChangedPositions.clear();
+        int count = mDataHolder.getCount();
         mDataHolder.clear();
-        notifyDataSetChanged();
+        if (mDiffEnabled && count > 0) {
+            notifyItemRangeRemoved(0, count);
+        }
+        else {
+            notifyDataSetChanged();
+        }
     }
 
     public void clear() {
+        cancelDiff();
+        mChangedPositions.clear();
         mDataHolder.clear();
     }
 
@@ -100,6 +514,8 @@ public abstract class AfRecyclerAdapter<T, VH extends AfViewHolder> extends Recy
      * @param position
      */
     public void deleteItemData(int position) {
+        applyPendingList();
+        dispatchPendingChanges();
         mDataHolder.remove(position);
         // 删除后不为空，更新item
         if (mDataHolder.getCount() > 0) {
@@ -129,6 +545,9 @@ public abstract class AfRecyclerAdapter<T, VH extends AfViewHolder> extends Recy
         // 绑定数据
         try {
             onUpdateView(holder, getItem(position), position);
+        } catch (PagedList.PageLoadException e) {
+            // 数据读取失败不能显示为空行
+            throw e;
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -169,4 +588,25 @@ public abstract class AfRecyclerAdapter<T, VH extends AfViewHolder> extends Recy
         this.mOnItemLongClickLitener = mOnItemLongClickLitener;
     }
     //-------------------设置监听-end---------------------//
+
+    /**
+     * 单独的类, API 16以下不会加载Choreographer
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static final class FrameCallback implements Choreographer.FrameCallback {
+        private final Runnable mRunnable;
+
+        private FrameCallback(Runnable runnable) {
+            this.mRunnable = runnable;
+        }
+
+        static void post(Runnable runnable) {
+            Choreographer.getInstance().postFrameCallback(new FrameCallback(runnable));
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mRunnable.run();
+        }
+    }
 }
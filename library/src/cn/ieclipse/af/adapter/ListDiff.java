@@ -0,0 +1,344 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.adapter;
+
+import android.support.v7.widget.RecyclerView;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Computes the update script of two lists of keyed items.
+ * <p>
+ * The items are matched by key ({@link Callback#getKey(Object)}): the old
+ * items not in the new list are removed, the new items not in the old list
+ * are inserted, the kept items not in the longest increasing subsequence of
+ * their new positions are moved (so the count of moves is minimal), and the
+ * kept items with different contents are changed. It costs O(n log n) for
+ * the usual updates, only the moves cost O(n) each.
+ * </p>
+ * <p>
+ * The script is a sequence of ranges relative to the list state at the time
+ * the update is dispatched, as {@link RecyclerView.Adapter} requires, see
+ * {@link Result#dispatchTo(RecyclerView.Adapter)}.
+ * </p>
+ *
+ * @author Jamling
+ * @date 2015/10/30.
+ */
+public final class ListDiff {
+    /**
+     * Moving more items than it is a full refresh
+     */
+    private static final int MAX_MOVES = 256;
+
+    private static final int OP_REMOVE = 0;
+    private static final int OP_MOVE = 1;
+    private static final int OP_INSERT = 2;
+    private static final int OP_CHANGE = 3;
+
+    /**
+     * Item identity and contents of the diff, called in the thread computing
+     * the diff.
+     */
+    public interface Callback<T> {
+        /**
+         * Get the key of item, the items with equal keys are the same item.
+         *
+         * @param item
+         *            item
+         * @return key, null means the item is never the same as others
+         */
+        Object getKey(T item);
+
+        /**
+         * Whether the contents of the same item are not changed.
+         *
+         * @param oldItem
+         *            item of old list
+         * @param newItem
+         *            item of new list
+         * @return true if the item needn't to rebind
+         */
+        boolean areContentsTheSame(T oldItem, T newItem);
+    }
+
+    private ListDiff() {
+    }
+
+    /**
+     * Compute the update script from old list to new list.
+     *
+     * @param oldList
+     *            old list
+     * @param newList
+     *            new list
+     * @param callback
+     *            the item callback
+     * @return update script, or null if the thread is interrupted
+     */
+    public static <T> Result compute(List<T> oldList, List<T> newList, Callback<T> callback) {
+        int n = oldList.size();
+        int m = newList.size();
+        HashMap<Object, Integer> newPositions = new HashMap<>(m * 4 / 3 + 1);
+        for (int j = 0; j < m; j++) {
+            Object key = callback.getKey(newList.get(j));
+            if (key != null && newPositions.put(key, j) != null) {
+                // duplicated keys can't be matched
+                return Result.FULL;
+            }
+        }
+        int[] oldToNew = new int[n];
+        int[] newToOld = new int[m];
+        Arrays.fill(newToOld, -1);
+        int kept = 0;
+        for (int i = 0; i < n; i++) {
+            Object key = callback.getKey(oldList.get(i));
+            Integer j = key == null ? null : newPositions.get(key);
+            if (j == null) {
+                oldToNew[i] = -1;
+                continue;
+            }
+            if (newToOld[j] >= 0) {
+                return Result.FULL;
+            }
+            oldToNew[i] = j;
+            newToOld[j] = i;
+            kept++;
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            return null;
+        }
+        Result result = new Result();
+        // removes, from the tail so the positions are not shifted
+        for (int i = n - 1; i >= 0; ) {
+            if (oldToNew[i] >= 0) {
+                i--;
+                continue;
+            }
+            int end = i;
+            while (i >= 0 && oldToNew[i] < 0) {
+                i--;
+            }
+            result.add(OP_REMOVE, i + 1, end - i);
+        }
+        // kept items in old order, the ones out of the LIS are moved
+        int[] current = new int[kept];
+        for (int i = 0, k = 0; i < n; i++) {
+            if (oldToNew[i] >= 0) {
+                current[k++] = oldToNew[i];
+            }
+        }
+        boolean[] stable = new boolean[m];
+        int moves = kept - markLis(current, stable);
+        if (moves > MAX_MOVES) {
+            return Result.FULL;
+        }
+        int pred = -1;
+        for (int j = 0; j < m; j++) {
+            if (newToOld[j] < 0) {
+                continue;
+            }
+            if (!stable[j]) {
+                // move right after the predecessor in new order
+                int from = indexOf(current, kept, j);
+                int to = pred < 0 ? 0 : indexOf(current, kept, pred) + 1;
+                if (from < to) {
+                    to--;
+                }
+                if (from != to) {
+                    move(current, from, to);
+                    result.add(OP_MOVE, from, to);
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    return null;
+                }
+            }
+            pred = j;
+        }
+        // inserts, positions before are final
+        for (int j = 0; j < m; ) {
+            if (newToOld[j] >= 0) {
+                j++;
+                continue;
+            }
+            int start = j;
+            while (j < m && newToOld[j] < 0) {
+                j++;
+            }
+            result.add(OP_INSERT, start, j - start);
+        }
+        // changes, in the final positions
+        int start = -1;
+        for (int j = 0; j <= m; j++) {
+            boolean changed = j < m && newToOld[j] >= 0
+                && !callback.areContentsTheSame(oldList.get(newToOld[j]), newList.get(j));
+            if (changed && start < 0) {
+                start = j;
+            }
+            else if (!changed && start >= 0) {
+                result.add(OP_CHANGE, start, j - start);
+                start = -1;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Mark the longest increasing subsequence of values.
+     *
+     * @return the length of the subsequence
+     */
+    private static int markLis(int[] values, boolean[] marks) {
+        int len = values.length;
+        if (len == 0) {
+            return 0;
+        }
+        // tails[k]: index of the smallest tail of increasing subsequences of length k + 1
+        int[] tails = new int[len];
+        int[] prev = new int[len];
+        int size = 0;
+        for (int i = 0; i < len; i++) {
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (values[tails[mid]] < values[i]) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+            prev[i] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = i;
+            if (lo == size) {
+                size++;
+            }
+        }
+        for (int i = tails[size - 1]; i >= 0; i = prev[i]) {
+            marks[values[i]] = true;
+        }
+        return size;
+    }
+
+    private static int indexOf(int[] values, int size, int value) {
+        for (int i = 0; i < size; i++) {
+            if (values[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void move(int[] values, int from, int to) {
+        int value = values[from];
+        if (from < to) {
+            System.arraycopy(values, from + 1, values, from, to - from);
+        }
+        else {
+            System.arraycopy(values, to, values, to + 1, from - to);
+        }
+        values[to] = value;
+    }
+
+    /**
+     * The update script.
+     */
+    public static final class Result {
+        /**
+         * The lists can't be matched, refresh all.
+         */
+        static final Result FULL = new Result();
+
+        private int[] mOps = new int[24];
+        private int mSize;
+
+        private void add(int op, int a, int b) {
+            if (mSize + 3 > mOps.length) {
+                mOps = Arrays.copyOf(mOps, mOps.length * 2);
+            }
+            mOps[mSize++] = op;
+            mOps[mSize++] = a;
+            mOps[mSize++] = b;
+        }
+
+        /**
+         * @return true if the update is a full refresh
+         */
+        public boolean isFull() {
+            return this == FULL;
+        }
+
+        /**
+         * @return true if no item is updated
+         */
+        public boolean isEmpty() {
+            return this != FULL && mSize == 0;
+        }
+
+        /**
+         * Dispatch the update to adapter, the adapter data must be changed to
+         * the new list before.
+         *
+         * @param adapter
+         *            adapter
+         */
+        public void dispatchTo(RecyclerView.Adapter<?> adapter) {
+            if (isFull()) {
+                adapter.notifyDataSetChanged();
+                return;
+            }
+            for (int i = 0; i < mSize; i += 3) {
+                int a = mOps[i + 1];
+                int b = mOps[i + 2];
+                switch (mOps[i]) {
+                    case OP_REMOVE:
+                        adapter.notifyItemRangeRemoved(a, b);
+                        break;
+                    case OP_MOVE:
+                        adapter.notifyItemMoved(a, b);
+                        break;
+                    case OP_INSERT:
+                        adapter.notifyItemRangeInserted(a, b);
+                        break;
+                    case OP_CHANGE:
+                        adapter.notifyItemRangeChanged(a, b);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            if (isFull()) {
+                return "full";
+            }
+            StringBuilder sb = new StringBuilder();
+            String[] names = {"remove", "move", "insert", "change"};
+            for (int i = 0; i < mSize; i += 3) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(names[mOps[i]]).append('(').append(mOps[i + 1]).append(',').append(mOps[i + 2]).append(')');
+            }
+            return sb.toString();
+        }
+    }
+}
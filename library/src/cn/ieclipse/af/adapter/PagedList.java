@@ -0,0 +1,1019 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.adapter;
+
+import com.google.gson.TypeAdapter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import cn.ieclipse.af.volley.TypeAdapterRegistry;
+
+/**
+ * Random access list keeping only a window of its items in memory.
+ * <p>
+ * The items are held in fixed-size pages, at most {@code maxPages} pages are
+ * resident and the least recently accessed page is evicted first. As an
+ * adapter only gets the items around the visible range, the resident window
+ * follows the scrolling. An evicted page is either
+ * <ul>
+ * <li>spilled to a file by a {@link Codec}, and read back when one of its
+ * items is accessed again, see {@link #PagedList(File, Codec, int, int)}. A
+ * page not modified since it was read is not written again. The file is
+ * compacted when more than half of it is stale. Or</li>
+ * <li>dropped, and reloaded from a {@link PageSource} such as a database, see
+ * {@link #PagedList(PageSource, int, int, int)}. Such a list is read only,
+ * call {@link #setSize(int)} when the source size is changed.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * The file is only written and read in a background thread shared by all the
+ * lists: an evicted page is still served from memory until it is written,
+ * and accessing a page prefetches its neighbours, so scrolling finds the next
+ * page resident. Only a page neither prefetched nor in memory, e.g. after a
+ * jump, is waited for in the accessing thread, see {@link #getMissCount()}.
+ * A page which can't be read throws {@link PageLoadException}, the adapters
+ * don't swallow it. Set an {@link OnErrorListener} to be told the I/O
+ * failures, including the spill failures, after which the pages are kept in
+ * memory.
+ * </p>
+ * <p>
+ * Set it as the data list of {@link AfRecyclerAdapter} or
+ * {@link AfBaseAdapter} by {@code setDataList()}, the items are got through
+ * the usual getItem()/getCount(). Adding to the head and the tail is O(1),
+ * an insertion or a removal in the middle rewrites all the items after it.
+ * Whole list operations such as the data check of {@link AfDataHolder} or
+ * {@link #indexOf(Object)} read every page. The list is not thread safe,
+ * use it in the main thread like the adapter data, the items must not be
+ * modified after added as they are written in the background. Call
+ * {@link #close()} to delete the file when the list is no longer used.
+ * </p>
+ *
+ * @author Jamling
+ * @date 2015/10/30.
+ */
+public class PagedList<E> extends AbstractList<E> implements RandomAccess {
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int DEFAULT_MAX_PAGES = 6;
+    /**
+     * The stale bytes of file before compacting
+     */
+    private static final long COMPACT_THRESHOLD = 1 << 20;
+
+    /**
+     * The I/O thread of all lists
+     */
+    private static final ExecutorService sIoExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "PagedList-io");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    /**
+     * Write and read the spilled items, called in the I/O thread.
+     */
+    public interface Codec<E> {
+        /**
+         * Write an item, the item is not null.
+         *
+         * @param out
+         *            output
+         * @param item
+         *            item
+         * @throws IOException
+         *             if the item can't be written
+         */
+        void write(DataOutput out, E item) throws IOException;
+
+        /**
+         * Read an item written by {@link #write(DataOutput, Object)}.
+         *
+         * @param in
+         *            input
+         * @return item
+         * @throws IOException
+         *             if the item can't be read
+         */
+        E read(DataInput in) throws IOException;
+    }
+
+    /**
+     * Load the items of dropped pages.
+     */
+    public interface PageSource<E> {
+        /**
+         * Load the items of range, called in the I/O thread to prefetch and
+         * in the thread accessing the list on a miss, so it must be thread
+         * safe and fast, e.g. a local query.
+         *
+         * @param position
+         *            the first position
+         * @param count
+         *            item count
+         * @return the items of range
+         */
+        List<E> load(int position, int count);
+    }
+
+    /**
+     * Listen to the I/O failures of the list.
+     */
+    public interface OnErrorListener {
+        /**
+         * Called in the thread accessing the list when a page can't be
+         * spilled, then the pages are kept in memory, or a page can't be
+         * read, then {@link PageLoadException} is thrown after.
+         *
+         * @param list
+         *            the list
+         * @param e
+         *            the failure
+         */
+        void onError(PagedList<?> list, IOException e);
+    }
+
+    /**
+     * Thrown by the accessing methods when a page can't be read back.
+     */
+    public static class PageLoadException extends RuntimeException {
+        public PageLoadException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * The {@link Codec} writes the items in JSON, by the type adapter of
+     * {@link TypeAdapterRegistry}.
+     */
+    public static class GsonCodec<E> implements Codec<E> {
+        private final TypeAdapter<E> mAdapter;
+
+        public GsonCodec(Class<E> clazz) {
+            mAdapter = TypeAdapterRegistry.getAdapter(clazz);
+        }
+
+        @Override
+        public void write(DataOutput out, E item) throws IOException {
+            byte[] bytes = mAdapter.toJson(item).getBytes("UTF-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        @Override
+        public E read(DataInput in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return mAdapter.fromJson(new String(bytes, "UTF-8"));
+        }
+    }
+
+    private static final class Page {
+        final Object[] items;
+        /**
+         * Modified since written to file
+         */
+        boolean dirty;
+
+        Page(int size) {
+            items = new Object[size];
+        }
+    }
+
+    /**
+     * Result of a background write or prefetch
+     */
+    private static final class IoResult {
+        final boolean write;
+        final int page;
+        final int generation;
+        final int version;
+        final Page data;
+        final IOException error;
+
+        IoResult(boolean write, int page, int generation, int version, Page data, IOException error) {
+            this.write = write;
+            this.page = page;
+            this.generation = generation;
+            this.version = version;
+            this.data = data;
+            this.error = error;
+        }
+    }
+
+    private final int mPageSize;
+    private final int mMaxPages;
+    private final Codec<E> mCodec;
+    private final PageSource<E> mSource;
+    private final File mDir;
+    /**
+     * Resident pages in access order, key is page number
+     */
+    private final LinkedHashMap<Integer, Page> mPages;
+    /**
+     * Evicted pages being written, still readable
+     */
+    private final HashMap<Integer, Page> mWriting = new HashMap<>();
+    /**
+     * Pages read in the background, not accessed yet
+     */
+    private final HashMap<Integer, Page> mPrefetched = new HashMap<>();
+    /**
+     * Pages being prefetched
+     */
+    private final HashSet<Integer> mLoading = new HashSet<>();
+    /**
+     * Pages written or being written to file, to the version of the last
+     * write. The writes and the reads run in order in the I/O thread, so a
+     * read sees the last write submitted before it.
+     */
+    private final HashMap<Integer, Integer> mOnDisk = new HashMap<>();
+    /**
+     * Results of the I/O thread, consumed by the accessing thread
+     */
+    private final ConcurrentLinkedQueue<IoResult> mResults = new ConcurrentLinkedQueue<>();
+    /**
+     * The spill file, only used in the I/O thread
+     */
+    private final SpillFile mSpill;
+    private OnErrorListener mErrorListener;
+    private boolean mSpillFailed;
+    private int mWriteCount;
+    /**
+     * Changed when the pages are dropped, the I/O results of the former
+     * generation are ignored
+     */
+    private int mGeneration;
+    /**
+     * Slot of position 0, the slot of position i is mHead + i, it decreases
+     * when adding to the head so the pages needn't to be renumbered.
+     */
+    private int mHead;
+    private int mSize;
+    private int mVersion;
+    private int mLoadCount;
+    private int mMissCount;
+
+    /**
+     * Create a list spilling the evicted pages to a file in dir.
+     *
+     * @param dir
+     *            the directory of the spill file, e.g. Context.getCacheDir()
+     * @param codec
+     *            item codec
+     */
+    public PagedList(File dir, Codec<E> codec) {
+        this(dir, codec, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES);
+    }
+
+    /**
+     * Create a list spilling the evicted pages to a file in dir.
+     *
+     * @param dir
+     *            the directory of the spill file, e.g. Context.getCacheDir()
+     * @param codec
+     *            item codec
+     * @param pageSize
+     *            item count of a page
+     * @param maxPages
+     *            the most resident pages, at least 2
+     */
+    public PagedList(File dir, Codec<E> codec, int pageSize, int maxPages) {
+        this(dir, codec, null, pageSize, maxPages);
+        if (dir == null || codec == null) {
+            throw new IllegalArgumentException("dir and codec can't be null");
+        }
+    }
+
+    /**
+     * Create a read only list dropping the evicted pages and reloading them
+     * from source.
+     *
+     * @param source
+     *            the source of items
+     * @param size
+     *            item count of source
+     * @param pageSize
+     *            item count of a page
+     * @param maxPages
+     *            the most resident pages, at least 2
+     */
+    public PagedList(PageSource<E> source, int size, int pageSize, int maxPages) {
+        this(null, null, source, pageSize, maxPages);
+        if (source == null) {
+            throw new IllegalArgumentException("source can't be null");
+        }
+        mSize = Math.max(size, 0);
+    }
+
+    private PagedList(File dir, Codec<E> codec, PageSource<E> source, int pageSize, int maxPages) {
+        if (pageSize <= 0 || maxPages < 2) {
+            throw new IllegalArgumentException("pageSize must be positive and maxPages at least 2");
+        }
+        mDir = dir;
+        mCodec = codec;
+        mSource = source;
+        mPageSize = pageSize;
+        mMaxPages = maxPages;
+        mPages = new LinkedHashMap<>(maxPages * 2, 0.75f, true);
+        mSpill = source == null ? new SpillFile() : null;
+    }
+
+    public void setOnErrorListener(OnErrorListener listener) {
+        mErrorListener = listener;
+    }
+
+    /**
+     * Get the version of the list, it is changed by every modification,
+     * including {@link #set(int, Object)}, as
+     * {@link RingArrayList#getVersion()}.
+     *
+     * @return version
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * @return count of pages in memory
+     */
+    public int getResidentPageCount() {
+        return mPages.size();
+    }
+
+    /**
+     * @return count of pages read from file or source since created
+     */
+    public int getLoadCount() {
+        return mLoadCount;
+    }
+
+    /**
+     * @return count of pages not prefetched, read in the accessing thread
+     */
+    public int getMissCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E get(int index) {
+        checkIndex(index, mSize);
+        int slot = mHead + index;
+        int page = pageOf(slot);
+        return (E) getPage(page).items[slot - page * mPageSize];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E set(int index, E element) {
+        checkWritable();
+        checkIndex(index, mSize);
+        int slot = mHead + index;
+        int page = pageOf(slot);
+        Page p = getPage(page);
+        int offset = slot - page * mPageSize;
+        E old = (E) p.items[offset];
+        p.items[offset] = element;
+        p.dirty = true;
+        mVersion++;
+        return old;
+    }
+
+    @Override
+    public boolean add(E element) {
+        checkWritable();
+        put(mHead + mSize, element);
+        mSize++;
+        modCount++;
+        mVersion++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        checkWritable();
+        checkIndex(index, mSize + 1);
+        if (index == mSize) {
+            add(element);
+        }
+        else if (index == 0) {
+            put(mHead - 1, element);
+            mHead--;
+            mSize++;
+            modCount++;
+            mVersion++;
+        }
+        else {
+            // shift the items after index
+            add(get(mSize - 1));
+            for (int i = mSize - 2; i > index; i--) {
+                set(i, get(i - 1));
+            }
+            set(index, element);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public boolean addAll(int index, Collection<? extends E> c) {
+        checkWritable();
+        checkIndex(index, mSize + 1);
+        if (c.isEmpty()) {
+            return false;
+        }
+        if (index == 0 && mSize > 0) {
+            Object[] items = c.toArray();
+            for (int i = items.length - 1; i >= 0; i--) {
+                add(0, (E) items[i]);
+            }
+            return true;
+        }
+        return super.addAll(index, c);
+    }
+
+    @Override
+    public E remove(int index) {
+        checkWritable();
+        checkIndex(index, mSize);
+        E old = get(index);
+        if (index > 0 && index < mSize - 1) {
+            // shift the items after index
+            for (int i = index; i < mSize - 1; i++) {
+                set(i, get(i + 1));
+            }
+            index = mSize - 1;
+        }
+        int slot = mHead + index;
+        int page = pageOf(slot);
+        Page p = getPage(page);
+        p.items[slot - page * mPageSize] = null;
+        p.dirty = true;
+        if (index == 0) {
+            mHead++;
+        }
+        mSize--;
+        modCount++;
+        mVersion++;
+        if (mSize == 0) {
+            clear();
+        }
+        else if (!hasItems(page)) {
+            mPages.remove(page);
+            mWriting.remove(page);
+            mPrefetched.remove(page);
+            if (mOnDisk.remove(page) != null) {
+                discardSpilled(page);
+            }
+        }
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        dropPages();
+        if (mSpill != null) {
+            mOnDisk.clear();
+            sIoExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSpill.clear();
+                }
+            });
+        }
+        mHead = 0;
+        mSize = 0;
+        modCount++;
+        mVersion++;
+    }
+
+    /**
+     * Change the size of a list created by
+     * {@link #PagedList(PageSource, int, int, int)} when the source is
+     * changed, the pages after the common part are reloaded.
+     *
+     * @param size
+     *            item count of source
+     */
+    public void setSize(int size) {
+        if (mSource == null) {
+            throw new UnsupportedOperationException("Only the list of source can be resized");
+        }
+        size = Math.max(size, 0);
+        int last = pageOf(Math.min(mSize, size));
+        Iterator<Integer> it = mPages.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next() >= last) {
+                it.remove();
+            }
+        }
+        // the prefetched ones may be loaded before the change
+        mPrefetched.clear();
+        mLoading.clear();
+        mGeneration++;
+        mSize = size;
+        modCount++;
+        mVersion++;
+    }
+
+    /**
+     * Drop all the resident pages of a list created by
+     * {@link #PagedList(PageSource, int, int, int)}, they are reloaded from
+     * the source when accessed.
+     */
+    public void invalidate() {
+        if (mSource == null) {
+            throw new UnsupportedOperationException("Only the list of source can be invalidated");
+        }
+        dropPages();
+        mVersion++;
+    }
+
+    /**
+     * Release the pages and delete the spill file, the list is empty after.
+     */
+    public void close() {
+        clear();
+        if (mSpill != null) {
+            sIoExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    mSpill.close();
+                }
+            });
+        }
+    }
+
+    private void dropPages() {
+        mPages.clear();
+        mWriting.clear();
+        mPrefetched.clear();
+        mLoading.clear();
+        mResults.clear();
+        mGeneration++;
+    }
+
+    private void put(int slot, E element) {
+        drain();
+        int page = pageOf(slot);
+        Page p = mPages.get(page);
+        if (p == null) {
+            // every page with items is resident or spilled
+            p = takePage(page);
+            if (p == null) {
+                p = mOnDisk.containsKey(page) ? readNow(page) : new Page(mPageSize);
+            }
+            mPages.put(page, p);
+        }
+        p.items[slot - page * mPageSize] = element;
+        p.dirty = true;
+        trim(page);
+    }
+
+    private Page getPage(int page) {
+        drain();
+        Page p = mPages.get(page);
+        if (p == null) {
+            p = takePage(page);
+            if (p == null) {
+                p = mSource != null ? loadNow(page) : readNow(page);
+            }
+            mPages.put(page, p);
+            trim(page);
+        }
+        prefetch(page - 1);
+        prefetch(page + 1);
+        return p;
+    }
+
+    /**
+     * Take a page being written or prefetched back, the one being written is
+     * kept until written, to be restored if the write fails
+     */
+    private Page takePage(int page) {
+        Page p = mWriting.get(page);
+        if (p == null) {
+            p = mPrefetched.remove(page);
+        }
+        return p;
+    }
+
+    /**
+     * Evict the least recently used pages out of the window, and drop the
+     * prefetched pages the access moved away from
+     */
+    private void trim(int current) {
+        Iterator<Map.Entry<Integer, Page>> it = mPages.entrySet().iterator();
+        while (mPages.size() > mMaxPages && it.hasNext()) {
+            Map.Entry<Integer, Page> entry = it.next();
+            if (mSource == null && !spill(entry.getKey(), entry.getValue())) {
+                // keep in memory
+                break;
+            }
+            it.remove();
+        }
+        Iterator<Integer> prefetched = mPrefetched.keySet().iterator();
+        while (prefetched.hasNext()) {
+            if (Math.abs(prefetched.next() - current) > 1) {
+                prefetched.remove();
+            }
+        }
+    }
+
+    private boolean spill(final int page, final Page p) {
+        if (!p.dirty && mOnDisk.containsKey(page)) {
+            return true;
+        }
+        if (mSpillFailed) {
+            return false;
+        }
+        // the items are immutable, a copy of the array is written
+        final Object[] items = p.items.clone();
+        final int generation = mGeneration;
+        final int version = ++mWriteCount;
+        mOnDisk.put(page, version);
+        mWriting.put(page, p);
+        p.dirty = false;
+        sIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                IOException error = null;
+                try {
+                    mSpill.write(page, items);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException(e);
+                }
+                if (error != null) {
+                    // no stale copy left to be read
+                    mSpill.discard(page);
+                }
+                mResults.add(new IoResult(true, page, generation, version, p, error));
+            }
+        });
+        return true;
+    }
+
+    private void prefetch(final int page) {
+        if (!hasItems(page) || mPages.containsKey(page) || mWriting.containsKey(page)
+            || mPrefetched.containsKey(page) || mLoading.contains(page)) {
+            return;
+        }
+        final int generation = mGeneration;
+        final int version;
+        final int start = page * mPageSize;
+        final int count = Math.min(mPageSize, mSize - start);
+        if (mSource == null) {
+            Integer v = mOnDisk.get(page);
+            if (v == null) {
+                return;
+            }
+            version = v;
+        }
+        else {
+            version = 0;
+        }
+        mLoading.add(page);
+        sIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Page p = null;
+                IOException error = null;
+                try {
+                    p = mSource != null ? loadItems(start, count) : mSpill.read(page);
+                } catch (IOException e) {
+                    error = e;
+                } catch (RuntimeException e) {
+                    error = new IOException(e);
+                }
+                mResults.add(new IoResult(false, page, generation, version, p, error));
+            }
+        });
+    }
+
+    /**
+     * Consume the results of the I/O thread
+     */
+    private void drain() {
+        IoResult r;
+        while ((r = mResults.poll()) != null) {
+            if (r.generation != mGeneration) {
+                continue;
+            }
+            boolean pending = r.write && mWriting.get(r.page) == r.data;
+            if (r.write && r.error == null) {
+                if (pending && isCurrent(r.page, r.version)) {
+                    mWriting.remove(r.page);
+                }
+            }
+            else if (r.write) {
+                // out of disk, keep all in memory
+                r.error.printStackTrace();
+                mSpillFailed = true;
+                r.data.dirty = true;
+                if (isCurrent(r.page, r.version)) {
+                    mOnDisk.remove(r.page);
+                }
+                if (pending) {
+                    mWriting.remove(r.page);
+                    if (!mPages.containsKey(r.page)) {
+                        mPages.put(r.page, r.data);
+                    }
+                }
+                notifyError(r.error);
+            }
+            else {
+                mLoading.remove(r.page);
+                // a failed prefetch is read again and reported on access
+                if (r.error == null && hasItems(r.page) && !mPages.containsKey(r.page)
+                    && !mWriting.containsKey(r.page) && (mSource != null || isCurrent(r.page, r.version))) {
+                    mPrefetched.put(r.page, r.data);
+                    mLoadCount++;
+                }
+            }
+        }
+    }
+
+    private boolean isCurrent(int page, int version) {
+        Integer v = mOnDisk.get(page);
+        return v != null && v == version;
+    }
+
+    /**
+     * Read a spilled page in the accessing thread, through the I/O thread
+     * after the pending writes
+     */
+    private Page readNow(final int page) {
+        if (!mOnDisk.containsKey(page)) {
+            throw new IllegalStateException("Page " + page + " is lost");
+        }
+        Future<Page> future = sIoExecutor.submit(new Callable<Page>() {
+            @Override
+            public Page call() throws Exception {
+                return mSpill.read(page);
+            }
+        });
+        IOException error;
+        try {
+            Page p = future.get();
+            mLoadCount++;
+            mMissCount++;
+            return p;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = new InterruptedIOException("Interrupted reading page " + page);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            error = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+        notifyError(error);
+        throw new PageLoadException("Can't read page " + page, error);
+    }
+
+    private Page loadNow(int page) {
+        int start = page * mPageSize;
+        Page p = loadItems(start, Math.min(mPageSize, mSize - start));
+        mLoadCount++;
+        mMissCount++;
+        return p;
+    }
+
+    private Page loadItems(int start, int count) {
+        Page p = new Page(mPageSize);
+        List<E> items = mSource.load(start, count);
+        if (items != null) {
+            for (int i = 0; i < count && i < items.size(); i++) {
+                p.items[i] = items.get(i);
+            }
+        }
+        return p;
+    }
+
+    private void discardSpilled(final int page) {
+        sIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                mSpill.discard(page);
+            }
+        });
+    }
+
+    private void notifyError(IOException e) {
+        if (mErrorListener != null) {
+            mErrorListener.onError(this, e);
+        }
+    }
+
+    /**
+     * The spilled pages, only used in the I/O thread
+     */
+    private final class SpillFile {
+        /**
+         * Spilled pages, page number to {offset, length} in file
+         */
+        private final HashMap<Integer, long[]> mSpilled = new HashMap<>();
+        private File mFile;
+        private RandomAccessFile mRaf;
+        private long mFileLength;
+        private long mStale;
+
+        void write(int page, Object[] items) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream(mPageSize * 64);
+            DataOutputStream out = new DataOutputStream(bos);
+            for (Object item : items) {
+                out.writeBoolean(item != null);
+                if (item != null) {
+                    @SuppressWarnings("unchecked")
+                    E e = (E) item;
+                    mCodec.write(out, e);
+                }
+            }
+            out.flush();
+            if (mRaf == null) {
+                mFile = File.createTempFile("paged", ".dat", mDir);
+                mRaf = new RandomAccessFile(mFile, "rw");
+            }
+            mRaf.seek(mFileLength);
+            mRaf.write(bos.toByteArray());
+            discard(page);
+            mSpilled.put(page, new long[]{mFileLength, bos.size()});
+            mFileLength += bos.size();
+            compact();
+        }
+
+        Page read(int page) throws IOException {
+            long[] pos = mSpilled.get(page);
+            if (pos == null) {
+                throw new IOException("Page " + page + " is not spilled");
+            }
+            byte[] bytes = new byte[(int) pos[1]];
+            mRaf.seek(pos[0]);
+            mRaf.readFully(bytes);
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            Page p = new Page(mPageSize);
+            for (int i = 0; i < mPageSize; i++) {
+                if (in.readBoolean()) {
+                    p.items[i] = mCodec.read(in);
+                }
+            }
+            return p;
+        }
+
+        void discard(int page) {
+            long[] pos = mSpilled.remove(page);
+            if (pos != null) {
+                mStale += pos[1];
+            }
+        }
+
+        void clear() {
+            mSpilled.clear();
+            mStale = 0;
+            mFileLength = 0;
+            if (mRaf != null) {
+                try {
+                    mRaf.setLength(0);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        void close() {
+            if (mRaf != null) {
+                try {
+                    mRaf.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+                mRaf = null;
+                mFile.delete();
+                mFile = null;
+            }
+        }
+
+        /**
+         * Rewrite the file without the stale pages
+         */
+        private void compact() {
+            if (mRaf == null || mStale < COMPACT_THRESHOLD || mStale * 2 < mFileLength) {
+                return;
+            }
+            File file = null;
+            RandomAccessFile raf = null;
+            try {
+                file = File.createTempFile("paged", ".dat", mDir);
+                raf = new RandomAccessFile(file, "rw");
+                long[] offsets = new long[mSpilled.size()];
+                long length = 0;
+                int i = 0;
+                for (long[] pos : mSpilled.values()) {
+                    byte[] bytes = new byte[(int) pos[1]];
+                    mRaf.seek(pos[0]);
+                    mRaf.readFully(bytes);
+                    raf.write(bytes);
+                    offsets[i++] = length;
+                    length += bytes.length;
+                }
+                // same iteration order, the map is not modified
+                i = 0;
+                for (long[] pos : mSpilled.values()) {
+                    pos[0] = offsets[i++];
+                }
+                mRaf.close();
+                mFile.delete();
+                mRaf = raf;
+                mFile = file;
+                mFileLength = length;
+                mStale = 0;
+            } catch (IOException e) {
+                // keep the old file, try again later
+                e.printStackTrace();
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException ex) {
+                        // ignore
+                    }
+                }
+                if (file != null) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void checkWritable() {
+        if (mSource != null) {
+            throw new UnsupportedOperationException("The list of source is read only");
+        }
+    }
+
+    private boolean hasItems(int page) {
+        return mSize > 0 && page >= pageOf(mHead) && page <= pageOf(mHead + mSize - 1);
+    }
+
+    private int pageOf(int slot) {
+        int page = slot / mPageSize;
+        if (slot < 0 && page * mPageSize != slot) {
+            page--;
+        }
+        return page;
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
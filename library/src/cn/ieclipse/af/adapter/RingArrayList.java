@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.adapter;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+
+/**
+ * Random access list backed by a circular array.
+ * <p>
+ * Adding or removing at both the head and the tail is O(1) amortized, an
+ * insertion or a removal in the middle moves the shorter side only. So
+ * prepending the items of a feed does not shift the whole list as
+ * {@link java.util.ArrayList} does.
+ * </p>
+ *
+ * @author Jamling
+ * @date 2015/10/30.
+ */
+public class RingArrayList<E> extends AbstractList<E> implements RandomAccess {
+    private static final int MIN_CAPACITY = 8;
+
+    private Object[] mElements;
+    private int mHead;
+    private int mSize;
+    private int mVersion;
+
+    public RingArrayList() {
+        this(MIN_CAPACITY);
+    }
+
+    public RingArrayList(int capacity) {
+        mElements = new Object[roundUp(capacity)];
+    }
+
+    public RingArrayList(Collection<? extends E> c) {
+        this(c.size());
+        addAll(c);
+    }
+
+    private static int roundUp(int capacity) {
+        int n = MIN_CAPACITY;
+        while (n < capacity) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    /**
+     * Get the version of the list, it is changed by every modification,
+     * including {@link #set(int, Object)} which is not a structural
+     * modification.
+     *
+     * @return version
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E get(int index) {
+        checkIndex(index, mSize);
+        return (E) mElements[(mHead + index) & (mElements.length - 1)];
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E set(int index, E element) {
+        checkIndex(index, mSize);
+        int i = (mHead + index) & (mElements.length - 1);
+        E old = (E) mElements[i];
+        mElements[i] = element;
+        mVersion++;
+        return old;
+    }
+
+    @Override
+    public boolean add(E element) {
+        ensureCapacity(mSize + 1);
+        mElements[(mHead + mSize) & (mElements.length - 1)] = element;
+        mSize++;
+        modCount++;
+        mVersion++;
+        return true;
+    }
+
+    @Override
+    public void add(int index, E element) {
+        checkIndex(index, mSize + 1);
+        ensureCapacity(mSize + 1);
+        int mask = mElements.length - 1;
+        if (index < mSize - index) {
+            // move the head side forward
+            mHead = (mHead - 1) & mask;
+            for (int i = 0; i < index; i++) {
+                mElements[(mHead + i) & mask] = mElements[(mHead + i + 1) & mask];
+            }
+        }
+        else {
+            for (int i = mSize; i > index; i--) {
+                mElements[(mHead + i) & mask] = mElements[(mHead + i - 1) & mask];
+            }
+        }
+        mElements[(mHead + index) & mask] = element;
+        mSize++;
+        modCount++;
+        mVersion++;
+    }
+
+    @Override
+    public boolean addAll(int index, Collection<? extends E> c) {
+        checkIndex(index, mSize + 1);
+        int count = c.size();
+        if (count == 0) {
+            return false;
+        }
+        ensureCapacity(mSize + count);
+        int mask = mElements.length - 1;
+        if (index < mSize - index) {
+            mHead = (mHead - count) & mask;
+            for (int i = 0; i < index; i++) {
+                mElements[(mHead + i) & mask] = mElements[(mHead + i + count) & mask];
+            }
+        }
+        else {
+            for (int i = mSize - 1; i >= index; i--) {
+                mElements[(mHead + i + count) & mask] = mElements[(mHead + i) & mask];
+            }
+        }
+        int i = index;
+        for (E e : c) {
+            mElements[(mHead + i++) & mask] = e;
+        }
+        mSize += count;
+        modCount++;
+        mVersion++;
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends E> c) {
+        return addAll(mSize, c);
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E remove(int index) {
+        checkIndex(index, mSize);
+        int mask = mElements.length - 1;
+        E old = (E) mElements[(mHead + index) & mask];
+        if (index < mSize - index) {
+            for (int i = index; i > 0; i--) {
+                mElements[(mHead + i) & mask] = mElements[(mHead + i - 1) & mask];
+            }
+            mElements[mHead] = null;
+            mHead = (mHead + 1) & mask;
+        }
+        else {
+            for (int i = index; i < mSize - 1; i++) {
+                mElements[(mHead + i) & mask] = mElements[(mHead + i + 1) & mask];
+            }
+            mElements[(mHead + mSize - 1) & mask] = null;
+        }
+        mSize--;
+        modCount++;
+        mVersion++;
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        int mask = mElements.length - 1;
+        for (int i = 0; i < mSize; i++) {
+            mElements[(mHead + i) & mask] = null;
+        }
+        mHead = 0;
+        mSize = 0;
+        modCount++;
+        mVersion++;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= mElements.length) {
+            return;
+        }
+        Object[] elements = new Object[roundUp(capacity)];
+        int mask = mElements.length - 1;
+        for (int i = 0; i < mSize; i++) {
+            elements[i] = mElements[(mHead + i) & mask];
+        }
+        mElements = elements;
+        mHead = 0;
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+}
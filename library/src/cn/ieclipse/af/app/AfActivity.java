@@ -37,6 +37,7 @@ import android.widget.TextView;
 import cn.ieclipse.af.R;
 import cn.ieclipse.af.util.AppUtils;
 import cn.ieclipse.af.view.TitleBar;
+import cn.ieclipse.af.volley.RequestGroups;
 
 /**
  * 类/接口描述
@@ -389,6 +390,16 @@ public abstract class AfActivity extends Activity implements OnClickListener {
         super.onPause();
     }
     
+    /**
+     * Cancel the requests of this screen, see
+     * {@link cn.ieclipse.af.volley.Controller#setGroup(Object)}
+     */
+    @Override
+    protected void onDestroy() {
+        RequestGroups.cancel(this);
+        super.onDestroy();
+    }
+    
     protected static void startActivity(Intent intent, Fragment f,
             Context context, int requestCode) {
         if (f != null) {
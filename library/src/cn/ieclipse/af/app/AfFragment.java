@@ -22,6 +22,8 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 
+import cn.ieclipse.af.volley.RequestGroups;
+
 /**
  * 类/接口描述
  * 
@@ -80,6 +82,16 @@ public abstract class AfFragment extends Fragment
     
     }
     
+    /**
+     * Cancel the requests of this fragment, see
+     * {@link cn.ieclipse.af.volley.Controller#setGroup(Object)}
+     */
+    @Override
+    public void onDestroy() {
+        RequestGroups.cancel(this);
+        super.onDestroy();
+    }
+    
     protected AfActivity getAfActivity() {
         Activity context = getActivity();
         if (context == null) {
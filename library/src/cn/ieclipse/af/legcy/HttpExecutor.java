@@ -0,0 +1,192 @@
+/*
+ * (C) Copyright 2011-2013 li.jamling@gmail.com. 
+ *
+ * This software is the property of li.jamling@gmail.com.
+ * You have to accept the terms in the license file before use.
+ *
+ */
+package cn.ieclipse.af.legcy;
+
+import java.util.Random;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded executor of {@link HttpThread}. Requests are queued by priority
+ * (higher first, FIFO for the same priority) and run on a fixed number of
+ * worker threads, the retry is scheduled by a single timer thread with
+ * exponential backoff and jitter, no thread is blocked while waiting.
+ * 
+ * @author melord
+ * @version 1.0
+ * 
+ */
+public final class HttpExecutor {
+    
+    /**
+     * default worker thread count
+     */
+    public static final int DEFAULT_POOL_SIZE = 4;
+    
+    private static HttpExecutor sDefault;
+    private static final Random sRandom = new Random();
+    
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledThreadPoolExecutor mScheduler;
+    private final AtomicLong mSequence = new AtomicLong();
+    
+    /**
+     * Construct executor with specified worker thread count
+     * 
+     * @param poolSize
+     *            max worker thread count
+     */
+    public HttpExecutor(int poolSize) {
+        mExecutor = new ThreadPoolExecutor(poolSize, poolSize, 30,
+                TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new NamedThreadFactory("HttpExecutor"));
+        mExecutor.allowCoreThreadTimeOut(true);
+        mScheduler = new ScheduledThreadPoolExecutor(1,
+                new NamedThreadFactory("HttpScheduler"));
+    }
+    
+    /**
+     * Get the shared executor
+     * 
+     * @return default executor
+     */
+    public static synchronized HttpExecutor getDefault() {
+        if (sDefault == null) {
+            sDefault = new HttpExecutor(DEFAULT_POOL_SIZE);
+        }
+        return sDefault;
+    }
+    
+    /**
+     * Execute task in worker thread
+     * 
+     * @param task
+     *            task to run
+     * @param priority
+     *            priority, higher run first
+     */
+    public void execute(Runnable task, int priority) {
+        mExecutor.execute(new PriorityTask(task, priority,
+                mSequence.getAndIncrement()));
+    }
+    
+    /**
+     * Execute task in worker thread after delay
+     * 
+     * @param task
+     *            task to run
+     * @param priority
+     *            priority, higher run first
+     * @param delay
+     *            delay time in milliseconds
+     * @return future to cancel the scheduled task before it's executed
+     */
+    public ScheduledFuture<?> schedule(final Runnable task, final int priority, long delay) {
+        return mScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                execute(task, priority);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Remove the waiting task, the running task is not affected.
+     * 
+     * @param task
+     *            task to remove
+     */
+    public void remove(Runnable task) {
+        for (Runnable r : mExecutor.getQueue()) {
+            if (((PriorityTask) r).task == task) {
+                mExecutor.remove(r);
+            }
+        }
+    }
+    
+    /**
+     * Get exponential backoff delay with jitter, the delay is random in
+     * [d/2, d], d = min(base * 2^(retry-1), max)
+     * 
+     * @param retry
+     *            retry times, start from 1
+     * @param base
+     *            base delay in milliseconds
+     * @param max
+     *            max delay in milliseconds
+     * @return delay time in milliseconds
+     */
+    public static long getBackoffDelay(int retry, long base, long max) {
+        long delay = base;
+        for (int i = 1; i < retry && delay < max; i++) {
+            delay <<= 1;
+        }
+        delay = Math.min(delay, max);
+        if (delay <= 1) {
+            return delay;
+        }
+        long half = delay >> 1;
+        synchronized (sRandom) {
+            return half + (long) (sRandom.nextDouble() * (delay - half));
+        }
+    }
+    
+    public void shutdown() {
+        mScheduler.shutdownNow();
+        mExecutor.shutdown();
+    }
+    
+    private static class PriorityTask implements Runnable,
+            Comparable<PriorityTask> {
+        private final Runnable task;
+        private final int priority;
+        private final long sequence;
+        
+        private PriorityTask(Runnable task, int priority, long sequence) {
+            this.task = task;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+        
+        @Override
+        public void run() {
+            task.run();
+        }
+        
+        @Override
+        public int compareTo(PriorityTask another) {
+            if (priority != another.priority) {
+                return priority > another.priority ? -1 : 1;
+            }
+            return sequence < another.sequence ? -1
+                    : (sequence == another.sequence ? 0 : 1);
+        }
+    }
+    
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger();
+        
+        private NamedThreadFactory(String name) {
+            this.name = name;
+        }
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
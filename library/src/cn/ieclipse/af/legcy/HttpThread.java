@@ -14,6 +14,7 @@ import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.ProtocolException;
 import java.net.URL;
+import java.util.concurrent.ScheduledFuture;
 
 import cn.ieclipse.af.util.IOUtils;
 
@@ -44,6 +45,11 @@ import cn.ieclipse.af.util.IOUtils;
  * HttpThread thread = new HttpThread("http://www.baidu.com",listener);
  * thread.start();
  * </pre>
+ * <p>
+ * Note: {@link #start()} doesn't spawn a new thread, the request is executed
+ * by the shared {@link HttpExecutor} and the retry is scheduled with
+ * exponential backoff, see {@link #setRetryDelay(int, int)}.
+ * </p>
  * 
  * @author melord
  * @version 1.0
@@ -78,9 +84,26 @@ public class HttpThread extends Thread {
      */
     private int mRetry = 0;
     /**
-     * delay time for next connection
+     * base delay time for next connection
      */
     private int mDelay = 5000;
+    /**
+     * max delay time for next connection
+     */
+    private int mMaxDelay = 60000;
+    /**
+     * request priority in {@link HttpExecutor}
+     */
+    private int mRequestPriority = 0;
+    /**
+     * executor to run the request
+     */
+    private HttpExecutor mExecutor = HttpExecutor.getDefault();
+    /**
+     * scheduled retry, cancelled with the request
+     */
+    private volatile ScheduledFuture<?> mRetryFuture;
+    private volatile boolean mCanceled;
     
     /**
      * post data input stream. for 3.0 or higher, write data to http output
@@ -180,6 +203,67 @@ public class HttpThread extends Thread {
         mRetryCount = count;
     }
     
+    /**
+     * Set the retry delay, the actual delay is exponential backoff with jitter
+     * see {@link HttpExecutor#getBackoffDelay(int, long, long)}
+     * 
+     * @param delay
+     *            base delay in milliseconds
+     * @param maxDelay
+     *            max delay in milliseconds
+     */
+    public void setRetryDelay(int delay, int maxDelay) {
+        this.mDelay = delay;
+        this.mMaxDelay = maxDelay;
+    }
+    
+    /**
+     * Set the priority in executor queue, higher run first. Note: it's not
+     * the thread priority.
+     * 
+     * @param priority
+     *            request priority, default is 0
+     */
+    public void setRequestPriority(int priority) {
+        this.mRequestPriority = priority;
+    }
+    
+    /**
+     * Set executor to run the request, default is
+     * {@link HttpExecutor#getDefault()}
+     * 
+     * @param executor
+     *            http executor
+     */
+    public void setExecutor(HttpExecutor executor) {
+        if (executor != null) {
+            this.mExecutor = executor;
+        }
+    }
+    
+    /**
+     * Execute the request in {@link HttpExecutor} instead of a new thread.
+     */
+    @Override
+    public synchronized void start() {
+        mCanceled = false;
+        mExecutor.execute(this, mRequestPriority);
+    }
+    
+    /**
+     * Remove the request from executor if it's waiting, and cancel the
+     * scheduled retry. A running request is not interrupted but won't retry.
+     */
+    public void cancel() {
+        mCanceled = true;
+        ScheduledFuture<?> retry = mRetryFuture;
+        if (retry != null) {
+            retry.cancel(false);
+            mRetryFuture = null;
+        }
+        mExecutor.remove(this);
+    }
+    
     /**
      * Get current retry times
      * 
@@ -232,6 +316,10 @@ public class HttpThread extends Thread {
     
     @Override
     public void run() {
+        mRetryFuture = null;
+        if (mCanceled) {
+            return;
+        }
         int code = -1;
         InputStream is = null;
         InputStream in = null;
@@ -244,76 +332,63 @@ public class HttpThread extends Thread {
                 }
             }
         }
-        while (true) {
-            try {
-                if (mConnection == null) {
-                    Log.e(TAG, getInfo() + " connection null");
-                    break;
-                }
-                if ("POST".equalsIgnoreCase(mConnection.getRequestMethod())
-                        && mPostData != null) {
-                    mConnection.setDoOutput(true);
-                    // mConnection.setFixedLengthStreamingMode(mBufferSize);
-                    // block
-                    OutputStream sos = mConnection.getOutputStream();
-                    IOUtils.copyStream(mPostData, sos);
-                    IOUtils.closeStream(mPostData);
-                    IOUtils.closeStream(sos);
-                }
-                // mConnection.connect();
-                code = mConnection.getResponseCode();
+        try {
+            if (mConnection == null) {
+                Log.e(TAG, "connection null");
+                return;
+            }
+            if ("POST".equalsIgnoreCase(mConnection.getRequestMethod())
+                    && mPostData != null) {
+                mConnection.setDoOutput(true);
+                // mConnection.setFixedLengthStreamingMode(mBufferSize);
+                // block
+                OutputStream sos = mConnection.getOutputStream();
+                IOUtils.copyStream(mPostData, sos);
+                IOUtils.closeStream(mPostData);
+                IOUtils.closeStream(sos);
+            }
+            // mConnection.connect();
+            code = mConnection.getResponseCode();
+            
+            if (code >= HttpURLConnection.HTTP_OK
+                    && code < HttpURLConnection.HTTP_BAD_REQUEST) {
+                Log.v(TAG, getInfo() + " connect successfully");
+                int length = mConnection.getContentLength();
+                in = mConnection.getInputStream();
+                is = IOUtils.readSocketStream(in, length);
                 
-                if (code >= HttpURLConnection.HTTP_OK
-                        && code < HttpURLConnection.HTTP_BAD_REQUEST) {
-                    Log.v(TAG, getInfo() + " connect successfully");
-                    int length = mConnection.getContentLength();
-                    in = mConnection.getInputStream();
-                    is = IOUtils.readSocketStream(in, length);
-                    
-                    if (mListener != null) {
-                        mListener.onSuccess(code, is);
-                    }
-                }
-                else {
-                    // try {
-                    // in = mConnection.getInputStream();
-                    // is = IOUtils.readSocketStream(in, -1);
-                    // // byte[] b = IOUtils.read2Byte(is);
-                    // // String str = new String(b);
-                    // // System.out.println(b);
-                    // } catch (Exception e) {
-                    //
-                    // }
-                    
-                    String msg = mConnection.getResponseMessage();
-                    Log.w(TAG, getInfo() + " msg " + code);
-                    if (mListener != null) {
-                        mListener.onException(code, new Exception(msg));
-                    }
-                }
-                mConnection.disconnect();
-                break;
-            } catch (IOException e) {
                 if (mListener != null) {
-                    mListener.onException(code, e);
+                    mListener.onSuccess(code, is);
                 }
-                Log.e(TAG, getInfo() + " connection meet an IO exception", e);
-                if (mRetry < mRetryCount) {
-                    mRetry++;
-                    try {
-                        Thread.sleep(mDelay);
-                    } catch (InterruptedException e1) {
-                        
-                    }
-                    copyConnection();
-                    retryPost(this.mConnection);
+            }
+            else {
+                String msg = mConnection.getResponseMessage();
+                Log.w(TAG, getInfo() + " msg " + code);
+                if (mListener != null) {
+                    mListener.onException(code, new Exception(msg));
                 }
-                else {
-                    mConnection.disconnect();
-                    break;
+            }
+            mConnection.disconnect();
+        } catch (IOException e) {
+            if (mListener != null) {
+                mListener.onException(code, e);
+            }
+            Log.e(TAG, getInfo() + " connection meet an IO exception", e);
+            if (mRetry < mRetryCount && !mCanceled) {
+                mRetry++;
+                copyConnection();
+                retryPost(this.mConnection);
+                // no thread sleeps, re-run after backoff delay
+                mRetryFuture = mExecutor.schedule(this, mRequestPriority,
+                        HttpExecutor.getBackoffDelay(mRetry, mDelay, mMaxDelay));
+                if (mCanceled) {
+                    // cancelled while scheduling
+                    mRetryFuture.cancel(false);
                 }
             }
-            
+            else {
+                mConnection.disconnect();
+            }
         }
     }
     
@@ -0,0 +1,120 @@
+/*
+ * (C) Copyright 2011-2013 li.jamling@gmail.com. 
+ *
+ * This software is the property of li.jamling@gmail.com.
+ * You have to accept the terms in the license file before use.
+ *
+ */
+package cn.ieclipse.af.util;
+
+import java.util.ArrayDeque;
+
+/**
+ * Thread-safe pool of byte arrays in size classes (power of two from
+ * {@value #MIN_SIZE} to {@value #MAX_SIZE} bytes) to reuse I/O buffers
+ * instead of allocating a new one per copy.
+ * <p>
+ * {@link #getBuf(int)} returns a buffer of at least the requested size (the
+ * size class), buffers larger than {@value #MAX_SIZE} are not pooled. Return
+ * the buffer by {@link #returnBuf(byte[])} after use.
+ * </p>
+ * 
+ * @author melord
+ * @version 1.0
+ */
+public final class ByteArrayPool {
+    
+    public static final int MIN_SIZE = 1 << 10;
+    public static final int MAX_SIZE = 64 << 10;
+    private static final int MIN_SHIFT = 10;
+    private static final int CLASS_COUNT = 7;
+    /**
+     * default max pooled bytes of each size class
+     */
+    public static final int DEFAULT_CLASS_LIMIT = 128 << 10;
+    
+    private static final ByteArrayPool sDefault = new ByteArrayPool(
+            DEFAULT_CLASS_LIMIT);
+    
+    private final ArrayDeque<byte[]>[] mBuckets;
+    private final int mClassLimit;
+    
+    /**
+     * Construct a pool
+     * 
+     * @param classLimit
+     *            max pooled bytes of each size class, at least one buffer
+     *            is pooled for each class.
+     */
+    @SuppressWarnings("unchecked")
+    public ByteArrayPool(int classLimit) {
+        mClassLimit = classLimit;
+        mBuckets = new ArrayDeque[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            mBuckets[i] = new ArrayDeque<byte[]>();
+        }
+    }
+    
+    /**
+     * Get the shared pool
+     * 
+     * @return default pool
+     */
+    public static ByteArrayPool get() {
+        return sDefault;
+    }
+    
+    /**
+     * Get a buffer at least of the size
+     * 
+     * @param size
+     *            min buffer size
+     * @return buffer from pool or new allocated
+     */
+    public byte[] getBuf(int size) {
+        int index = indexOf(size);
+        if (index < 0) {
+            return new byte[size];
+        }
+        ArrayDeque<byte[]> bucket = mBuckets[index];
+        byte[] buf;
+        synchronized (bucket) {
+            buf = bucket.pollFirst();
+        }
+        return buf != null ? buf : new byte[MIN_SIZE << index];
+    }
+    
+    /**
+     * Return the buffer to pool
+     * 
+     * @param buf
+     *            buffer got from {@link #getBuf(int)}
+     */
+    public void returnBuf(byte[] buf) {
+        if (buf == null) {
+            return;
+        }
+        int index = indexOf(buf.length);
+        if (index < 0 || (MIN_SIZE << index) != buf.length) {
+            return;
+        }
+        ArrayDeque<byte[]> bucket = mBuckets[index];
+        int max = Math.max(1, mClassLimit / buf.length);
+        synchronized (bucket) {
+            if (bucket.size() < max) {
+                bucket.addFirst(buf);
+            }
+        }
+    }
+    
+    private static int indexOf(int size) {
+        if (size > MAX_SIZE) {
+            return -1;
+        }
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        // ceil(log2(size)) - MIN_SHIFT
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+}
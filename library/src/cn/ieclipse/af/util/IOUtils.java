@@ -87,10 +87,14 @@ public final class IOUtils {
             throws IOException {
         int total = 0;
         int read = 0;
-        byte[] buf = new byte[BUFFER_SIZE];
-        while ((read = is.read(buf)) > 0) {
-            os.write(buf, 0, read);
-            total += read;
+        byte[] buf = ByteArrayPool.get().getBuf(BUFFER_SIZE);
+        try {
+            while ((read = is.read(buf)) > 0) {
+                os.write(buf, 0, read);
+                total += read;
+            }
+        } finally {
+            ByteArrayPool.get().returnBuf(buf);
         }
         return total;
     }
@@ -108,13 +112,49 @@ public final class IOUtils {
      */
     public static InputStream readSocketStream(InputStream is, int length)
             throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        copyStream(is, bos);
-        byte[] data = bos.toByteArray();
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-        closeStream(is);
-        closeStream(bos);
-        return bis;
+        try {
+            if (length > 0) {
+                // presize from Content-Length, no copy
+                byte[] data = new byte[length];
+                int offset = 0;
+                int read = 0;
+                while (offset < length
+                        && (read = is.read(data, offset, length - offset)) > 0) {
+                    offset += read;
+                }
+                int next = offset < length ? -1 : is.read();
+                if (next < 0) {
+                    return new ByteArrayInputStream(data, 0, offset);
+                }
+                // longer than Content-Length, read the rest
+                ExposedByteArrayOutputStream bos = new ExposedByteArrayOutputStream(
+                        length + BUFFER_SIZE);
+                bos.write(data, 0, length);
+                bos.write(next);
+                copyStream(is, bos);
+                return bos.toInputStream();
+            }
+            ExposedByteArrayOutputStream bos = new ExposedByteArrayOutputStream(
+                    BUFFER_SIZE);
+            copyStream(is, bos);
+            return bos.toInputStream();
+        } finally {
+            closeStream(is);
+        }
+    }
+    
+    /**
+     * {@link ByteArrayOutputStream} which can be read without copy the data
+     */
+    private static class ExposedByteArrayOutputStream extends
+            ByteArrayOutputStream {
+        ExposedByteArrayOutputStream(int size) {
+            super(size);
+        }
+        
+        InputStream toInputStream() {
+            return new ByteArrayInputStream(buf, 0, count);
+        }
     }
     
     /**
@@ -0,0 +1,228 @@
+/*
+ * (C) Copyright 2011-2013 li.jamling@gmail.com.
+ *
+ * This software is the property of li.jamling@gmail.com.
+ * You have to accept the terms in the license file before use.
+ *
+ */
+package cn.ieclipse.af.util;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Encoder of request entity to request parameters (
+ * <code>name1=value1&amp;name2=value2</code>).
+ * <p>
+ * The public instance fields of a class are looked up only once and kept in
+ * an accessor table, the table is shared by all the requests of the class.
+ * Fields are ordered from the super class to the sub class and by name in a
+ * class, a field hidden by the sub class field with the same name is encoded
+ * once (the sub class value).
+ * </p>
+ *
+ * @author melord
+ * @version 1.0
+ */
+public final class ParamEncoder {
+
+    private static final ConcurrentHashMap<Class<?>, ParamEncoder> sEncoders = new ConcurrentHashMap<Class<?>, ParamEncoder>();
+    private static final int MAX_BUILDER_CAPACITY = 8 << 10;
+    private static final ThreadLocal<StringBuilder> sBuilder = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(256);
+        }
+    };
+    private static final Comparator<Field> NAME_COMPARATOR = new Comparator<Field>() {
+        @Override
+        public int compare(Field lhs, Field rhs) {
+            return lhs.getName().compareTo(rhs.getName());
+        }
+    };
+
+    private static final Comparator<Map.Entry<?, ?>> KEY_COMPARATOR = new Comparator<Map.Entry<?, ?>>() {
+        @Override
+        public int compare(Map.Entry<?, ?> lhs, Map.Entry<?, ?> rhs) {
+            return String.valueOf(lhs.getKey()).compareTo(String.valueOf(rhs.getKey()));
+        }
+    };
+
+    private final String[] mNames;
+    private final Field[] mFields;
+
+    private ParamEncoder(Class<?> clazz) {
+        List<Class<?>> hierarchy = new ArrayList<Class<?>>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c
+                .getSuperclass()) {
+            hierarchy.add(0, c);
+        }
+        // put() of a hidden field keeps the super class position
+        LinkedHashMap<String, Field> fields = new LinkedHashMap<String, Field>();
+        for (Class<?> c : hierarchy) {
+            Field[] declared = c.getDeclaredFields();
+            Arrays.sort(declared, NAME_COMPARATOR);
+            for (Field f : declared) {
+                int mod = f.getModifiers();
+                if (!Modifier.isPublic(mod) || Modifier.isStatic(mod)
+                        || f.isSynthetic()) {
+                    continue;
+                }
+                try {
+                    f.setAccessible(true);
+                } catch (SecurityException e) {
+                    // public field is still accessible in public class
+                }
+                fields.put(f.getName(), f);
+            }
+        }
+        mNames = fields.keySet().toArray(new String[fields.size()]);
+        mFields = fields.values().toArray(new Field[fields.size()]);
+    }
+
+    /**
+     * Get the shared encoder of the class
+     *
+     * @param clazz
+     *            request entity class
+     * @return encoder
+     */
+    public static ParamEncoder get(Class<?> clazz) {
+        ParamEncoder encoder = sEncoders.get(clazz);
+        if (encoder == null) {
+            encoder = new ParamEncoder(clazz);
+            ParamEncoder old = sEncoders.putIfAbsent(clazz, encoder);
+            if (old != null) {
+                encoder = old;
+            }
+        }
+        return encoder;
+    }
+
+    /**
+     * Encode the request entity to parameter string.
+     *
+     * @param object
+     *            request entity
+     * @param encoding
+     *            charset of URL encoding
+     * @return parameter string, empty if object is null
+     */
+    public static String encode(Object object, String encoding) {
+        if (object == null) {
+            return "";
+        }
+        if (object instanceof Map) {
+            return encode((Map<?, ?>) object, encoding);
+        }
+        StringBuilder sb = sBuilder.get();
+        sb.setLength(0);
+        get(object.getClass()).appendTo(sb, object, encoding);
+        return release(sb);
+    }
+
+    /**
+     * Encode the parameter map to parameter string, the parameters are
+     * sorted by name, so the same map content always has the same string.
+     *
+     * @param map
+     *            parameter map
+     * @param encoding
+     *            charset of URL encoding
+     * @return parameter string, empty if map is null
+     */
+    public static String encode(Map<?, ?> map, String encoding) {
+        if (map == null) {
+            return "";
+        }
+        List<Map.Entry<?, ?>> entries = new ArrayList<Map.Entry<?, ?>>(map.entrySet());
+        Collections.sort(entries, KEY_COMPARATOR);
+        StringBuilder sb = sBuilder.get();
+        sb.setLength(0);
+        for (Map.Entry<?, ?> e : entries) {
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            sb.append(e.getKey());
+            sb.append('=');
+            sb.append(StringUtils.getRequestParamValue(e.getValue(), encoding));
+        }
+        return release(sb);
+    }
+
+    /**
+     * Append the parameters to the builder, '&amp;' is appended first if the
+     * builder is not empty.
+     *
+     * @param sb
+     *            string builder
+     * @param object
+     *            request entity, must be instance of the encoder class
+     * @param encoding
+     *            charset of URL encoding
+     */
+    public void appendTo(StringBuilder sb, Object object, String encoding) {
+        for (int i = 0; i < mFields.length; i++) {
+            Object val = getValue(mFields[i], object);
+            if (val != null) {
+                if (sb.length() > 0) {
+                    sb.append('&');
+                }
+                sb.append(mNames[i]);
+                sb.append('=');
+                sb.append(StringUtils.getRequestParamValue(val, encoding));
+            }
+        }
+    }
+
+    /**
+     * Put the URL encoded parameter values into the map.
+     *
+     * @param map
+     *            parameter map
+     * @param object
+     *            request entity, must be instance of the encoder class
+     * @param encoding
+     *            charset of URL encoding
+     */
+    public void putTo(Map<String, Object> map, Object object, String encoding) {
+        for (int i = 0; i < mFields.length; i++) {
+            Object val = getValue(mFields[i], object);
+            if (val != null) {
+                map.put(mNames[i],
+                        StringUtils.getRequestParamValue(val, encoding));
+            }
+        }
+    }
+
+    /**
+     * @return parameter names in encoding order
+     */
+    public String[] getNames() {
+        return mNames.clone();
+    }
+
+    private static String release(StringBuilder sb) {
+        String ret = sb.toString();
+        if (sb.capacity() > MAX_BUILDER_CAPACITY) {
+            sBuilder.remove();
+        }
+        return ret;
+    }
+
+    private static Object getValue(Field field, Object object) {
+        try {
+            return field.get(object);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+    }
+}
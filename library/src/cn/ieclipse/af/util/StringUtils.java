@@ -1,7 +1,6 @@
 package cn.ieclipse.af.util;
 
 import java.io.UnsupportedEncodingException;
-import java.lang.reflect.Field;
 import java.math.RoundingMode;
 import java.net.URLEncoder;
 import java.text.NumberFormat;
@@ -61,45 +60,13 @@ public class StringUtils {
         }
     }
 
-    // TODO fix class extends same fields issue
+    /**
+     * Encode public fields of the request entity to parameter string.
+     * 
+     * @see ParamEncoder
+     */
     public static String getRequestParam(Object object, String encoding) {
-        StringBuilder sb = new StringBuilder();
-        
-        if (null == object) {
-        }
-        else {
-            // 获取此类所有声明的字段
-            Field[] field = object.getClass().getFields();
-            // 用来拼接所需保存的字符串
-            
-            // 循环此字段数组，获取属性的值
-            for (int i = 0; i < field.length && field.length > 0; i++) {
-                // 值为 true 则指示反射的对象在使用时应该取消 Java 语言访问检查.
-                field[i].setAccessible(true);
-                // field[i].getName() 获取此字段的名称
-                // field[i].get(object) 获取指定对象上此字段的值
-                String name = field[i].getName();
-                Object val;
-                try {
-                    val = field[i].get(object);
-                } catch (Exception e) {
-                    continue;
-                }
-                if (val != null) {
-                    if (sb.length() > 0) {
-                        sb.append("&" + name + "=" + getRequestParamValue(val, encoding));
-                    }
-                    else {
-                        sb.append(name + "=" + getRequestParamValue(val, encoding));
-                    }
-                    
-                }
-            }
-            return sb.toString();
-        }
-        
-        return sb.toString();
-        
+        return ParamEncoder.encode(object, encoding);
     }
     
     /**
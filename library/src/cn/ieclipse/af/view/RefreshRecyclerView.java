@@ -6,6 +6,7 @@ package cn.ieclipse.af.view;
 import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Color;
+import android.os.SystemClock;
 import android.support.v7.widget.DefaultItemAnimator;
 import android.support.v7.widget.GridLayoutManager;
 import android.support.v7.widget.LinearLayoutManager;
@@ -24,6 +25,8 @@ import cn.ieclipse.af.R;
 import cn.ieclipse.af.adapter.AfRecyclerAdapter;
 import cn.ieclipse.af.view.recycle.DividerGridItemDecoration;
 import cn.ieclipse.af.view.recycle.DividerLine;
+import cn.ieclipse.af.view.recycle.LoadMorePrefetcher;
+import cn.ieclipse.af.view.recycle.PageCursor;
 import cn.ieclipse.af.view.recycle.RefreshEmptyView;
 import cn.ieclipse.af.view.refresh.SwipyRefreshLayout;
 import cn.ieclipse.af.view.refresh.SwipyRefreshLayoutDirection;
@@ -99,11 +102,7 @@ public class RefreshRecyclerView<T> extends LinearLayout implements View.OnClick
     /**
      * adapter
      */
-    private AfRecyclerAdapter mAdapter;
-    /**
-     * 默认刷新方向
-     */
-    private SwipyRefreshLayoutDirection mCurrentDirection = SwipyRefreshLayoutDirection.TOP;
+    private AfRecyclerAdapter<T, ?> mAdapter;
     /**
      * 分页第一页索引
      */
@@ -113,14 +112,13 @@ public class RefreshRecyclerView<T> extends LinearLayout implements View.OnClick
      */
     private static final int PAGE_SIZE = 10;
     /**
-     * 分页加载当前页数 mCurrentPage
+     * 分页加载状态
      */
-    private int mCurrentPage = PAGE_FIRST;
+    private PageCursor mPageCursor = new PageCursor(PAGE_FIRST, PAGE_SIZE);
     /**
-     * adapter中数据条目
+     * 滑动时提前加载下一页
      */
-    private int mItemCount = 0;
-    private int mPageSize = PAGE_SIZE;
+    private LoadMorePrefetcher mPrefetcher = new LoadMorePrefetcher();
 
     public RefreshRecyclerView(Context context) {
         this(context, null);
@@ -320,6 +318,16 @@ public class RefreshRecyclerView<T> extends LinearLayout implements View.OnClick
                 }
             }
         }
+
+        @Override
+        public void onItemRangeInserted(int positionStart, int itemCount) {
+            onChanged();
+        }
+
+        @Override
+        public void onItemRangeRemoved(int positionStart, int itemCount) {
+            onChanged();
+        }
     };
 
     /**
@@ -331,7 +339,7 @@ public class RefreshRecyclerView<T> extends LinearLayout implements View.OnClick
         if (adapter != null && mRecyclerView != null) {
             mRecyclerView.setAdapter(adapter);
             if (adapter instanceof AfRecyclerAdapter) {
-                mAdapter = (AfRecyclerAdapter) adapter;
+                mAdapter = (AfRecyclerAdapter<T, ?>) adapter;
                 setDataObserver();
             }
         }
@@ -459,13 +467,16 @@ public class RefreshRecyclerView<T> extends LinearLayout implements View.OnClick
                 @Override
                 public void onScrollStateChanged(RecyclerView recyclerView, int newState) {
                     super.onScrollStateChanged(recyclerView, newState);
-                    if (newState == RecyclerView.SCROLL_STATE_IDLE && mLastVisibleItem + 1 == mAdapter.getItemCount()) {
+                    if (mAdapter != null && newState == RecyclerView.SCROLL_STATE_IDLE
+                        && mLastVisibleItem + 1 == mAdapter.getItemCount()) {
                         // mRecyclerView滚动到最后一条，切停止滚动 同时没有在刷新或加载
                         boolean isRefreshing = mSwipyRefreshLayout.isRefreshing();
                         if (mAutoLoadEnable && !isRefreshing) {
-                            log("auto load more");
-                            mSwipyRefreshLayout.setRefreshing(true);
-                            RefreshRecyclerView.this.onRefresh(SwipyRefreshLayoutDirection.BOTTOM);
+                            // 预加载未完成时只显示加载状态
+                            if (mPageCursor.isLoading() || loadMore()) {
+                                log("auto load more");
+                                mSwipyRefreshLayout.setRefreshing(true);
+                            }
                         }
                     }
                 }
@@ -474,6 +485,16 @@ public class RefreshRecyclerView<T> extends LinearLayout implements View.OnClick
                 public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
                     super.onScrolled(recyclerView, dx, dy);
                     mLastVisibleItem = mCurrentLayoutManager.findLastVisibleItemPosition();
+                    if (mAdapter == null || mOnRefreshListener == null) {
+                        return;
+                    }
+                    boolean prefetch = mPrefetcher.onScrolled(mLastVisibleItem, mAdapter.getItemCount(),
+                        SystemClock.uptimeMillis());
+                    if (prefetch && mAutoLoadEnable && dy > 0 && mPageCursor.hasMore() && !mPageCursor.isLoading()) {
+                        log("prefetch page " + mPageCursor.getCurrentPage() + ", velocity : " + mPrefetcher.getVelocity()
+                            + ", latency : " + mPrefetcher.getLatency());
+                        loadMore();
+                    }
                 }
             });
         }
@@ -483,17 +504,25 @@ public class RefreshRecyclerView<T> extends LinearLayout implements View.OnClick
     //------------------------update item start----------------------------
 
     /**
-     * 更新item
+     * 更新item, 同一帧内的多次更新合并为一次局部刷新
      *
      * @param item
      */
     public void updateItem(T item) {
+        if (mAdapter != null && item != null) {
+            boolean found = mAdapter.patchItem(item);
+            log("try to refresh item found = " + found);
+        }
+    }
+
+    /**
+     * 批量更新item, 合并为range刷新
+     *
+     * @param items
+     */
+    public void updateItems(List<T> items) {
         if (mAdapter != null) {
-            int idx = getChooseItemIndex(item);
-            log("try to refresh item idx = " + idx);
-            if (idx >= 0) {
-                mAdapter.updateItem(idx, item);
-            }
+            mAdapter.patchItems(items);
         }
     }
 
@@ -513,49 +542,85 @@ public class RefreshRecyclerView<T> extends LinearLayout implements View.OnClick
     }
 
     /**
-     * adapter 中的T 必须重写equals()
+     * adapter 中的T 必须重写equals(), 或设置adapter的{@link AfRecyclerAdapter#setKeyExtractor}按key索引查找
      *
      * @param item
      * @return
      */
     private int getChooseItemIndex(T item) {
-        int idx = -1;
         if (mAdapter != null && item != null) {
-            for (int i = 0; i < mAdapter.getDataList().size(); i++) {
-                if (item.equals(mAdapter.getItem(i))) {
-                    idx = i;
-                    return idx;
-                }
-            }
-            return idx;
+            return mAdapter.indexOf(item);
         }
-        return idx;
+        return -1;
     }
 
     /**
-     * 加载完成将数据添加到adapter中
+     * 加载完成将数据添加到adapter中, 数据为回调时正在加载的页
      *
      * @param list 数据
+     * @deprecated 无法判断数据属于哪个请求, 加载更多时又刷新, 之前加载更多的结果会作为第一页. 在{@link OnRefreshListener}中记录
+     * {@link #getCurrentPage()}, 使用{@link #onLoadFinish(int, List)}
      */
+    @Deprecated
     public void onLoadFinish(List<T> list) {
+        int page = mPageCursor.getLoadingPage();
+        if (page == PageCursor.NONE) {
+            // 未通过刷新触发的加载, 作为第一页
+            page = mPageCursor.startRefresh();
+        }
+        onLoadFinish(page, list);
+    }
+
+    /**
+     * 加载完成将数据添加到adapter中
+     *
+     * @param page 数据所在页, 见{@link #getCurrentPage()}, 不是正在加载的页时(如加载更多时又刷新)忽略
+     * @param list 数据
+     */
+    public void onLoadFinish(int page, List<T> list) {
+        boolean refresh = mPageCursor.isRefreshing();
+        if (!mPageCursor.finish(page, list == null ? 0 : list.size())) {
+            log("ignore stale page : " + page);
+            return;
+        }
+        mPrefetcher.onResponse(SystemClock.uptimeMillis());
         if (mAdapter != null) {
-            // 当direction == top 或 null时默认是刷新操作
-            if (SwipyRefreshLayoutDirection.TOP == mCurrentDirection) {
-                mAdapter.getDataList().clear();
+            // 刷新时与当前数据diff后局部刷新
+            if (refresh) {
+                mAdapter.setDataList(list);
             }
-            else {//if (SwipyRefreshLayoutDirection.BOTTOM == direction)
-                // do nothing
+            else {
+                mAdapter.addAll(list);
             }
-            mAdapter.addAll(list);
         }
         finishLoad();
     }
 
     /**
-     * 加载失败，重置RecyclerView的加载状态
+     * 加载失败，重置RecyclerView的加载状态, 下次加载同一页
+     *
+     * @deprecated 无法判断失败的是哪个请求, 使用{@link #onLoadFailure(int)}
      */
+    @Deprecated
     public void onLoadFailure() {
-        finishLoad();
+        int page = mPageCursor.getLoadingPage();
+        if (page == PageCursor.NONE) {
+            // 未通过刷新触发的加载, 只清除加载状态
+            finishLoad();
+            return;
+        }
+        onLoadFailure(page);
+    }
+
+    /**
+     * 加载失败，重置RecyclerView的加载状态
+     *
+     * @param page 失败的页, 不是正在加载的页时忽略
+     */
+    public void onLoadFailure(int page) {
+        if (mPageCursor.fail(page)) {
+            finishLoad();
+        }
     }
 
     /**
@@ -575,32 +640,41 @@ public class RefreshRecyclerView<T> extends LinearLayout implements View.OnClick
     }
 
     /**
-     * 获取当前需要加载的页数
+     * 获取当前需要加载的页数, 在{@link OnRefreshListener}中调用时为要请求的页
      *
      * @return
      */
     public int getCurrentPage() {
-        return mCurrentPage;
+        return mPageCursor.getCurrentPage();
     }
 
     /**
-     * 计算页码
+     * 设置每页条目数, 返回的条目少于该值时认为没有更多数据, 不再预加载, 默认10
+     *
+     * @param pageSize
      */
-    private void calcCurrentPage() {
-        if (mAdapter != null) {
-            mItemCount = mAdapter.getItemCount();
-            int p = mItemCount / mPageSize;
-            if (mItemCount % mPageSize >= 0) {
-                mCurrentPage = p + 1;
-            }
-            else {
-                mCurrentPage = p;
-            }
+    public void setPageSize(int pageSize) {
+        mPageCursor.setPageSize(pageSize);
+    }
+
+    /**
+     * 加载更多, 正在加载时不重复请求
+     *
+     * @return 是否开始加载
+     */
+    private boolean loadMore() {
+        if (mOnRefreshListener == null) {
+            return false;
         }
-        if (mCurrentPage <= 0) {
-            mCurrentPage = PAGE_FIRST;
+        int page = mPageCursor.startLoadMore();
+        if (page == PageCursor.NONE) {
+            log("page " + mPageCursor.getLoadingPage() + " is loading");
+            return false;
         }
-        log("current page : " + mCurrentPage + ", item count : " + mItemCount);
+        log("load page : " + page);
+        mPrefetcher.onRequest(SystemClock.uptimeMillis());
+        mOnRefreshListener.onLoadMore();
+        return true;
     }
 
     @Override
@@ -609,22 +683,24 @@ public class RefreshRecyclerView<T> extends LinearLayout implements View.OnClick
             log("onRefresh current direction = " + direction);
             // 下拉刷新执行的操作
             if (direction == SwipyRefreshLayoutDirection.TOP) {
-                mCurrentDirection = SwipyRefreshLayoutDirection.TOP;
-                mCurrentPage = PAGE_FIRST;
+                mPageCursor.startRefresh();
+                mPrefetcher.reset();
+                mPrefetcher.onRequest(SystemClock.uptimeMillis());
                 mOnRefreshListener.onRefresh();
             }
             else {
                 //加载更多执行
-                mCurrentDirection = SwipyRefreshLayoutDirection.BOTTOM;
-                // 计算当前加载页数
-                calcCurrentPage();
-                mOnRefreshListener.onLoadMore();
+                loadMore();
             }
         }
     }
 
     private OnRefreshListener mOnRefreshListener;
 
+    /**
+     * 刷新和加载更多回调, 回调中通过{@link #getCurrentPage()}获取要请求的页, 请求完成时传给{@link #onLoadFinish(int, List)}
+     * 或{@link #onLoadFailure(int)}
+     */
     public interface OnRefreshListener {
         void onRefresh();
 
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 20015 MaiNaEr All rights reserved
+ */
+package cn.ieclipse.af.view.recycle;
+
+/**
+ * 根据滑动速度和页加载耗时提前加载下一页.
+ * <p>
+ * 滑动速度(条目/毫秒)和页加载耗时都取指数移动平均, 当剩余条目按当前速度滑完的时间小于页加载耗时(乘以余量)时预加载,
+ * 使下一页在滑到底部前到达; 剩余条目少于{@link #setMinRemaining(int)}时总是预加载.
+ * </p>
+ *
+ * @author wangjian
+ * @date 2016/1/4.
+ */
+public class LoadMorePrefetcher {
+    /**
+     * 还没有页加载耗时时的估计值
+     */
+    private static final long DEFAULT_LATENCY = 1000;
+    /**
+     * 耗时余量
+     */
+    private static final float SAFETY_FACTOR = 1.5f;
+    /**
+     * 移动平均的新值权重
+     */
+    private static final float ALPHA = 0.3f;
+    /**
+     * 超过该时间未滑动, 速度重新计算
+     */
+    private static final long IDLE_RESET = 500;
+
+    private int mMinRemaining = 3;
+    private float mVelocity;
+    private int mLastPosition = -1;
+    private long mLastTime;
+    private float mLatency = DEFAULT_LATENCY;
+    private long mRequestTime;
+
+    /**
+     * 剩余条目少于该值时总是预加载, 默认3
+     *
+     * @param minRemaining 最少剩余条目
+     */
+    public void setMinRemaining(int minRemaining) {
+        this.mMinRemaining = minRemaining;
+    }
+
+    /**
+     * 滑动时调用
+     *
+     * @param lastVisible 最后一个可见条目的位置
+     * @param itemCount   条目总数
+     * @param now         当前时间(毫秒), 如SystemClock.uptimeMillis()
+     * @return 是否应该预加载
+     */
+    public boolean onScrolled(int lastVisible, int itemCount, long now) {
+        if (lastVisible < 0 || itemCount <= 0) {
+            return false;
+        }
+        long dt = now - mLastTime;
+        if (mLastPosition < 0 || dt > IDLE_RESET) {
+            mVelocity = 0;
+        }
+        else if (dt > 0) {
+            float v = (float) (lastVisible - mLastPosition) / dt;
+            mVelocity = mVelocity == 0 ? v : mVelocity + ALPHA * (v - mVelocity);
+        }
+        if (dt > 0 || mLastPosition < 0) {
+            mLastPosition = lastVisible;
+            mLastTime = now;
+        }
+        int remaining = itemCount - 1 - lastVisible;
+        if (remaining <= mMinRemaining) {
+            return true;
+        }
+        // 向列表末尾滑动时, 估计滑到末尾的时间
+        return mVelocity > 0 && remaining / mVelocity <= mLatency * SAFETY_FACTOR;
+    }
+
+    /**
+     * 开始请求页时调用
+     *
+     * @param now 当前时间(毫秒)
+     */
+    public void onRequest(long now) {
+        mRequestTime = now;
+    }
+
+    /**
+     * 页加载完成时调用, 更新平均耗时
+     *
+     * @param now 当前时间(毫秒)
+     */
+    public void onResponse(long now) {
+        if (mRequestTime > 0) {
+            long latency = now - mRequestTime;
+            mLatency = mLatency + ALPHA * (latency - mLatency);
+            mRequestTime = 0;
+        }
+    }
+
+    /**
+     * 数据刷新时调用, 重新计算速度
+     */
+    public void reset() {
+        mLastPosition = -1;
+        mVelocity = 0;
+    }
+
+    /**
+     * @return 平均页加载耗时(毫秒)
+     */
+    public long getLatency() {
+        return (long) mLatency;
+    }
+
+    /**
+     * @return 滑动速度(条目/秒)
+     */
+    public float getVelocity() {
+        return mVelocity * 1000;
+    }
+}
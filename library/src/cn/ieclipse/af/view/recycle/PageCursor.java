@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 20015 MaiNaEr All rights reserved
+ */
+package cn.ieclipse.af.view.recycle;
+
+/**
+ * 分页加载状态, 代替按条目数计算页码.
+ * <p>
+ * 同一时间只有一个页请求, 加载中再次请求时返回{@link #NONE}, 不会重复加载; 只有加载成功后才前进到下一页,
+ * 失败时重试同一页, 不会跳页; 刷新会使之前未完成的加载更多请求失效.
+ * </p>
+ *
+ * @author wangjian
+ * @date 2016/1/4.
+ */
+public class PageCursor {
+    /**
+     * 无需加载
+     */
+    public static final int NONE = -1;
+
+    private final int mFirstPage;
+    private int mPageSize;
+    /**
+     * 已加载的最后一页, 未加载时为mFirstPage - 1
+     */
+    private int mLoadedPage;
+    /**
+     * 正在加载的页, 没有时为{@link #NONE}
+     */
+    private int mLoadingPage = NONE;
+    private boolean mRefreshing;
+    private boolean mHasMore = true;
+
+    public PageCursor(int firstPage, int pageSize) {
+        this.mFirstPage = firstPage;
+        this.mPageSize = pageSize;
+        this.mLoadedPage = firstPage - 1;
+    }
+
+    public void setPageSize(int pageSize) {
+        this.mPageSize = pageSize;
+    }
+
+    public int getPageSize() {
+        return mPageSize;
+    }
+
+    /**
+     * 开始刷新, 取消正在进行的加载更多
+     *
+     * @return 要加载的页, 即第一页
+     */
+    public int startRefresh() {
+        mRefreshing = true;
+        mLoadingPage = mFirstPage;
+        return mLoadingPage;
+    }
+
+    /**
+     * 开始加载更多
+     *
+     * @return 要加载的页, 正在加载时返回{@link #NONE}
+     */
+    public int startLoadMore() {
+        if (mLoadingPage != NONE) {
+            return NONE;
+        }
+        mRefreshing = false;
+        mLoadingPage = mLoadedPage + 1;
+        return mLoadingPage;
+    }
+
+    /**
+     * 页加载完成
+     *
+     * @param page  完成的页, 不是正在加载的页时忽略
+     * @param count 本页条目数, 少于每页条数时认为没有更多
+     * @return 是否为正在加载的页
+     */
+    public boolean finish(int page, int count) {
+        if (page == NONE || page != mLoadingPage) {
+            return false;
+        }
+        mLoadedPage = page;
+        mLoadingPage = NONE;
+        mHasMore = count >= mPageSize;
+        return true;
+    }
+
+    /**
+     * 页加载失败, 下次加载同一页
+     *
+     * @param page 失败的页
+     * @return 是否为正在加载的页
+     */
+    public boolean fail(int page) {
+        if (page == NONE || page != mLoadingPage) {
+            return false;
+        }
+        mLoadingPage = NONE;
+        return true;
+    }
+
+    /**
+     * @return 正在加载的页, 没有时返回下一次要加载的页
+     */
+    public int getCurrentPage() {
+        return mLoadingPage != NONE ? mLoadingPage : mLoadedPage + 1;
+    }
+
+    /**
+     * @return 正在加载的页, 没有时返回{@link #NONE}
+     */
+    public int getLoadingPage() {
+        return mLoadingPage;
+    }
+
+    public boolean isLoading() {
+        return mLoadingPage != NONE;
+    }
+
+    /**
+     * @return 正在加载的是否为刷新
+     */
+    public boolean isRefreshing() {
+        return mLoadingPage != NONE && mRefreshing;
+    }
+
+    /**
+     * @return 上一页是否满页, 可能还有更多
+     */
+    public boolean hasMore() {
+        return mHasMore;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+/**
+ * Stale-while-revalidate policy of cached responses.
+ * <ul>
+ * <li>Before soft TTL the cached response is fresh, no network request.</li>
+ * <li>Between soft TTL and hard TTL the cached response is delivered as
+ * intermediate, then a conditional (ETag/Last-Modified) request revalidates
+ * it, an unchanged response is not delivered again.</li>
+ * <li>After hard TTL the cached response is not used.</li>
+ * </ul>
+ * The default policy (soft TTL 1 second, Cache-Control ignored) keeps the
+ * behavior of the early versions.
+ *
+ * @author Jamling
+ */
+public final class CachePolicy {
+    public static final long DEFAULT_SOFT_TTL = 1000;
+    public static final CachePolicy DEFAULT = new Builder().build();
+
+    private final long mSoftTtl;
+    private final long mHardTtl;
+    private final boolean mHonorCacheControl;
+    private final boolean mRevalidate;
+
+    private CachePolicy(Builder builder) {
+        mSoftTtl = builder.mSoftTtl;
+        mHardTtl = builder.mHardTtl;
+        mHonorCacheControl = builder.mHonorCacheControl;
+        mRevalidate = builder.mRevalidate;
+    }
+
+    /**
+     * @return how long the cached response is fresh, in milliseconds
+     */
+    public long getSoftTtl() {
+        return mSoftTtl;
+    }
+
+    /**
+     * @return how long the cached response can be used (stale), in
+     * milliseconds, 0 means use the request cache time.
+     */
+    public long getHardTtl() {
+        return mHardTtl;
+    }
+
+    /**
+     * @return whether compute TTL from Cache-Control/Expires response headers
+     */
+    public boolean isHonorCacheControl() {
+        return mHonorCacheControl;
+    }
+
+    /**
+     * @return whether keep ETag/Last-Modified to revalidate stale response
+     */
+    public boolean isRevalidate() {
+        return mRevalidate;
+    }
+
+    public static final class Builder {
+        private long mSoftTtl = DEFAULT_SOFT_TTL;
+        private long mHardTtl;
+        private boolean mHonorCacheControl;
+        private boolean mRevalidate = true;
+
+        public Builder setSoftTtl(long softTtl) {
+            this.mSoftTtl = softTtl;
+            return this;
+        }
+
+        public Builder setHardTtl(long hardTtl) {
+            this.mHardTtl = hardTtl;
+            return this;
+        }
+
+        public Builder setHonorCacheControl(boolean honorCacheControl) {
+            this.mHonorCacheControl = honorCacheControl;
+            return this;
+        }
+
+        public Builder setRevalidate(boolean revalidate) {
+            this.mRevalidate = revalidate;
+            return this;
+        }
+
+        public CachePolicy build() {
+            return new CachePolicy(this);
+        }
+    }
+}
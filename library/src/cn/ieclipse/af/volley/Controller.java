@@ -15,6 +15,9 @@
  */
 package cn.ieclipse.af.volley;
 
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 
 import java.lang.reflect.ParameterizedType;
@@ -23,6 +26,8 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
+import com.android.volley.AuthFailureError;
+import com.android.volley.Cache;
 import com.android.volley.ParseError;
 import com.android.volley.Request;
 import com.android.volley.Request.Method;
@@ -30,8 +35,8 @@ import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.VolleyError;
 import com.android.volley.VolleyLog;
-import com.google.gson.Gson;
 
+import cn.ieclipse.af.util.ParamEncoder;
 import cn.ieclipse.af.util.StringUtils;
 
 /**
@@ -42,11 +47,19 @@ import cn.ieclipse.af.util.StringUtils;
  */
 public class Controller<Listener> {
     protected RequestQueue mQueue;
-    protected List<String> mTaskTags;
     protected Listener mListener;
     public static boolean DEBUG = VolleyLog.DEBUG;
     public static long CACHE_ADAY = 24 * 3600000;
     public static long CACHE_AMONTH = 30 * 24 * 3600000;
+    /**
+     * In-flight coalesced requests of all controllers
+     */
+    private static final InFlightRequests<Controller<?>.RequestObjectTask<?, ?>> sFlights = new InFlightRequests<>();
+    /**
+     * Cancellation group of the tasks besides this controller
+     */
+    private Object mGroup;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
     
     public static void log(String msg) {
         if (DEBUG) {
@@ -65,7 +78,6 @@ public class Controller<Listener> {
             throw new NullPointerException(
                     "did you forget initialize the VolleyManager?");
         }
-        mTaskTags = new ArrayList<>();
         mQueue = VolleyManager.getInstance().getQueue();
     }
     
@@ -78,15 +90,64 @@ public class Controller<Listener> {
         setListener(l);
     }
     
+    /**
+     * Set the cancellation group of the tasks, e.g. the
+     * {@link cn.ieclipse.af.app.AfActivity} or
+     * {@link cn.ieclipse.af.app.AfFragment} which cancels the group when
+     * destroyed. The tasks are always cancelled by {@link #onDestroy()}
+     * too.
+     * 
+     * @param group
+     *            group object
+     * @see RequestGroups
+     */
+    public void setGroup(Object group) {
+        this.mGroup = group;
+    }
+    
+    public Object getGroup() {
+        return mGroup;
+    }
+    
     protected abstract class RequestObjectTask<Input, Output> implements
-            Response.ErrorListener, Response.Listener<IBaseResponse> {
+            Response.ErrorListener, Response.Listener<IBaseResponse>,
+            GsonRequest.OnFinishListener, RequestGroups.Cancelable {
         protected Class<Output> mDataClazz;
         protected Class<?> mDataItemClass;
-        private Gson mGson = new Gson();
         
         protected Input input;
         private long cacheTime;
         protected GsonRequest request;
+        private InFlightRequests.Flight<Controller<?>.RequestObjectTask<?, ?>> mFlight;
+        private String mMemoryKey;
+        private RequestKey mRequestKey;
+        private CachePolicy mCachePolicy;
+        /**
+         * A cached response was delivered, skip the duplicated ones
+         */
+        private boolean mCacheDelivered;
+        private RequestPriority mPriority = RequestPriority.NORMAL;
+        private Object mTaskGroup;
+        private volatile boolean mCanceled;
+        /**
+         * Idempotency key of a write-behind request
+         */
+        private String mOutboundKey;
+        
+        /**
+         * Set the task priority, default is {@link RequestPriority#NORMAL}.
+         * A task joined an in-flight request shares its priority.
+         * 
+         * @param priority
+         *            request priority
+         */
+        public void setPriority(RequestPriority priority) {
+            this.mPriority = priority != null ? priority : RequestPriority.NORMAL;
+        }
+        
+        public RequestPriority getPriority() {
+            return mPriority;
+        }
         
         /**
          * @param cacheTime
@@ -95,6 +156,22 @@ public class Controller<Listener> {
             this.cacheTime = cacheTime;
         }
         
+        /**
+         * Set the stale-while-revalidate policy of this task, default is
+         * {@link VolleyConfig#getCachePolicy()}
+         * 
+         * @param cachePolicy
+         *            cache policy
+         */
+        public void setCachePolicy(CachePolicy cachePolicy) {
+            this.mCachePolicy = cachePolicy;
+        }
+        
+        public CachePolicy getCachePolicy() {
+            return mCachePolicy != null ? mCachePolicy
+                    : VolleyManager.getConfig().getCachePolicy();
+        }
+        
         /**
          * Perform REST request and convert response 'data' json to an object.
          * 
@@ -109,26 +186,211 @@ public class Controller<Listener> {
             assert mListener != null;
             this.input = input;
             this.mDataClazz = clazz;
+            this.mCanceled = false;
             
             // get body
             String body = getBody(input);
             // get url
             IUrl url = buildUrl(body);
             
-            Controller.log("request url: " + url.getUrl());
+            if (DEBUG) {
+                Controller.log("request url: " + url.getUrl());
+            }
+            mRequestKey = getRequestKey(url, body);
+            // parsed object in memory, no decode and no network if fresh
+            mMemoryKey = null;
+            mCacheDelivered = false;
+            ResponseMemoryCache memory = VolleyManager.getInstance()
+                    .getMemoryCache();
+            if (needCache && cacheTime > 0 && memory != null) {
+                mMemoryKey = getMemoryKey(mRequestKey);
+                ResponseMemoryCache.Entry cached = memory.getEntry(mMemoryKey);
+                if (cached != null) {
+                    if (mRequestKey.onHit(cached.getRawKey()) && DEBUG) {
+                        Controller.log("cache miss avoided: " + RequestKey.getStats());
+                    }
+                    deliverCached(copyOutput((Output) cached.getData()));
+                    if (!cached.refreshNeeded()) {
+                        return;
+                    }
+                    // stale, revalidate it
+                    mCacheDelivered = true;
+                }
+            }
+            // a write-behind request is never coalesced, it may be queued
+            // in outbound queue instead of sent
+            OutboundQueue outbound = isWriteBehind(url)
+                    ? VolleyManager.getOutboundQueue() : null;
+            // join the identical in-flight request
+            mFlight = null;
+            RequestKey key = outbound == null && isCoalescable(url)
+                    ? mRequestKey : null;
+            if (key != null) {
+                mFlight = sFlights.join(key, this);
+                if (mFlight != null) {
+                    if (DEBUG) {
+                        Controller.log("join in-flight request: " + key);
+                    }
+                    request = (GsonRequest) mFlight.getCall();
+                    attach();
+                    return;
+                }
+            }
             // get request
             request = buildRequest(url, body);
             // set request
             request.setOutputClass(getBaseResponseClass());
+            request.setDataType(getDataType());
             request.setShouldCache(needCache);
             request.setCacheTime(cacheTime);
-            if (mTaskTags != null) {
-                mTaskTags.add(getClass().getName());
-            }
+            request.setCachePolicy(getCachePolicy());
+            request.setRequestKey(mRequestKey);
+            request.setRequestPriority(mPriority);
+            request.setOnFinishListener(this);
             request.setTag(getClass().getName());
+            if (key != null) {
+                mFlight = sFlights.start(key, this, request);
+                // shared request must be cancelled by reference count
+                request.setTag(mFlight);
+            }
+            mOutboundKey = null;
+            if (outbound != null) {
+                mOutboundKey = OutboundQueue.newKey();
+                request.addHeader(OutboundQueue.IDEMPOTENCY_HEADER,
+                        mOutboundKey);
+                if (!outbound.isEmpty() || !outbound.isNetworkConnected()) {
+                    // keep the order behind the queued requests
+                    addToOutbound(outbound, null);
+                    return;
+                }
+            }
+            attach();
             mQueue.add(request);
         }
         
+        /**
+         * Whether the mutation request is queued in {@link OutboundQueue}
+         * and replayed later if it failed by a retryable error (see
+         * {@link OutboundQueue#isRetryable(VolleyError)}) or the network is
+         * not connected, instead of {@link #onError(RestError)}. Default is
+         * false, the queue must be enabled by
+         * {@link VolleyConfig.Builder#setOutboundQueueEnabled(boolean)}.
+         * <p>
+         * The replay result is delivered to
+         * {@link OutboundQueue#setListener(OutboundQueue.Listener)}, not the
+         * task, as the screen may be gone. A write-behind request is never
+         * coalesced, see {@link #isCoalescable(IUrl)}.
+         * </p>
+         * 
+         * @param url
+         *            request url
+         * @return true to queue the request
+         */
+        protected boolean isWriteBehind(IUrl url) {
+            return false;
+        }
+        
+        /**
+         * Called in main thread when the request is queued in
+         * {@link OutboundQueue}, the default does nothing.
+         * 
+         * @param entry
+         *            queued request
+         */
+        protected void onQueued(OutboundQueue.Entry entry) {
+        }
+        
+        private void addToOutbound(OutboundQueue outbound, VolleyError error) {
+            final OutboundQueue.Entry entry;
+            try {
+                entry = outbound.add(request, mOutboundKey);
+            } catch (AuthFailureError e) {
+                if (error == null) {
+                    onError(new RestError(e));
+                }
+                else {
+                    onError(new RestError(error));
+                }
+                return;
+            }
+            if (DEBUG) {
+                Controller.log("queued outbound request: " + entry);
+            }
+            if (error != null) {
+                onQueued(entry);
+                return;
+            }
+            // keep async as volley
+            sMainHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    if (!mCanceled) {
+                        onQueued(entry);
+                    }
+                }
+            }, Controller.this, SystemClock.uptimeMillis());
+        }
+        
+        /**
+         * Cancel the task, a task joined an in-flight request leaves it, the
+         * shared request is cancelled only if no task waiting for it.
+         */
+        @Override
+        public void cancel() {
+            mCanceled = true;
+            detach();
+            if (mFlight != null) {
+                if (sFlights.leave(mFlight, this)) {
+                    ((Request<?>) mFlight.getCall()).cancel();
+                }
+            }
+            else if (request != null) {
+                request.cancel();
+            }
+        }
+        
+        private void attach() {
+            RequestGroups.add(Controller.this, this);
+            mTaskGroup = mGroup;
+            if (mTaskGroup != null && mTaskGroup != Controller.this) {
+                RequestGroups.add(mTaskGroup, this);
+            }
+        }
+        
+        private void detach() {
+            RequestGroups.remove(Controller.this, this);
+            if (mTaskGroup != null) {
+                RequestGroups.remove(mTaskGroup, this);
+            }
+        }
+        
+        /**
+         * Whether the identical in-flight requests (see
+         * {@link #getRequestKey(IUrl, String)}) share one network call and
+         * one parsed result. Default only HTTP GET requests are coalesced.
+         * 
+         * @param url
+         *            request url
+         * @return true to coalesce
+         */
+        protected boolean isCoalescable(IUrl url) {
+            return url.getMethod() == Method.GET;
+        }
+        
+        /**
+         * Get the key identifies the request, it consists of method, URL and
+         * body, and is used as the volley cache key and the in-flight key.
+         * 
+         * @param url
+         *            full URL see {@link #buildUrl(String)}
+         * @param body
+         *            request body see {@link #getBody(Object)}
+         * @return canonical request key
+         */
+        protected RequestKey getRequestKey(IUrl url, String body) {
+            return RequestKey.create(url.getMethod(), url.getUrl(), body);
+        }
+        
         /**
          * Perform REST request and convert response 'data' json to
          * {@linkplain java.util.List java.util.List} object.
@@ -206,32 +468,60 @@ public class Controller<Listener> {
                 body = null;
             }
             else if (input instanceof Map) {
-                Map map = (Map) input;
-                StringBuilder sb = new StringBuilder();
-                for (Object key : map.keySet()) {
-                    sb.append(key);
-                    sb.append('=');
-                    sb.append(StringUtils.getRequestParamValue(map.get(key),
-                            getParamsEncoding()));
-                    sb.append('&');
-                }
-                if (sb.length() > 1) {
-                    sb.deleteCharAt(sb.length() - 1);
-                }
-                body = sb.toString();
+                body = ParamEncoder.encode((Map<?, ?>) input,
+                        getParamsEncoding());
             }
             else {
                 body = StringUtils.getRequestParam(input, getParamsEncoding());
             }
-            Controller.log("request body: " + body);
+            if (DEBUG) {
+                Controller.log("request body: " + body);
+            }
             return body;
         }
         
         @Override
         public final void onResponse(IBaseResponse response) {
+            if (mFlight == null) {
+                if (!request.intermediate) {
+                    detach();
+                }
+                handleResponse(response);
+                return;
+            }
+            // leader delivers the shared response to all the members
+            boolean done = !request.intermediate;
+            List<Controller<?>.RequestObjectTask<?, ?>> members = sFlights
+                    .deliver(mFlight, done);
+            for (Controller<?>.RequestObjectTask<?, ?> task : members) {
+                if (done) {
+                    task.releaseFlight();
+                }
+                task.handleResponse(response);
+            }
+        }
+        
+        private void handleResponse(IBaseResponse response) {
+            if (mCanceled) {
+                return;
+            }
+            if (mCacheDelivered
+                    && (request.intermediate || request.isUnchanged())) {
+                if (DEBUG) {
+                    Controller.log("cached response was delivered, skip "
+                            + (request.intermediate ? "intermediate" : "unchanged")
+                            + " response");
+                }
+                if (!request.intermediate) {
+                    refreshMemory();
+                }
+                return;
+            }
             Output out = null;
             try {
-                Controller.log("from cache : " + request.intermediate);
+                if (DEBUG) {
+                    Controller.log("from cache : " + request.intermediate);
+                }
                 if (response == null) {
                     throw new NullPointerException(
                         "base response is null, please check your http response.");
@@ -250,6 +540,20 @@ public class Controller<Listener> {
                 onError(new RestError(new ParseError(e)));
                 return;
             }
+            ResponseMemoryCache memory = VolleyManager.getInstance()
+                    .getMemoryCache();
+            if (mMemoryKey != null && memory != null) {
+                Cache.Entry entry = request.getResponseCacheEntry();
+                long now = System.currentTimeMillis();
+                // the caller may modify out, e.g. append the next page
+                memory.put(mMemoryKey, mRequestKey.getRawKey(), copyOutput(out),
+                        request.getResponseSize(),
+                        entry != null ? entry.softTtl : now,
+                        entry != null ? entry.ttl : now + cacheTime);
+            }
+            if (request.intermediate) {
+                mCacheDelivered = true;
+            }
             try {
                 onSuccess(out, request.intermediate);
             } catch (Exception e) {
@@ -260,7 +564,123 @@ public class Controller<Listener> {
         
         @Override
         public void onErrorResponse(VolleyError error) {
-            onError(new RestError(error));
+            if (mFlight == null) {
+                detach();
+                if (mCanceled) {
+                    return;
+                }
+                OutboundQueue outbound = VolleyManager.getOutboundQueue();
+                if (mOutboundKey != null && outbound != null
+                        && OutboundQueue.isRetryable(error)) {
+                    addToOutbound(outbound, error);
+                }
+                else {
+                    onError(new RestError(error));
+                }
+                return;
+            }
+            List<Controller<?>.RequestObjectTask<?, ?>> members = sFlights
+                    .deliver(mFlight, true);
+            for (Controller<?>.RequestObjectTask<?, ?> task : members) {
+                task.releaseFlight();
+                if (!task.mCanceled) {
+                    task.onError(new RestError(error));
+                }
+            }
+        }
+        
+        private void releaseFlight() {
+            detach();
+        }
+        
+        /**
+         * Release the flight or the task when the request is finished,
+         * volley finishes the not modified revalidation of a delivered cached
+         * response without a final delivery, the parsed object in memory is
+         * revalidated then.
+         */
+        @Override
+        public void onFinish(GsonRequest request) {
+            Object tag = request.getTag();
+            if (tag instanceof InFlightRequests.Flight) {
+                @SuppressWarnings("unchecked")
+                InFlightRequests.Flight<Controller<?>.RequestObjectTask<?, ?>> flight
+                        = (InFlightRequests.Flight<Controller<?>.RequestObjectTask<?, ?>>) tag;
+                for (Controller<?>.RequestObjectTask<?, ?> task : sFlights.finish(flight)) {
+                    task.releaseFlight();
+                    if (request.isNotModified()) {
+                        task.refreshMemory();
+                    }
+                }
+            }
+            else if (request == this.request) {
+                detach();
+                if (request.isNotModified()) {
+                    refreshMemory();
+                }
+            }
+        }
+        
+        private void refreshMemory() {
+            ResponseMemoryCache memory = VolleyManager.getInstance()
+                    .getMemoryCache();
+            Cache.Entry entry = request.getResponseCacheEntry();
+            if (mMemoryKey != null && memory != null && entry != null) {
+                memory.refresh(mMemoryKey, entry.softTtl, entry.ttl);
+            }
+        }
+        
+        /**
+         * Get the key of parsed object in {@link ResponseMemoryCache}, the
+         * output type is a part of the key.
+         * 
+         * @param key
+         *            request key see {@link #getRequestKey(IUrl, String)}
+         * @return memory cache key
+         */
+        protected String getMemoryKey(RequestKey key) {
+            Type type = getDataType();
+            return key.getKey() + '#'
+                    + (type != null ? type : getBaseResponseClass());
+        }
+        
+        /**
+         * Copy the output shared with {@link ResponseMemoryCache}, the cached
+         * object is never handed to the caller. Default copies a
+         * {@link List} output (the items are shared and must not be
+         * modified), other outputs are returned as they are.
+         * 
+         * @param out
+         *            parsed output
+         * @return the copy of output
+         */
+        @SuppressWarnings("unchecked")
+        protected Output copyOutput(Output out) {
+            if (out instanceof List) {
+                return (Output) new ArrayList<>((List<?>) out);
+            }
+            return out;
+        }
+        
+        private void deliverCached(final Output out) {
+            if (DEBUG) {
+                Controller.log("from memory cache : " + mMemoryKey);
+            }
+            // keep async as volley, the token is used to cancel in onDestroy
+            sMainHandler.postAtTime(new Runnable() {
+                @Override
+                public void run() {
+                    if (mCanceled) {
+                        return;
+                    }
+                    try {
+                        onSuccess(out, true);
+                    } catch (Exception e) {
+                        onError((e instanceof RestError) ? (RestError) e
+                                : new RestError(new ClientError(e)));
+                    }
+                }
+            }, Controller.this, SystemClock.uptimeMillis());
         }
         
         /**
@@ -280,6 +700,24 @@ public class Controller<Listener> {
             return VolleyManager.getConfig().getBaseResponseClass();
         }
         
+        /**
+         * Get the target type of response 'data', the 'data' json will be
+         * bound to this type while parsing the response.
+         * 
+         * @return output class, <code>List&lt;item&gt;</code> type for
+         *         {@link #load2List(Object, Class, boolean)} or null if the
+         *         output is the whole response
+         */
+        protected Type getDataType() {
+            if (mDataClazz != null) {
+                return isIBaseResponse(mDataClazz) ? null : mDataClazz;
+            }
+            if (mDataItemClass != null) {
+                return type(List.class, mDataItemClass);
+            }
+            return null;
+        }
+        
         protected Output convertData(IBaseResponse response, Class<?> clazz,
                 Class<?> itemClazz) throws Exception {
             Output out = null;
@@ -294,15 +732,23 @@ public class Controller<Listener> {
                     out = ((Output) response);
                     return out;
                 }
+                Type dataType = listOutput ? type(List.class, itemClazz)
+                        : mDataClazz;
+                // 'data' was bound while parsing response
+                Object bound = EnvelopeDecoder.get(response.getClass())
+                        .getData(response, dataType);
+                if (bound != null) {
+                    return (Output) bound;
+                }
                 String data = response.getData();
                 if (listOutput) {
-                    out = mGson.fromJson(data, type(List.class, itemClazz));
+                    out = TypeAdapterRegistry.fromJson(data, type(List.class, itemClazz));
                     if (out == null) {
                         out = (Output) new ArrayList<>(0);
                     }
                 }
                 else {
-                    out = mGson.fromJson(data, mDataClazz);
+                    out = TypeAdapterRegistry.fromJson(data, mDataClazz);
                 }
             }
             return out;
@@ -315,20 +761,11 @@ public class Controller<Listener> {
         public abstract void onError(RestError error);
     }
     
+    /**
+     * @see TypeAdapterRegistry#type(Class, Type...)
+     */
     public static ParameterizedType type(final Class raw, final Type... args) {
-        return new ParameterizedType() {
-            public Type getRawType() {
-                return raw;
-            }
-            
-            public Type[] getActualTypeArguments() {
-                return args;
-            }
-            
-            public Type getOwnerType() {
-                return null;
-            }
-        };
+        return TypeAdapterRegistry.type(raw, args);
     }
     
     public static List<Class<?>> getSuperType(Class<?> clazz) {
@@ -354,14 +791,9 @@ public class Controller<Listener> {
     }
     
     public void onDestroy() {
-        mQueue.cancelAll(new RequestQueue.RequestFilter() {
-            @Override
-            public boolean apply(Request<?> request) {
-                if (mTaskTags != null && mTaskTags.contains(request.getTag())) {
-                    return true;
-                }
-                return false;
-            }
-        });
+        sMainHandler.removeCallbacksAndMessages(this);
+        // cancel the running tasks of this controller, the coalesced
+        // requests are cancelled only if no task waiting for
+        RequestGroups.cancel(this);
     }
 }
\ No newline at end of file
@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.annotations.SerializedName;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Single pass decoder of the response envelope, e.g.
+ * <code>{"status":..., "message":..., "data":{...}}</code>.
+ * <p>
+ * The small envelope members are read as usual while the 'data' member is
+ * bound straight into the target type from the same {@link JsonReader}, so
+ * the 'data' json is never re-serialized to a string and parsed again. The
+ * bound object is stored in the envelope's data field (which must be
+ * assignable from the target type, typically <code>Object</code>), use
+ * {@link #getData(Object, Type)} to get it back.
+ * </p>
+ * <p>
+ * If the envelope has no such field or the 'data' doesn't match the target
+ * type (e.g. an error response with <code>"data":""</code>), the whole
+ * response is decoded the old way and {@link #getData(Object, Type)} returns
+ * null.
+ * </p>
+ *
+ * @author Jamling
+ */
+public final class EnvelopeDecoder<T> {
+    public static final String DEFAULT_DATA_NAME = "data";
+    private static final ConcurrentHashMap<Class<?>, EnvelopeDecoder<?>> sDecoders = new ConcurrentHashMap<>();
+
+    private final Class<T> mEnvelopeClass;
+    private final String mDataName;
+    private final Field mDataField;
+
+    public EnvelopeDecoder(Class<T> envelopeClass, String dataName) {
+        this.mEnvelopeClass = envelopeClass;
+        this.mDataName = dataName;
+        this.mDataField = findField(envelopeClass, dataName);
+    }
+
+    /**
+     * Get the shared decoder of envelope class, 'data' member name is
+     * {@value #DEFAULT_DATA_NAME}
+     *
+     * @param envelopeClass
+     *            base response class
+     * @return decoder
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> EnvelopeDecoder<T> get(Class<T> envelopeClass) {
+        EnvelopeDecoder<T> decoder = (EnvelopeDecoder<T>) sDecoders.get(envelopeClass);
+        if (decoder == null) {
+            decoder = new EnvelopeDecoder<>(envelopeClass, DEFAULT_DATA_NAME);
+            EnvelopeDecoder<T> old = (EnvelopeDecoder<T>) sDecoders.putIfAbsent(envelopeClass, decoder);
+            if (old != null) {
+                decoder = old;
+            }
+        }
+        return decoder;
+    }
+
+    /**
+     * Whether the 'data' member can be bound to the type directly.
+     *
+     * @param dataType
+     *            target type of 'data'
+     * @return true if can
+     */
+    public boolean canBind(Type dataType) {
+        Class<?> raw = rawType(dataType);
+        return mDataField != null && raw != null && mDataField.getType().isAssignableFrom(raw);
+    }
+
+    /**
+     * Decode the response body.
+     *
+     * @param data
+     *            response body
+     * @param charset
+     *            body charset
+     * @param dataType
+     *            target type of 'data', null to decode the envelope only
+     * @return envelope object
+     * @throws UnsupportedEncodingException
+     *             if charset is not supported
+     * @throws JsonSyntaxException
+     *             if the body is not a valid envelope json
+     */
+    public T decode(byte[] data, String charset, Type dataType) throws UnsupportedEncodingException {
+        if (data == null) {
+            return null;
+        }
+        if (dataType != null && canBind(dataType)) {
+            try {
+                return decodeStreaming(newReader(data, charset), dataType);
+            } catch (JsonParseException e) {
+                Controller.log("can't bind 'data' to " + dataType + ", decode it later", e);
+            } catch (IllegalStateException e) {
+                Controller.log("can't bind 'data' to " + dataType + ", decode it later", e);
+            } catch (IOException e) {
+                Controller.log("can't bind 'data' to " + dataType + ", decode it later", e);
+            }
+        }
+        return TypeAdapterRegistry.fromJsonDocument(newReader(data, charset), mEnvelopeClass);
+    }
+
+    /**
+     * Get the 'data' object bound by {@link #decode(byte[], String, Type)}.
+     *
+     * @param envelope
+     *            decoded envelope
+     * @param dataType
+     *            target type of 'data'
+     * @return the bound object or null if the 'data' was not bound to the
+     * type.
+     */
+    public Object getData(Object envelope, Type dataType) {
+        if (envelope == null || mDataField == null || !mEnvelopeClass.isInstance(envelope)) {
+            return null;
+        }
+        Object value;
+        try {
+            value = mDataField.get(envelope);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+        return matches(value, dataType) ? value : null;
+    }
+
+    private T decodeStreaming(JsonReader reader, Type dataType) throws IOException {
+        reader.setLenient(true);
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new JsonSyntaxException("response is not a json object");
+        }
+        JsonObject rest = new JsonObject();
+        Object data = null;
+        boolean bound = false;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (mDataName.equals(name) && reader.peek() != JsonToken.STRING) {
+                // string 'data' is kept as it is (legacy double encoded json)
+                data = TypeAdapterRegistry.getAdapter(dataType).read(reader);
+                bound = true;
+            }
+            else if (mDataName.equals(name)) {
+                rest.add(name, new JsonPrimitive(reader.nextString()));
+            }
+            else {
+                rest.add(name, TypeAdapterRegistry.getAdapter(JsonElement.class).read(reader));
+            }
+        }
+        reader.endObject();
+        reader.setLenient(false);
+        TypeAdapterRegistry.assertFullConsumption(rest, reader);
+        T envelope = TypeAdapterRegistry.getAdapter(mEnvelopeClass).fromJsonTree(rest);
+        if (bound && envelope != null) {
+            try {
+                mDataField.set(envelope, data);
+            } catch (IllegalAccessException e) {
+                throw new JsonSyntaxException(e);
+            }
+        }
+        return envelope;
+    }
+
+    private static JsonReader newReader(byte[] data, String charset) throws UnsupportedEncodingException {
+        return new JsonReader(new InputStreamReader(new ByteArrayInputStream(data), charset));
+    }
+
+    private static boolean matches(Object value, Type dataType) {
+        Class<?> raw = rawType(dataType);
+        if (value == null || raw == null || !raw.isInstance(value)) {
+            return false;
+        }
+        if (value instanceof List && dataType instanceof ParameterizedType) {
+            Type[] args = ((ParameterizedType) dataType).getActualTypeArguments();
+            Class<?> item = args.length == 1 ? rawType(args[0]) : null;
+            for (Object o : (List<?>) value) {
+                if (o != null) {
+                    // LinkedTreeMap items means data was not bound
+                    return item != null && item.isInstance(o);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static Class<?> rawType(Type type) {
+        if (type instanceof Class) {
+            return (Class<?>) type;
+        }
+        if (type instanceof ParameterizedType) {
+            Type raw = ((ParameterizedType) type).getRawType();
+            return raw instanceof Class ? (Class<?>) raw : null;
+        }
+        return null;
+    }
+
+    private static Field findField(Class<?> clazz, String name) {
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (Field f : c.getDeclaredFields()) {
+                int mod = f.getModifiers();
+                if (Modifier.isStatic(mod) || Modifier.isTransient(mod)) {
+                    continue;
+                }
+                SerializedName sn = f.getAnnotation(SerializedName.class);
+                String json = sn != null ? sn.value() : f.getName();
+                if (name.equals(json)) {
+                    f.setAccessible(true);
+                    return f;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -20,6 +20,7 @@ import com.android.volley.Cache;
 import com.android.volley.NetworkResponse;
 import com.android.volley.ParseError;
 import com.android.volley.Request;
+import com.android.volley.RequestQueue;
 import com.android.volley.Response;
 import com.android.volley.Response.ErrorListener;
 import com.android.volley.Response.Listener;
@@ -27,19 +28,87 @@ import com.android.volley.RetryPolicy;
 import com.android.volley.toolbox.HttpHeaderParser;
 import com.android.volley.toolbox.JsonRequest;
 import com.google.gson.Gson;
-import com.google.gson.JsonSyntaxException;
+import com.google.gson.JsonParseException;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 
 import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class GsonRequest extends JsonRequest<IBaseResponse> {
+    /**
+     * Callback of {@link #setOnFinishListener(OnFinishListener)}
+     */
+    public interface OnFinishListener {
+        /**
+         * Called in main thread when the request is finished, whether a
+         * final response was delivered, or it was cancelled, or the
+         * revalidation of a delivered cached response was not modified which
+         * volley finishes without delivering.
+         *
+         * @param request
+         *            the finished request
+         */
+        void onFinish(GsonRequest request);
+    }
+
+    /**
+     * A parsed response to deliver, with its own state, the cached and the
+     * network responses are parsed in different threads.
+     */
+    private static final class Parsed {
+        final Response<IBaseResponse> response;
+        final boolean unchanged;
+
+        Parsed(Response<IBaseResponse> response, boolean unchanged) {
+            this.response = response;
+            this.unchanged = unchanged;
+        }
+    }
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
     protected Class<?> mClazz;
-    protected final Gson mGson = new Gson();
+    protected Type mDataType;
+    protected final Gson mGson = TypeAdapterRegistry.getGson();
     protected boolean intermediate;
     protected long ttl = 365 * 24 * 60 * 60 * 1000;
     protected Map<String, String> mHeaders;
-    protected Response<IBaseResponse> response;
+    protected int mResponseSize;
+    protected CachePolicy mCachePolicy = VolleyManager.getConfig().getCachePolicy();
+    /**
+     * Parsed responses not delivered yet, in parse order
+     */
+    private final List<Parsed> mParsed = new ArrayList<>(2);
+    /**
+     * The delivered network response is same as the delivered cached one
+     */
+    private boolean mUnchanged;
+    /**
+     * Finished by a not modified revalidation, no final delivery
+     */
+    private volatile boolean mNotModified;
+    private volatile boolean mNetworkComplete;
+    private volatile boolean mFinalDelivered;
+    private RequestQueue mRequestQueue;
+    protected Cache.Entry mResponseEntry;
+    protected RequestKey mRequestKey;
+    private RequestPriority mPriority = RequestPriority.NORMAL;
+    /**
+     * Volley priority fixed when added to the queue, see {@link PriorityAging}
+     */
+    private volatile Priority mQueuedPriority;
+    // timing of NetworkMetrics, only when enabled
+    private String mEndpoint;
+    private volatile long mEnqueueTime;
+    private volatile long mPostTime;
+    private OnFinishListener mFinishListener;
     
     public GsonRequest(int method, String url, String body, Listener<IBaseResponse> responseListener,
                        ErrorListener listener) {
@@ -48,39 +117,309 @@ public class GsonRequest extends JsonRequest<IBaseResponse> {
     
     @Override
     protected void deliverResponse(IBaseResponse response) {
-        this.intermediate = this.response.intermediate;
-        this.response = null;
+        // the state of the delivered one, a later parse may be done already
+        Parsed parsed = takeParsed(response);
+        this.intermediate = parsed != null && parsed.response.intermediate;
+        this.mResponseEntry = parsed != null ? parsed.response.cacheEntry : null;
+        this.mUnchanged = parsed != null && parsed.unchanged;
+        if (!intermediate) {
+            mFinalDelivered = true;
+        }
+        boolean metrics = NetworkMetrics.isEnabled();
+        if (metrics && mPostTime > 0) {
+            NetworkMetrics.record(getEndpoint(), NetworkMetrics.Phase.DELIVERY,
+                SystemClock.elapsedRealtime() - mPostTime);
+        }
         super.deliverResponse(response);
+        if (metrics && !intermediate && mEnqueueTime > 0) {
+            NetworkMetrics.record(getEndpoint(), NetworkMetrics.Phase.TOTAL,
+                SystemClock.elapsedRealtime() - mEnqueueTime);
+        }
+    }
+    
+    /**
+     * Record the queue time and the delivery time of {@link NetworkMetrics}
+     * from the volley markers.
+     */
+    @Override
+    public void addMarker(String tag) {
+        super.addMarker(tag);
+        if ("network-http-complete".equals(tag)) {
+            mNetworkComplete = true;
+        }
+        else if ("network-queue-take".equals(tag)) {
+            PriorityAging.dequeue(this, mPriority);
+        }
+        if (!NetworkMetrics.isEnabled()) {
+            return;
+        }
+        long now = SystemClock.elapsedRealtime();
+        if ("add-to-queue".equals(tag)) {
+            mEnqueueTime = now;
+        }
+        else if ("network-queue-take".equals(tag) && mEnqueueTime > 0) {
+            NetworkMetrics.record(getEndpoint(), NetworkMetrics.Phase.QUEUE, now - mEnqueueTime);
+        }
+        else if ("post-response".equals(tag)) {
+            mPostTime = now;
+        }
+    }
+    
+    private String getEndpoint() {
+        if (mEndpoint == null) {
+            mEndpoint = NetworkMetrics.getEndpoint(getUrl());
+        }
+        return mEndpoint;
     }
     
     @Override
     protected Response<IBaseResponse> parseNetworkResponse(NetworkResponse response) {
         try {
-            String json = new String(response.data, HttpHeaderParser.parseCharset(response.headers));
-            Response<IBaseResponse> ret = Response.success(getData(json.trim(), response), parseCacheHeaders(response,
-                ttl));
-            this.response = ret;
+            mResponseSize = response.data == null ? 0 : response.data.length;
+            boolean unchanged = isUnchanged(response);
+            long start = NetworkMetrics.isEnabled() ? SystemClock.elapsedRealtime() : 0;
+            IBaseResponse decoded = decode(response);
+            if (start > 0) {
+                NetworkMetrics.record(getEndpoint(), NetworkMetrics.Phase.PARSE,
+                    SystemClock.elapsedRealtime() - start);
+            }
+            Response<IBaseResponse> ret = Response.success(decoded,
+                parseCacheHeaders(response, mCachePolicy, ttl));
+            synchronized (mParsed) {
+                mParsed.add(new Parsed(ret, unchanged));
+            }
             return ret;
         } catch (UnsupportedEncodingException e) {
             return Response.error(new ParseError(e));
-        } catch (JsonSyntaxException e) {
+        } catch (JsonParseException e) {
+            // malformed, truncated or trailing data
             return Response.error(new ParseError(e));
         }
     }
     
+    private Parsed takeParsed(IBaseResponse result) {
+        synchronized (mParsed) {
+            for (int i = 0; i < mParsed.size(); i++) {
+                if (mParsed.get(i).response.result == result) {
+                    return mParsed.remove(i);
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Set the canonical key of the request, it's used as the cache key.
+     *
+     * @param requestKey
+     *            request key, null to use the URL as cache key
+     */
+    public void setRequestKey(RequestKey requestKey) {
+        this.mRequestKey = requestKey;
+    }
+
+    public RequestKey getRequestKey() {
+        return mRequestKey;
+    }
+
+    @Override
+    public String getCacheKey() {
+        return mRequestKey != null ? mRequestKey.getKey() : super.getCacheKey();
+    }
+
+    /**
+     * Set the task priority, must be called before added to the queue.
+     * The queued volley priority may be lower, see {@link #getPriority()}.
+     *
+     * @param priority
+     *            request priority
+     */
+    public void setRequestPriority(RequestPriority priority) {
+        this.mPriority = priority != null ? priority : RequestPriority.NORMAL;
+    }
+
+    public RequestPriority getRequestPriority() {
+        return mPriority;
+    }
+
+    /**
+     * The volley priority, it's fixed when the request is added to the
+     * queue and may be lower than the task priority to protect a starving
+     * request, see {@link PriorityAging}. All the requests are ordered by
+     * the default {@link Request#compareTo(Request)} (priority then
+     * sequence), so the order is consistent with the other request types.
+     */
+    @Override
+    public Priority getPriority() {
+        Priority queued = mQueuedPriority;
+        return queued != null ? queued : mPriority.toVolley();
+    }
+
+    /**
+     * Set the listener called when the request is finished, e.g. to release
+     * the resources held until the request end.
+     *
+     * @param listener
+     *            finish listener
+     */
+    public void setOnFinishListener(OnFinishListener listener) {
+        this.mFinishListener = listener;
+    }
+
+    /**
+     * Called by the {@link com.android.volley.RequestQueue.RequestFinishedListener}
+     * of {@link VolleyManager}, in the thread finished the request.
+     */
+    void notifyFinished() {
+        PriorityAging.dequeue(this, mPriority);
+        if (mNetworkComplete && !mFinalDelivered && hasHadResponseDelivered() && !isCanceled()) {
+            // volley doesn't parse the 304 after an intermediate response
+            mNotModified = true;
+            revalidate();
+        }
+        final OnFinishListener listener = mFinishListener;
+        if (listener == null) {
+            return;
+        }
+        sMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                listener.onFinish(GsonRequest.this);
+            }
+        });
+    }
+
+    /**
+     * Extend the expire time of the delivered cache entry after it's
+     * revalidated, volley doesn't update the cache of a not modified
+     * response.
+     */
+    private void revalidate() {
+        Cache.Entry entry = getCacheEntry();
+        if (entry == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long hardTtl = mCachePolicy.getHardTtl() > 0 ? mCachePolicy.getHardTtl() : ttl;
+        entry.ttl = Math.max(entry.ttl, now + hardTtl);
+        entry.softTtl = Math.min(now + mCachePolicy.getSoftTtl(), entry.ttl);
+        mResponseEntry = entry;
+        if (mRequestQueue != null && shouldCache()) {
+            mRequestQueue.getCache().put(getCacheKey(), entry);
+        }
+    }
+
+    /**
+     * Called by {@link RequestQueue#add(Request)} before the request is
+     * queued, the enqueue time and the queued priority are stamped here.
+     */
+    @Override
+    public Request<?> setRequestQueue(RequestQueue requestQueue) {
+        mRequestQueue = requestQueue;
+        mQueuedPriority = PriorityAging.enqueue(this, mPriority, SystemClock.elapsedRealtime());
+        return super.setRequestQueue(requestQueue);
+    }
+
     public void setOutputClass(Class<?> clazz) {
         this.mClazz = clazz;
     }
     
+    /**
+     * Set the target type of response 'data', the 'data' will be bound to
+     * the type while parsing the response, see {@link EnvelopeDecoder}
+     *
+     * @param dataType
+     *            'data' type, null means don't bind 'data'
+     */
+    public void setDataType(Type dataType) {
+        this.mDataType = dataType;
+    }
+
+    /**
+     * @return length of the last parsed response body
+     */
+    public int getResponseSize() {
+        return mResponseSize;
+    }
+    
+    /**
+     * Whether the last delivered response is a revalidation of the delivered
+     * cached (intermediate) response and nothing changed, the receiver can
+     * skip it.
+     *
+     * @return true if the response is same as the cached one
+     */
+    public boolean isUnchanged() {
+        return !intermediate && mUnchanged;
+    }
+
+    /**
+     * Whether the request was finished by a not modified revalidation of
+     * the delivered cached (intermediate) response, volley finishes it
+     * without a final delivery. The cache entry is refreshed, see
+     * {@link #getResponseCacheEntry()}.
+     *
+     * @return true if the cached response is revalidated
+     */
+    public boolean isNotModified() {
+        return mNotModified;
+    }
+
+    /**
+     * @return cache entry of the last delivered response, may be null
+     */
+    public Cache.Entry getResponseCacheEntry() {
+        return mResponseEntry;
+    }
+
+    public void setCachePolicy(CachePolicy cachePolicy) {
+        if (cachePolicy != null) {
+            this.mCachePolicy = cachePolicy;
+        }
+    }
+
+    protected boolean isUnchanged(NetworkResponse response) {
+        Cache.Entry cached = getCacheEntry();
+        if (cached == null || !hasHadResponseDelivered()) {
+            return false;
+        }
+        // the 304 after an intermediate response is not parsed, see isNotModified()
+        return Arrays.equals(cached.data, response.data);
+    }
+    
     public void setCacheTime(long cacheTime) {
         if (cacheTime > 0) {
             this.ttl = cacheTime;
         }
     }
     
+    /**
+     * Decode the response body to {@link IBaseResponse} in one pass, the
+     * 'data' is bound to {@link #setDataType(Type) data type} if possible.
+     *
+     * @param response
+     *            network response
+     * @return base response
+     * @throws UnsupportedEncodingException
+     *             if response charset is not supported
+     */
+    protected IBaseResponse decode(NetworkResponse response) throws UnsupportedEncodingException {
+        String charset = HttpHeaderParser.parseCharset(response.headers);
+        if (mDataType == null) {
+            String json = new String(response.data, charset);
+            return getData(json.trim(), response);
+        }
+        if (Controller.DEBUG) {
+            Controller.log("response json:" + new String(response.data, charset));
+        }
+        return (IBaseResponse) EnvelopeDecoder.get(mClazz).decode(response.data, charset, mDataType);
+    }
+
     protected IBaseResponse getData(String json, NetworkResponse response) {
-        Controller.log("response json:" + json);
-        return (IBaseResponse) new Gson().fromJson(json, mClazz);
+        if (Controller.DEBUG) {
+            Controller.log("response json:" + json);
+        }
+        return (IBaseResponse) TypeAdapterRegistry.fromJson(json, mClazz);
     }
     
     @Override
@@ -138,15 +477,35 @@ public class GsonRequest extends JsonRequest<IBaseResponse> {
      * not cacheable.
      */
     public static Cache.Entry parseCacheHeaders(NetworkResponse response, long ttl) {
+        return parseCacheHeaders(response, CachePolicy.DEFAULT, ttl);
+    }
+    
+    /**
+     * Extracts a {@link Cache.Entry} from a {@link NetworkResponse} with the
+     * stale-while-revalidate policy.
+     *
+     * @param response The network response to parse headers from
+     * @param policy   the cache policy
+     * @param ttl      the cache expired time, used if policy has no hard TTL
+     *
+     * @return a cache entry for the given response, or null if the response is
+     * not cacheable.
+     * @see CachePolicy
+     */
+    public static Cache.Entry parseCacheHeaders(NetworkResponse response, CachePolicy policy, long ttl) {
         long now = System.currentTimeMillis();
         
         Map<String, String> headers = response.headers;
         
         long serverDate = 0;
         long serverExpires = 0;
+        long lastModified = 0;
         long softExpire = 0;
+        long finalExpire = 0;
         long maxAge = 0;
+        long staleWhileRevalidate = 0;
         boolean hasCacheControl = false;
+        boolean mustRevalidate = false;
         
         String serverEtag = null;
         String headerValue;
@@ -156,17 +515,73 @@ public class GsonRequest extends JsonRequest<IBaseResponse> {
             serverDate = HttpHeaderParser.parseDateAsEpoch(headerValue);
         }
         
-        serverEtag = headers.get("ETag");
-        softExpire = now + 1000;
+        if (policy.isHonorCacheControl()) {
+            headerValue = headers.get("Cache-Control");
+            if (headerValue != null) {
+                hasCacheControl = true;
+                String[] tokens = headerValue.split(",");
+                for (int i = 0; i < tokens.length; i++) {
+                    String token = tokens[i].trim();
+                    if (token.equals("no-cache") || token.equals("no-store")) {
+                        return null;
+                    }
+                    else if (token.startsWith("max-age=")) {
+                        maxAge = parseSeconds(token.substring(8));
+                    }
+                    else if (token.startsWith("stale-while-revalidate=")) {
+                        staleWhileRevalidate = parseSeconds(token.substring(23));
+                    }
+                    else if (token.equals("must-revalidate") || token.equals("proxy-revalidate")) {
+                        mustRevalidate = true;
+                    }
+                }
+            }
+            headerValue = headers.get("Expires");
+            if (headerValue != null) {
+                serverExpires = HttpHeaderParser.parseDateAsEpoch(headerValue);
+            }
+        }
+        
+        if (policy.isRevalidate()) {
+            serverEtag = headers.get("ETag");
+            headerValue = headers.get("Last-Modified");
+            if (headerValue != null) {
+                lastModified = HttpHeaderParser.parseDateAsEpoch(headerValue);
+            }
+        }
+        
+        long hardTtl = policy.getHardTtl() > 0 ? policy.getHardTtl() : ttl;
+        if (hasCacheControl) {
+            softExpire = now + maxAge * 1000;
+            finalExpire = mustRevalidate ? softExpire
+                : Math.max(softExpire + staleWhileRevalidate * 1000, now + hardTtl);
+        }
+        else if (serverDate > 0 && serverExpires >= serverDate) {
+            softExpire = now + (serverExpires - serverDate);
+            finalExpire = Math.max(softExpire, now + hardTtl);
+        }
+        else {
+            softExpire = now + policy.getSoftTtl();
+            finalExpire = now + hardTtl;
+        }
         
         Cache.Entry entry = new Cache.Entry();
         entry.data = response.data;
         entry.etag = serverEtag;
-        entry.softTtl = softExpire;
-        entry.ttl = now + ttl;
+        entry.softTtl = Math.min(softExpire, finalExpire);
+        entry.ttl = finalExpire;
         entry.serverDate = serverDate;
+        entry.lastModified = lastModified;
         entry.responseHeaders = headers;
         
         return entry;
     }
+    
+    private static long parseSeconds(String value) {
+        try {
+            return Math.max(Long.parseLong(value.trim()), 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
 }
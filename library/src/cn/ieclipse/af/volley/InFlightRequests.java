@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Registry of in-flight requests, used to coalesce identical requests
+ * (single-flight).
+ * <p>
+ * The first task of a key {@link #start(RequestKey, Object, Object) starts}
+ * a flight and performs the network call, the following tasks with the same
+ * (canonical) key {@link #join(RequestKey, Object) join} it and share the
+ * call and the response, each member parses the response for itself. A task
+ * {@link #leave(Flight, Object) leaves} the flight when its controller is
+ * destroyed, the call should be cancelled only when the last member left.
+ * </p>
+ *
+ * @param <M>
+ *            member (task) type
+ * @author Jamling
+ */
+public final class InFlightRequests<M> {
+    private final Map<String, Flight<M>> mFlights = new HashMap<>();
+
+    /**
+     * Join an in-flight request.
+     *
+     * @param key
+     *            request key
+     * @param member
+     *            task to join
+     * @return the joined flight or null if there is no in-flight request of
+     * the key. A member already in the flight is not added again.
+     */
+    public synchronized Flight<M> join(RequestKey key, M member) {
+        Flight<M> flight = mFlights.get(key.getKey());
+        if (flight != null) {
+            if (!flight.contains(member)) {
+                flight.members.add(member);
+            }
+            key.onHit(flight.rawKey);
+        }
+        return flight;
+    }
+
+    /**
+     * Start a new flight, the leader is the first member.
+     *
+     * @param key
+     *            request key
+     * @param leader
+     *            task who performs the call
+     * @param call
+     *            the network call
+     * @return new flight
+     */
+    public synchronized Flight<M> start(RequestKey key, M leader, Object call) {
+        Flight<M> flight = new Flight<>(key, call);
+        flight.members.add(leader);
+        mFlights.put(flight.key, flight);
+        return flight;
+    }
+
+    /**
+     * Get members to deliver the response to.
+     *
+     * @param flight
+     *            the flight
+     * @param done
+     *            true if it's the final response, then the flight is removed
+     *            and no more task can join.
+     * @return snapshot of current members
+     */
+    public synchronized List<M> deliver(Flight<M> flight, boolean done) {
+        if (done && mFlights.get(flight.key) == flight) {
+            mFlights.remove(flight.key);
+        }
+        return new ArrayList<>(flight.members);
+    }
+
+    /**
+     * Finish the flight when its request is finished, whether a final
+     * response is delivered or not, e.g. a not modified revalidation.
+     *
+     * @param flight
+     *            the flight
+     * @return members to release, empty if the flight was already delivered
+     *         or left
+     */
+    public synchronized List<M> finish(Flight<M> flight) {
+        if (mFlights.get(flight.key) != flight) {
+            return new ArrayList<>(0);
+        }
+        mFlights.remove(flight.key);
+        return new ArrayList<>(flight.members);
+    }
+
+    /**
+     * Leave the flight.
+     *
+     * @param flight
+     *            the flight
+     * @param member
+     *            task to leave
+     * @return true if no member left, the call should be cancelled.
+     */
+    public synchronized boolean leave(Flight<M> flight, M member) {
+        flight.members.remove(member);
+        if (flight.members.isEmpty()) {
+            if (mFlights.get(flight.key) == flight) {
+                mFlights.remove(flight.key);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public static final class Flight<M> {
+        private final String key;
+        private final String rawKey;
+        private final Object call;
+        private final List<M> members = new ArrayList<>(2);
+
+        private Flight(RequestKey key, Object call) {
+            this.key = key.getKey();
+            this.rawKey = key.getRawKey();
+            this.call = call;
+        }
+
+        private boolean contains(M member) {
+            // identity, a task joins a flight only once
+            for (M m : members) {
+                if (m == member) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the shared network call
+         */
+        public Object getCall() {
+            return call;
+        }
+    }
+}
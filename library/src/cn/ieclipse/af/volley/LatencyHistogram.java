@@ -0,0 +1,138 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of latencies in milliseconds.
+ * <p>
+ * Bucket 0 counts 0ms, bucket i counts [2^(i-1), 2^i) ms, the last bucket
+ * counts all the larger values, so a percentile is accurate within a factor
+ * of 2, which is enough to tell where the time goes.
+ * </p>
+ *
+ * @author Jamling
+ */
+public final class LatencyHistogram {
+    public static final int BUCKET_COUNT = 20;
+
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record a latency.
+     *
+     * @param ms
+     *            latency in milliseconds, negative is ignored
+     */
+    public void record(long ms) {
+        if (ms < 0) {
+            return;
+        }
+        mBuckets.incrementAndGet(bucketOf(ms));
+        mCount.incrementAndGet();
+        mSum.addAndGet(ms);
+        long max;
+        while (ms > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, ms)) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getSum() {
+        return mSum.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return count == 0 ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param index
+     *            bucket index
+     * @return count of the bucket
+     */
+    public long getBucket(int index) {
+        return mBuckets.get(index);
+    }
+
+    /**
+     * @param index
+     *            bucket index
+     * @return upper bound (exclusive) of the bucket in milliseconds
+     */
+    public static long getBucketBound(int index) {
+        return index >= BUCKET_COUNT - 1 ? Long.MAX_VALUE : 1L << index;
+    }
+
+    /**
+     * Get approximate percentile.
+     *
+     * @param percent
+     *            percent in (0, 100]
+     * @return upper bound of the bucket where the percentile is in, but not
+     * larger than the max value
+     */
+    public long getPercentile(double percent) {
+        long count = mCount.get();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(count * percent / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets.get(i);
+            if (seen >= rank) {
+                return Math.min(getBucketBound(i) - 1, getMax());
+            }
+        }
+        return getMax();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("count=%d,mean=%d,p50=%d,p90=%d,p99=%d,max=%d", getCount(), getMean(), getPercentile(50),
+            getPercentile(90), getPercentile(99), getMax());
+    }
+
+    private static int bucketOf(long ms) {
+        int bucket = 64 - Long.numberOfLeadingZeros(ms);
+        return bucket < BUCKET_COUNT ? bucket : BUCKET_COUNT - 1;
+    }
+}
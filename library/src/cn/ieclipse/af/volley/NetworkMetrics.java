@@ -0,0 +1,195 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per endpoint request timing, disabled by default.
+ * <p>
+ * The phases are recorded by the stacks: {@link OkHttpMetrics} (DNS,
+ * connect, TLS, TTFB and body of all the clients derived from
+ * {@link OkHttpStack#getSharedClient()}), {@link GsonRequest} (volley queue,
+ * parse, delivery and total, from the request markers) and the OkHttp
+ * controller of the app module. Every recorder checks {@link #isEnabled()}
+ * first, so the cost is a volatile read when disabled.
+ * </p>
+ * <p>
+ * The endpoint is the host and path of the URL (query is removed). Use
+ * {@link #dump()} to print the histograms or {@link #getHistogram(String,
+ * Phase)} to export them.
+ * </p>
+ *
+ * @author Jamling
+ */
+public final class NetworkMetrics {
+
+    public enum Phase {
+        /**
+         * waiting in the request queue
+         */
+        QUEUE,
+        /**
+         * DNS lookup
+         */
+        DNS,
+        /**
+         * TCP connect
+         */
+        CONNECT,
+        /**
+         * TLS handshake
+         */
+        TLS,
+        /**
+         * request sent to response headers received (time to first byte)
+         */
+        TTFB,
+        /**
+         * response body read
+         */
+        BODY,
+        /**
+         * response json decode
+         */
+        PARSE,
+        /**
+         * response posted to delivered in main thread
+         */
+        DELIVERY,
+        /**
+         * request enqueued to delivered
+         */
+        TOTAL
+    }
+
+    private static volatile boolean sEnabled;
+    private static final ConcurrentHashMap<String, LatencyHistogram[]> sEndpoints = new ConcurrentHashMap<>();
+
+    private NetworkMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * Get the endpoint of URL
+     *
+     * @param url
+     *            request URL
+     * @return host and path of the URL
+     */
+    public static String getEndpoint(String url) {
+        if (url == null) {
+            return "";
+        }
+        int start = url.indexOf("://");
+        start = start < 0 ? 0 : start + 3;
+        int end = url.length();
+        int q = url.indexOf('?', start);
+        if (q >= 0) {
+            end = q;
+        }
+        int hash = url.indexOf('#', start);
+        if (hash >= 0 && hash < end) {
+            end = hash;
+        }
+        return url.substring(start, end);
+    }
+
+    /**
+     * Record a phase latency, ignored if disabled.
+     *
+     * @param endpoint
+     *            endpoint, see {@link #getEndpoint(String)}
+     * @param phase
+     *            request phase
+     * @param ms
+     *            latency in milliseconds
+     */
+    public static void record(String endpoint, Phase phase, long ms) {
+        if (!sEnabled || endpoint == null) {
+            return;
+        }
+        LatencyHistogram[] histograms = sEndpoints.get(endpoint);
+        if (histograms == null) {
+            histograms = new LatencyHistogram[Phase.values().length];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = new LatencyHistogram();
+            }
+            LatencyHistogram[] old = sEndpoints.putIfAbsent(endpoint, histograms);
+            if (old != null) {
+                histograms = old;
+            }
+        }
+        histograms[phase.ordinal()].record(ms);
+    }
+
+    /**
+     * @return recorded endpoints
+     */
+    public static Set<String> getEndpoints() {
+        return new TreeSet<>(sEndpoints.keySet());
+    }
+
+    /**
+     * Get the histogram of the endpoint phase.
+     *
+     * @param endpoint
+     *            endpoint
+     * @param phase
+     *            request phase
+     * @return histogram or null if the endpoint is not recorded
+     */
+    public static LatencyHistogram getHistogram(String endpoint, Phase phase) {
+        LatencyHistogram[] histograms = sEndpoints.get(endpoint);
+        return histograms != null ? histograms[phase.ordinal()] : null;
+    }
+
+    public static void reset() {
+        sEndpoints.clear();
+    }
+
+    /**
+     * Dump the recorded phases of all the endpoints, one line per phase.
+     *
+     * @return text of the histograms
+     */
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        for (String endpoint : getEndpoints()) {
+            LatencyHistogram[] histograms = sEndpoints.get(endpoint);
+            if (histograms == null) {
+                continue;
+            }
+            sb.append(endpoint).append('\n');
+            for (Phase phase : Phase.values()) {
+                LatencyHistogram h = histograms[phase.ordinal()];
+                if (h.getCount() > 0) {
+                    sb.append("  ").append(phase).append(": ").append(h).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.List;
+
+import javax.net.SocketFactory;
+
+import android.os.SystemClock;
+
+import cn.ieclipse.af.volley.NetworkMetrics.Phase;
+import okhttp3.Dns;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * {@link NetworkMetrics} recorders of OkHttp.
+ * <p>
+ * OkHttp 3.2 has no <code>EventListener</code>, the phases are measured by
+ * hooks installed by {@link #install(OkHttpClient.Builder)}: an application
+ * interceptor binds the call endpoint to the calling thread (OkHttp resolves
+ * and connects in the calling thread), a {@link Dns} and a
+ * {@link SocketFactory} wrapper time the lookup and the TCP connect, a
+ * network interceptor times the TLS handshake (connect end to the network
+ * interceptor of a new https connection), TTFB and the body read.
+ * </p>
+ *
+ * @author Jamling
+ */
+public final class OkHttpMetrics {
+
+    private static final ThreadLocal<String> sEndpoint = new ThreadLocal<>();
+    private static final ThreadLocal<long[]> sConnectEnd = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private OkHttpMetrics() {
+    }
+
+    /**
+     * Install the metrics hooks to the builder, the application
+     * interceptor is added first, so it should be called before other
+     * interceptors added.
+     *
+     * @param builder
+     *            client builder
+     * @return the builder
+     */
+    public static OkHttpClient.Builder install(OkHttpClient.Builder builder) {
+        builder.interceptors().add(0, CALL_INTERCEPTOR);
+        builder.networkInterceptors().add(NETWORK_INTERCEPTOR);
+        builder.dns(new TimedDns(Dns.SYSTEM));
+        builder.socketFactory(new TimedSocketFactory());
+        return builder;
+    }
+
+    /**
+     * Binds the endpoint of the call to the calling thread.
+     */
+    public static final Interceptor CALL_INTERCEPTOR = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            if (!NetworkMetrics.isEnabled()) {
+                return chain.proceed(request);
+            }
+            String old = sEndpoint.get();
+            sEndpoint.set(NetworkMetrics.getEndpoint(request.url().toString()));
+            sConnectEnd.get()[0] = 0;
+            try {
+                return chain.proceed(request);
+            } finally {
+                sEndpoint.set(old);
+            }
+        }
+    };
+
+    /**
+     * Records TLS, TTFB and body read.
+     */
+    public static final Interceptor NETWORK_INTERCEPTOR = new Interceptor() {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            String endpoint = sEndpoint.get();
+            if (endpoint == null || !NetworkMetrics.isEnabled()) {
+                return chain.proceed(request);
+            }
+            long start = SystemClock.elapsedRealtime();
+            long[] connectEnd = sConnectEnd.get();
+            if (connectEnd[0] > 0) {
+                if (request.isHttps()) {
+                    NetworkMetrics.record(endpoint, Phase.TLS, start - connectEnd[0]);
+                }
+                connectEnd[0] = 0;
+            }
+            Response response = chain.proceed(request);
+            long headers = SystemClock.elapsedRealtime();
+            NetworkMetrics.record(endpoint, Phase.TTFB, headers - start);
+            if (response.body() == null) {
+                return response;
+            }
+            return response.newBuilder().body(new TimedBody(response.body(), endpoint, headers)).build();
+        }
+    };
+
+    private static final class TimedDns implements Dns {
+        private final Dns delegate;
+
+        private TimedDns(Dns delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            String endpoint = sEndpoint.get();
+            if (endpoint == null) {
+                return delegate.lookup(hostname);
+            }
+            long start = SystemClock.elapsedRealtime();
+            try {
+                return delegate.lookup(hostname);
+            } finally {
+                NetworkMetrics.record(endpoint, Phase.DNS, SystemClock.elapsedRealtime() - start);
+            }
+        }
+    }
+
+    private static final class TimedSocketFactory extends SocketFactory {
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return new TimedSocket();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return SocketFactory.getDefault().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return SocketFactory.getDefault().createSocket(host, port, localHost, localPort);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return SocketFactory.getDefault().createSocket(host, port);
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+            throws IOException {
+            return SocketFactory.getDefault().createSocket(address, port, localAddress, localPort);
+        }
+    }
+
+    private static final class TimedSocket extends Socket {
+        @Override
+        public void connect(SocketAddress endpoint, int timeout) throws IOException {
+            String name = sEndpoint.get();
+            if (name == null) {
+                super.connect(endpoint, timeout);
+                return;
+            }
+            long start = SystemClock.elapsedRealtime();
+            super.connect(endpoint, timeout);
+            long end = SystemClock.elapsedRealtime();
+            NetworkMetrics.record(name, Phase.CONNECT, end - start);
+            sConnectEnd.get()[0] = end;
+        }
+    }
+
+    private static final class TimedBody extends ResponseBody {
+        private final ResponseBody delegate;
+        private final String endpoint;
+        private final long start;
+        private BufferedSource source;
+
+        private TimedBody(ResponseBody delegate, String endpoint, long start) {
+            this.delegate = delegate;
+            this.endpoint = endpoint;
+            this.start = start;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return delegate.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return delegate.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            if (source == null) {
+                source = Okio.buffer(new ForwardingSource(delegate.source()) {
+                    private boolean recorded;
+
+                    @Override
+                    public long read(Buffer sink, long byteCount) throws IOException {
+                        long read = super.read(sink, byteCount);
+                        if (read == -1 && !recorded) {
+                            recorded = true;
+                            NetworkMetrics.record(endpoint, Phase.BODY, SystemClock.elapsedRealtime() - start);
+                        }
+                        return read;
+                    }
+                });
+            }
+            return source;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.toolbox.HttpStack;
+
+import okhttp3.Headers;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.BufferedSink;
+
+/**
+ * {@link HttpStack} over OkHttp, it's the default http stack if OkHttp is
+ * available.
+ * <p>
+ * All the stacks share the {@link #getSharedClient() shared client} by
+ * default, other clients should be derived from it (
+ * <code>getSharedClient().newBuilder()</code>) to share the connection pool,
+ * dispatcher and DNS, e.g. <code>OKHttpManager</code> of the app module.
+ * {@link StreamingBody} requests are streamed as {@link StreamingHurlStack}.
+ * </p>
+ *
+ * @author Jamling
+ */
+public class OkHttpStack implements HttpStack {
+    private static OkHttpClient sSharedClient;
+
+    private final OkHttpClient mClient;
+    private volatile OkHttpClient mTimeoutClient;
+
+    public OkHttpStack() {
+        this(getSharedClient());
+    }
+
+    public OkHttpStack(OkHttpClient client) {
+        if (client == null) {
+            throw new NullPointerException("Null OkHttpClient");
+        }
+        this.mClient = client;
+    }
+
+    /**
+     * Get the process wide OkHttp client, {@link OkHttpMetrics} is installed.
+     *
+     * @return shared client
+     */
+    public static synchronized OkHttpClient getSharedClient() {
+        if (sSharedClient == null) {
+            sSharedClient = OkHttpMetrics.install(new OkHttpClient.Builder()).build();
+        }
+        return sSharedClient;
+    }
+
+    /**
+     * Set the process wide OkHttp client, must be called before
+     * {@link VolleyManager#init(android.content.Context, VolleyConfig)}
+     *
+     * @param client
+     *            shared client
+     */
+    public static synchronized void setSharedClient(OkHttpClient client) {
+        sSharedClient = client;
+    }
+
+    @Override
+    public HttpResponse performRequest(com.android.volley.Request<?> request, Map<String, String> additionalHeaders)
+        throws IOException, AuthFailureError {
+        HashMap<String, String> map = new HashMap<String, String>();
+        map.putAll(request.getHeaders());
+        map.putAll(additionalHeaders);
+
+        Request.Builder builder = new Request.Builder();
+        builder.url(request.getUrl());
+        for (String headerName : map.keySet()) {
+            builder.header(headerName, map.get(headerName));
+        }
+        setConnectionParametersForRequest(builder, request);
+
+        Response response = getClient(request.getTimeoutMs()).newCall(builder.build()).execute();
+
+        StatusLine responseStatus = new BasicStatusLine(parseProtocol(response.protocol()), response.code(),
+            response.message());
+        BasicHttpResponse httpResponse = new BasicHttpResponse(responseStatus);
+        httpResponse.setEntity(entityFromResponse(response));
+        Headers headers = response.headers();
+        for (int i = 0, size = headers.size(); i < size; i++) {
+            httpResponse.addHeader(new BasicHeader(headers.name(i), headers.value(i)));
+        }
+        return httpResponse;
+    }
+
+    /**
+     * Client with the request timeout, it's derived from the client so the
+     * connection pool is shared.
+     */
+    private OkHttpClient getClient(int timeoutMs) {
+        if (mClient.connectTimeoutMillis() == timeoutMs && mClient.readTimeoutMillis() == timeoutMs) {
+            return mClient;
+        }
+        OkHttpClient client = mTimeoutClient;
+        if (client == null || client.connectTimeoutMillis() != timeoutMs || client.readTimeoutMillis() != timeoutMs) {
+            client = mClient.newBuilder().connectTimeout(timeoutMs, TimeUnit.MILLISECONDS).readTimeout(timeoutMs,
+                TimeUnit.MILLISECONDS).writeTimeout(timeoutMs, TimeUnit.MILLISECONDS).build();
+            mTimeoutClient = client;
+        }
+        return client;
+    }
+
+    private static void setConnectionParametersForRequest(Request.Builder builder,
+                                                          com.android.volley.Request<?> request)
+        throws AuthFailureError {
+        switch (request.getMethod()) {
+            case com.android.volley.Request.Method.DEPRECATED_GET_OR_POST:
+                setDeprecatedPostBody(builder, request);
+                break;
+            case com.android.volley.Request.Method.GET:
+                builder.get();
+                break;
+            case com.android.volley.Request.Method.DELETE:
+                builder.delete();
+                break;
+            case com.android.volley.Request.Method.POST:
+                builder.post(createRequestBody(request));
+                break;
+            case com.android.volley.Request.Method.PUT:
+                builder.put(createRequestBody(request));
+                break;
+            case com.android.volley.Request.Method.HEAD:
+                builder.head();
+                break;
+            case com.android.volley.Request.Method.OPTIONS:
+                builder.method("OPTIONS", null);
+                break;
+            case com.android.volley.Request.Method.TRACE:
+                builder.method("TRACE", null);
+                break;
+            case com.android.volley.Request.Method.PATCH:
+                builder.patch(createRequestBody(request));
+                break;
+            default:
+                throw new IllegalStateException("Unknown method type.");
+        }
+    }
+
+    /**
+     * The deprecated way handled for backwards compatibility as HurlStack
+     * does, the request is a GET if the post body is null, otherwise a POST.
+     */
+    @SuppressWarnings("deprecation")
+    private static void setDeprecatedPostBody(Request.Builder builder, com.android.volley.Request<?> request)
+        throws AuthFailureError {
+        byte[] postBody = request.getPostBody();
+        if (postBody != null) {
+            builder.post(RequestBody.create(MediaType.parse(request.getPostBodyContentType()), postBody));
+        }
+    }
+
+    private static RequestBody createRequestBody(com.android.volley.Request<?> request) throws AuthFailureError {
+        MediaType contentType = MediaType.parse(request.getBodyContentType());
+        if (request instanceof StreamingBody) {
+            return new StreamingRequestBody(contentType, (StreamingBody) request);
+        }
+        byte[] body = request.getBody();
+        if (body == null) {
+            body = new byte[0];
+        }
+        return RequestBody.create(contentType, body);
+    }
+
+    private static ProtocolVersion parseProtocol(Protocol protocol) {
+        switch (protocol) {
+            case HTTP_1_0:
+                return new ProtocolVersion("HTTP", 1, 0);
+            case HTTP_1_1:
+                return new ProtocolVersion("HTTP", 1, 1);
+            case SPDY_3:
+                return new ProtocolVersion("SPDY", 3, 1);
+            case HTTP_2:
+                return new ProtocolVersion("HTTP", 2, 0);
+            default:
+                throw new IllegalStateException("Unknown protocol");
+        }
+    }
+
+    private static BasicHttpEntity entityFromResponse(Response response) {
+        BasicHttpEntity entity = new BasicHttpEntity();
+        ResponseBody body = response.body();
+        entity.setContent(body.byteStream());
+        entity.setContentLength(body.contentLength());
+        entity.setContentEncoding(response.header("Content-Encoding"));
+        if (body.contentType() != null) {
+            entity.setContentType(body.contentType().toString());
+        }
+        return entity;
+    }
+
+    private static final class StreamingRequestBody extends RequestBody {
+        private final MediaType mContentType;
+        private final StreamingBody mBody;
+
+        private StreamingRequestBody(MediaType contentType, StreamingBody body) {
+            this.mContentType = contentType;
+            this.mBody = body;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return mContentType;
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return mBody.getContentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            mBody.writeTo(sink.outputStream());
+            sink.flush();
+        }
+    }
+}
@@ -0,0 +1,685 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+
+import com.android.volley.AuthFailureError;
+import com.android.volley.DefaultRetryPolicy;
+import com.android.volley.Network;
+import com.android.volley.NetworkError;
+import com.android.volley.NetworkResponse;
+import com.android.volley.Request;
+import com.android.volley.Response;
+import com.android.volley.TimeoutError;
+import com.android.volley.VolleyError;
+import com.android.volley.VolleyLog;
+import com.android.volley.toolbox.BasicNetwork;
+import com.android.volley.toolbox.HttpStack;
+
+import cn.ieclipse.af.legcy.Connector;
+
+/**
+ * Persistent write-behind queue of mutation (POST/PUT/DELETE) requests
+ * failed or issued while offline.
+ * <p>
+ * The requests are kept in an append-only journal file (an ADD record per
+ * request, a DONE record per finished request, each record is CRC checked so
+ * a torn tail of a crash is dropped on open), and replayed in order by a
+ * single background thread. A retryable failure (no connection, timeout,
+ * 408/429/5xx) stops the replay and retries the head request with
+ * exponential backoff, the connectivity is watched by {@link Connector} and a
+ * connectivity broadcast, the replay restarts immediately when the network
+ * returns. Other failures are not retried, the request is dropped and
+ * reported to {@link Listener#onFailed(Entry, VolleyError)}.
+ * </p>
+ * <p>
+ * Every request carries an idempotency key header ({@link #IDEMPOTENCY_HEADER}),
+ * the same key is used by the first attempt and all the replays, so the
+ * server can drop the duplicates of a request which reached it but whose
+ * response was lost. This also makes the replay cheap: the DONE records of a
+ * replay are synced to disk once per batch, not once per request, a crash in
+ * between only replays requests the server already knows.
+ * </p>
+ * <p>
+ * Enable it by {@link VolleyConfig.Builder#setOutboundQueueEnabled(boolean)},
+ * and opt the task in by
+ * {@link Controller.RequestObjectTask#isWriteBehind(IUrl)}.
+ * </p>
+ *
+ * @author Jamling
+ */
+public final class OutboundQueue {
+    public static final String IDEMPOTENCY_HEADER = "Idempotency-Key";
+    public static final String JOURNAL_NAME = "af-outbound.journal";
+
+    /**
+     * Receives the replay results in main thread.
+     */
+    public interface Listener {
+        /**
+         * The queued request is sent.
+         *
+         * @param entry
+         *            queued request
+         * @param response
+         *            network response
+         */
+        void onSent(Entry entry, NetworkResponse response);
+
+        /**
+         * The queued request is rejected by a not retryable error, it is
+         * removed from the queue.
+         *
+         * @param entry
+         *            queued request
+         * @param error
+         *            the error
+         */
+        void onFailed(Entry entry, VolleyError error);
+    }
+
+    private static final int MAGIC = 0x41464f51; // AFOQ
+    private static final int HEADER_SIZE = 4;
+    private static final int MAX_RECORD_SIZE = 8 * 1024 * 1024;
+    private static final byte OP_ADD = 1;
+    private static final byte OP_DONE = 2;
+    // sync the DONE records every n requests of a replay
+    private static final int SYNC_BATCH = 32;
+    // rewrite the journal if the finished records more than it
+    private static final int COMPACT_THRESHOLD = 256;
+    private static final long MIN_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 5 * 60 * 1000;
+    private static final int TIMEOUT_MS = 15000;
+
+    private static final int MSG_OPEN = 1;
+    private static final int MSG_ADD = 2;
+    private static final int MSG_SYNC = 3;
+    private static final int MSG_FLUSH = 4;
+
+    private final File mFile;
+    private final Connector mConnector;
+    private final Network mNetwork;
+    private final Handler mHandler;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Random mRandom = new Random();
+    private final AtomicInteger mSize = new AtomicInteger();
+    private volatile boolean mOpened;
+    private volatile Listener mListener;
+
+    // the followings are accessed in the queue thread only
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>();
+    private FileOutputStream mJournalFile;
+    private DataOutputStream mJournal;
+    private boolean mDirty;
+    private int mDoneCount;
+    private int mFailures;
+
+    public OutboundQueue(Context context, File journal, HttpStack stack) {
+        mFile = journal;
+        mConnector = new Connector(context);
+        mNetwork = new BasicNetwork(stack);
+        HandlerThread thread = new HandlerThread("OutboundQueue",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_OPEN:
+                        open();
+                        break;
+                    case MSG_ADD:
+                        append((Entry) msg.obj);
+                        break;
+                    case MSG_SYNC:
+                        sync();
+                        break;
+                    case MSG_FLUSH:
+                        replay();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        };
+        mHandler.sendEmptyMessage(MSG_OPEN);
+        IntentFilter filter = new IntentFilter(
+                ConnectivityManager.CONNECTIVITY_ACTION);
+        context.registerReceiver(new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                if (mConnector.isNetworkConnected()) {
+                    // the network returns, retry now
+                    mFailures = 0;
+                    mHandler.removeMessages(MSG_FLUSH);
+                    mHandler.sendEmptyMessage(MSG_FLUSH);
+                }
+            }
+        }, filter, null, mHandler);
+    }
+
+    public void setListener(Listener listener) {
+        this.mListener = listener;
+    }
+
+    /**
+     * Create a new idempotency key.
+     *
+     * @return random key
+     */
+    public static String newKey() {
+        return UUID.randomUUID().toString();
+    }
+
+    /**
+     * Whether the failed request should be queued and retried later.
+     *
+     * @param error
+     *            request error
+     * @return true if the request may succeed later
+     */
+    public static boolean isRetryable(VolleyError error) {
+        NetworkResponse response = error.networkResponse;
+        if (response != null) {
+            int code = response.statusCode;
+            return code >= 500 || code == 408 || code == 429;
+        }
+        // NoConnectionError is a NetworkError
+        return error instanceof TimeoutError || error instanceof NetworkError;
+    }
+
+    /**
+     * Queue the request, the journal is written in the queue thread, the
+     * requests queued in a burst share one disk sync.
+     *
+     * @param request
+     *            the request, its method, URL, headers and body are queued
+     * @param key
+     *            idempotency key, see {@link #newKey()}
+     * @return the queued entry
+     * @throws AuthFailureError
+     *             thrown by request headers or body
+     */
+    public Entry add(Request<?> request, String key) throws AuthFailureError {
+        Map<String, String> headers = new HashMap<>(request.getHeaders());
+        headers.put(IDEMPOTENCY_HEADER, key);
+        Entry entry = new Entry(key, request.getMethod(), request.getUrl(),
+                request.getBodyContentType(), headers, request.getBody(),
+                System.currentTimeMillis());
+        mSize.incrementAndGet();
+        mHandler.obtainMessage(MSG_ADD, entry).sendToTarget();
+        return entry;
+    }
+
+    /**
+     * Start the replay now if it is not waiting for backoff.
+     */
+    public void flush() {
+        if (!mHandler.hasMessages(MSG_FLUSH)) {
+            mHandler.sendEmptyMessage(MSG_FLUSH);
+        }
+    }
+
+    /**
+     * @return count of the queued requests
+     */
+    public int getSize() {
+        return mSize.get();
+    }
+
+    /**
+     * Whether a new mutation can be sent directly, it must be queued behind
+     * the queued ones to keep the order (the journal may be still opening).
+     *
+     * @return true if no queued request
+     */
+    public boolean isEmpty() {
+        return mOpened && mSize.get() == 0;
+    }
+
+    public boolean isNetworkConnected() {
+        return mConnector.isNetworkConnected();
+    }
+
+    private void open() {
+        long valid = 0;
+        if (mFile.length() >= HEADER_SIZE) {
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mFile)));
+                if (in.readInt() == MAGIC) {
+                    valid = HEADER_SIZE;
+                    byte[] data;
+                    while ((data = readRecord(in)) != null) {
+                        apply(data);
+                        valid += data.length + 8;
+                    }
+                }
+            } catch (IOException e) {
+                VolleyLog.e(e, "read outbound journal failed");
+            } finally {
+                closeQuietly(in);
+            }
+        }
+        try {
+            if (valid == 0) {
+                // new or corrupted
+                writeJournal(mFile);
+            }
+            else if (valid < mFile.length()) {
+                // torn tail
+                RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+                try {
+                    raf.setLength(valid);
+                } finally {
+                    raf.close();
+                }
+            }
+            openJournal();
+        } catch (IOException e) {
+            VolleyLog.e(e, "open outbound journal failed, queue in memory");
+        }
+        mSize.addAndGet(mEntries.size());
+        mOpened = true;
+        if (!mEntries.isEmpty()) {
+            replay();
+        }
+    }
+
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            if (length <= 0 || length > MAX_RECORD_SIZE) {
+                return null;
+            }
+            byte[] data = new byte[length];
+            in.readFully(data);
+            int crc = in.readInt();
+            return crc == crc(data) ? data : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private void apply(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        byte op = in.readByte();
+        if (op == OP_ADD) {
+            Entry entry = Entry.read(in);
+            mEntries.put(entry.key, entry);
+        }
+        else if (op == OP_DONE) {
+            mEntries.remove(in.readUTF());
+            mDoneCount++;
+        }
+    }
+
+    private void append(Entry entry) {
+        mEntries.put(entry.key, entry);
+        writeRecord(OP_ADD, entry);
+        // one sync after the burst of queued adds
+        if (!mHandler.hasMessages(MSG_SYNC)) {
+            mHandler.sendEmptyMessage(MSG_SYNC);
+        }
+        flush();
+    }
+
+    private void replay() {
+        mHandler.removeMessages(MSG_FLUSH);
+        if (mEntries.isEmpty()) {
+            return;
+        }
+        if (!mConnector.isNetworkConnected()) {
+            // wait for the connectivity broadcast
+            return;
+        }
+        // the queued adds must be on disk before they are sent
+        sync();
+        int sent = 0;
+        Iterator<Entry> it = mEntries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            VolleyError error = null;
+            NetworkResponse response = null;
+            try {
+                response = mNetwork.performRequest(new OutboundRequest(entry));
+            } catch (VolleyError e) {
+                error = e;
+            }
+            if (error != null && isRetryable(error)) {
+                mFailures++;
+                long delay = getBackoff(mFailures);
+                VolleyLog.d("outbound request %s failed %d times, retry in %dms",
+                        entry.key, mFailures, delay);
+                sync();
+                mHandler.sendEmptyMessageDelayed(MSG_FLUSH, delay);
+                return;
+            }
+            mFailures = 0;
+            it.remove();
+            mSize.decrementAndGet();
+            writeRecord(OP_DONE, entry);
+            mDoneCount++;
+            notifyListener(entry, response, error);
+            if (++sent % SYNC_BATCH == 0) {
+                sync();
+            }
+        }
+        sync();
+        if (mDoneCount > COMPACT_THRESHOLD && mDoneCount > mEntries.size()) {
+            compact();
+        }
+    }
+
+    private long getBackoff(int failures) {
+        long delay = MIN_BACKOFF_MS << Math.min(failures - 1, 16);
+        delay = Math.min(delay, MAX_BACKOFF_MS);
+        // jitter [50%, 100%], the clients don't retry at the same time
+        return delay / 2 + (long) (mRandom.nextDouble() * delay / 2);
+    }
+
+    private void notifyListener(final Entry entry,
+            final NetworkResponse response, final VolleyError error) {
+        final Listener listener = mListener;
+        if (listener == null) {
+            return;
+        }
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (error == null) {
+                    listener.onSent(entry, response);
+                }
+                else {
+                    listener.onFailed(entry, error);
+                }
+            }
+        });
+    }
+
+    private void writeRecord(byte op, Entry entry) {
+        if (mJournal == null) {
+            return;
+        }
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(op);
+            if (op == OP_ADD) {
+                entry.write(out);
+            }
+            else {
+                out.writeUTF(entry.key);
+            }
+            byte[] data = bytes.toByteArray();
+            mJournal.writeInt(data.length);
+            mJournal.write(data);
+            mJournal.writeInt(crc(data));
+            mDirty = true;
+        } catch (IOException e) {
+            VolleyLog.e(e, "write outbound journal failed");
+        }
+    }
+
+    private void sync() {
+        if (!mDirty || mJournal == null) {
+            return;
+        }
+        try {
+            mJournal.flush();
+            mJournalFile.getFD().sync();
+            mDirty = false;
+        } catch (IOException e) {
+            VolleyLog.e(e, "sync outbound journal failed");
+        }
+    }
+
+    /**
+     * Rewrite the journal with the queued requests only.
+     */
+    private void compact() {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            writeJournal(tmp);
+            closeQuietly(mJournal);
+            mJournal = null;
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("rename " + tmp + " failed");
+            }
+            mDoneCount = 0;
+        } catch (IOException e) {
+            VolleyLog.e(e, "compact outbound journal failed");
+        }
+        try {
+            if (mJournal == null) {
+                openJournal();
+            }
+        } catch (IOException e) {
+            VolleyLog.e(e, "open outbound journal failed, queue in memory");
+        }
+    }
+
+    private void writeJournal(File file) throws IOException {
+        FileOutputStream fos = new FileOutputStream(file);
+        DataOutputStream journal = mJournal;
+        FileOutputStream journalFile = mJournalFile;
+        boolean dirty = mDirty;
+        try {
+            mJournal = new DataOutputStream(new BufferedOutputStream(fos));
+            mJournalFile = fos;
+            mJournal.writeInt(MAGIC);
+            for (Entry entry : mEntries.values()) {
+                writeRecord(OP_ADD, entry);
+            }
+            mDirty = true;
+            sync();
+        } finally {
+            closeQuietly(mJournal);
+            mJournal = journal;
+            mJournalFile = journalFile;
+            mDirty = dirty;
+        }
+    }
+
+    private void openJournal() throws IOException {
+        mJournalFile = new FileOutputStream(mFile, true);
+        mJournal = new DataOutputStream(new BufferedOutputStream(mJournalFile));
+        mDirty = false;
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int) crc.getValue();
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * A queued request.
+     */
+    public static final class Entry {
+        private final String key;
+        private final int method;
+        private final String url;
+        private final String contentType;
+        private final Map<String, String> headers;
+        private final byte[] body;
+        private final long time;
+
+        private Entry(String key, int method, String url, String contentType,
+                Map<String, String> headers, byte[] body, long time) {
+            this.key = key;
+            this.method = method;
+            this.url = url;
+            this.contentType = contentType;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.body = body;
+            this.time = time;
+        }
+
+        /**
+         * @return idempotency key
+         */
+        public String getKey() {
+            return key;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        /**
+         * @return the time queued, in milliseconds since epoch
+         */
+        public long getTime() {
+            return time;
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeUTF(key);
+            out.writeInt(method);
+            out.writeUTF(url);
+            out.writeUTF(contentType != null ? contentType : "");
+            out.writeInt(headers.size());
+            for (Map.Entry<String, String> e : headers.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeUTF(e.getValue());
+            }
+            if (body == null) {
+                out.writeInt(-1);
+            }
+            else {
+                out.writeInt(body.length);
+                out.write(body);
+            }
+            out.writeLong(time);
+        }
+
+        private static Entry read(DataInputStream in) throws IOException {
+            String key = in.readUTF();
+            int method = in.readInt();
+            String url = in.readUTF();
+            String contentType = in.readUTF();
+            int count = in.readInt();
+            Map<String, String> headers = new HashMap<>(count);
+            for (int i = 0; i < count; i++) {
+                headers.put(in.readUTF(), in.readUTF());
+            }
+            int length = in.readInt();
+            byte[] body = null;
+            if (length >= 0) {
+                body = new byte[length];
+                in.readFully(body);
+            }
+            long time = in.readLong();
+            return new Entry(key, method, url,
+                    contentType.length() > 0 ? contentType : null, headers,
+                    body, time);
+        }
+
+        @Override
+        public String toString() {
+            return key + " " + url;
+        }
+    }
+
+    /**
+     * Replays an entry by {@link BasicNetwork} in the queue thread, the retry
+     * is handled by the queue.
+     */
+    private static final class OutboundRequest extends Request<NetworkResponse> {
+        private final Entry mEntry;
+
+        private OutboundRequest(Entry entry) {
+            super(entry.method, entry.url, null);
+            this.mEntry = entry;
+            setShouldCache(false);
+            setRetryPolicy(new DefaultRetryPolicy(TIMEOUT_MS, 0, 1f));
+        }
+
+        @Override
+        public Map<String, String> getHeaders() {
+            return mEntry.headers;
+        }
+
+        @Override
+        public String getBodyContentType() {
+            return mEntry.contentType != null ? mEntry.contentType
+                    : super.getBodyContentType();
+        }
+
+        @Override
+        public byte[] getBody() {
+            return mEntry.body;
+        }
+
+        @Override
+        protected Response<NetworkResponse> parseNetworkResponse(
+                NetworkResponse response) {
+            return Response.success(response, null);
+        }
+
+        @Override
+        protected void deliverResponse(NetworkResponse response) {
+        }
+    }
+}
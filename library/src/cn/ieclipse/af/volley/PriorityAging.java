@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import com.android.volley.Request;
+import com.android.volley.Request.Priority;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Starvation protection of the volley queue.
+ * <p>
+ * Volley orders all the queued requests, whatever their types, by
+ * {@link com.android.volley.Request#getPriority()} then by sequence, so the
+ * order key of a request must not change while it is waiting. The aging is
+ * applied when a request is added instead: if a lower priority request has
+ * waited longer than its {@link RequestPriority#getAging() aging} delay, the
+ * new request is queued at that lower priority, behind the waiting one.
+ * {@link RequestPriority#IMMEDIATE} requests are never demoted.
+ * </p>
+ *
+ * @author Jamling
+ */
+final class PriorityAging {
+    /**
+     * Waiting requests of each priority, to enqueue time, in enqueue order
+     */
+    private static final Map<RequestPriority, LinkedHashMap<Request<?>, Long>> sWaiting = new EnumMap<>(
+        RequestPriority.class);
+
+    static {
+        for (RequestPriority p : RequestPriority.values()) {
+            sWaiting.put(p, new LinkedHashMap<Request<?>, Long>());
+        }
+    }
+
+    private PriorityAging() {
+    }
+
+    /**
+     * Register a request added to the queue.
+     *
+     * @param request
+     *            the request
+     * @param priority
+     *            task priority of the request
+     * @param now
+     *            current time, in {@link android.os.SystemClock#elapsedRealtime()}
+     * @return the volley priority the request is queued at
+     */
+    static synchronized Priority enqueue(Request<?> request, RequestPriority priority, long now) {
+        Priority effective = priority.toVolley();
+        if (priority != RequestPriority.IMMEDIATE) {
+            for (RequestPriority p : RequestPriority.values()) {
+                Priority level = p.toVolley();
+                if (level.ordinal() >= effective.ordinal()) {
+                    continue;
+                }
+                Long oldest = oldest(sWaiting.get(p));
+                if (oldest != null && oldest + p.getAging() <= now) {
+                    // the oldest one is starving, don't overtake it
+                    effective = level;
+                }
+            }
+        }
+        sWaiting.get(priority).put(request, now);
+        return effective;
+    }
+
+    /**
+     * Unregister a request taken by the network dispatcher or finished.
+     *
+     * @param request
+     *            the request
+     * @param priority
+     *            task priority of the request
+     */
+    static synchronized void dequeue(Request<?> request, RequestPriority priority) {
+        sWaiting.get(priority).remove(request);
+    }
+
+    /**
+     * Get the enqueue time of the oldest waiting request, the ones not
+     * waiting any more but not dequeued (e.g. added to another queue) are
+     * dropped.
+     */
+    private static Long oldest(LinkedHashMap<Request<?>, Long> waiting) {
+        Iterator<Map.Entry<Request<?>, Long>> it = waiting.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Request<?>, Long> entry = it.next();
+            Request<?> request = entry.getKey();
+            if (!request.isCanceled() && !request.hasHadResponseDelivered()) {
+                return entry.getValue();
+            }
+            it.remove();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Throttled progress dispatcher from the I/O thread to the main thread.
+ * <p>
+ * {@link #update(long, long)} is called per chunk, it only records the
+ * latest values and posts the reporter itself (at most one pending post) when
+ * both the {@link #setMinInterval(long) min interval} and the
+ * {@link #setMinDelta(int) min percentage delta} are reached, so nothing is
+ * allocated per chunk and the main looper is never flooded. The final
+ * (completed) progress is always reported.
+ * </p>
+ *
+ * @author Jamling
+ */
+public final class ProgressReporter implements Runnable {
+    public static final long DEFAULT_MIN_INTERVAL = 100;
+    public static final int DEFAULT_MIN_DELTA = 1;
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Callback mCallback;
+    private final AtomicBoolean mPosted = new AtomicBoolean();
+    private long mMinInterval = DEFAULT_MIN_INTERVAL;
+    private int mMinDelta = DEFAULT_MIN_DELTA;
+    private volatile long mTransferred;
+    private volatile long mTotal;
+    private long mLastTime;
+    private int mLastProgress;
+
+    public ProgressReporter(Callback callback) {
+        this.mCallback = callback;
+        reset();
+    }
+
+    /**
+     * @param minInterval
+     *            min interval between two reports in milliseconds
+     */
+    public void setMinInterval(long minInterval) {
+        this.mMinInterval = minInterval;
+    }
+
+    /**
+     * @param minDelta
+     *            min progress delta (percent) between two reports, used only
+     *            if the total is known
+     */
+    public void setMinDelta(int minDelta) {
+        this.mMinDelta = minDelta;
+    }
+
+    /**
+     * Reset before a new transfer.
+     */
+    public void reset() {
+        mTransferred = 0;
+        mTotal = 0;
+        mLastTime = 0;
+        mLastProgress = -1;
+    }
+
+    /**
+     * Update the progress, called in I/O thread.
+     *
+     * @param transferred
+     *            transferred bytes
+     * @param total
+     *            total bytes, &lt;= 0 if unknown
+     */
+    public void update(long transferred, long total) {
+        mTransferred = transferred;
+        mTotal = total;
+        boolean done = total > 0 && transferred >= total;
+        if (!done) {
+            long now = SystemClock.uptimeMillis();
+            int progress = getProgress(transferred, total);
+            if (now - mLastTime < mMinInterval || (total > 0 && progress - mLastProgress < mMinDelta)) {
+                return;
+            }
+            mLastTime = now;
+            mLastProgress = progress;
+        }
+        if (mPosted.compareAndSet(false, true)) {
+            sMainHandler.post(this);
+        }
+    }
+
+    /**
+     * Remove the pending report, e.g. the task is cancelled.
+     */
+    public void cancel() {
+        sMainHandler.removeCallbacks(this);
+        mPosted.set(false);
+    }
+
+    @Override
+    public void run() {
+        mPosted.set(false);
+        long transferred = mTransferred;
+        long total = mTotal;
+        mCallback.onProgress(transferred, total, getProgress(transferred, total));
+    }
+
+    private static int getProgress(long transferred, long total) {
+        return total <= 0 ? 0 : (int) (transferred * 100 / total);
+    }
+
+    /**
+     * Progress callback, called in main thread.
+     */
+    public interface Callback {
+        void onProgress(long transferred, long total, int progress);
+    }
+}
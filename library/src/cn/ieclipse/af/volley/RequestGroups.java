@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cancellation groups of running tasks, a group is any object identity,
+ * typically a controller or a screen ({@link cn.ieclipse.af.app.AfActivity}
+ * / {@link cn.ieclipse.af.app.AfFragment}) which cancels its group when
+ * destroyed.
+ * <p>
+ * The group lookup is a hash lookup, cancelling a group touches only the
+ * tasks of the group instead of scanning the whole request queue. A task
+ * should {@link #remove(Object, Cancelable) remove} itself when finished.
+ * </p>
+ *
+ * @author Jamling
+ */
+public final class RequestGroups {
+
+    /**
+     * A task can be cancelled.
+     */
+    public interface Cancelable {
+        /**
+         * Cancel the task, no response should be delivered after
+         * cancelled.
+         */
+        void cancel();
+    }
+
+    private static final Map<Object, Set<Cancelable>> sGroups = new IdentityHashMap<>();
+
+    private RequestGroups() {
+    }
+
+    /**
+     * Add the task to group.
+     *
+     * @param group
+     *            group object
+     * @param task
+     *            task
+     */
+    public static void add(Object group, Cancelable task) {
+        synchronized (sGroups) {
+            Set<Cancelable> set = sGroups.get(group);
+            if (set == null) {
+                set = Collections.newSetFromMap(new IdentityHashMap<Cancelable, Boolean>());
+                sGroups.put(group, set);
+            }
+            set.add(task);
+        }
+    }
+
+    /**
+     * Remove the finished task from group.
+     *
+     * @param group
+     *            group object
+     * @param task
+     *            task
+     */
+    public static void remove(Object group, Cancelable task) {
+        synchronized (sGroups) {
+            Set<Cancelable> set = sGroups.get(group);
+            if (set != null && set.remove(task) && set.isEmpty()) {
+                sGroups.remove(group);
+            }
+        }
+    }
+
+    /**
+     * Cancel all the tasks of group.
+     *
+     * @param group
+     *            group object
+     * @return count of cancelled tasks
+     */
+    public static int cancel(Object group) {
+        List<Cancelable> tasks;
+        synchronized (sGroups) {
+            Set<Cancelable> set = sGroups.remove(group);
+            if (set == null) {
+                return 0;
+            }
+            tasks = new ArrayList<>(set);
+        }
+        // out of lock, a task may remove itself from other groups
+        for (Cancelable task : tasks) {
+            task.cancel();
+        }
+        return tasks.size();
+    }
+
+    /**
+     * @param group
+     *            group object
+     * @return count of running tasks of group
+     */
+    public static int size(Object group) {
+        synchronized (sGroups) {
+            Set<Cancelable> set = sGroups.get(group);
+            return set == null ? 0 : set.size();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.android.volley.Request.Method;
+
+/**
+ * Canonical key of a request, used as the cache key and the in-flight
+ * (dedupe) key, so the same logical request always has the same key no
+ * matter the parameter order or escaping.
+ * <p>
+ * The key consists of method, URL and body:
+ * <ul>
+ * <li>method is upper case</li>
+ * <li>scheme and host of the URL are lower case, fragment is removed</li>
+ * <li>query and form body parameters are sorted by name (values of the same
+ * name keep their order)</li>
+ * <li>percent escapes are upper case, escaped unreserved characters are
+ * decoded and space is '+', no charset is assumed</li>
+ * </ul>
+ * </p>
+ * <p>
+ * The raw key (method, URL and body as they are) is kept too, a cache or
+ * in-flight hit of a different raw key is a miss avoided by the canonical
+ * key, see {@link #getAvoidedMissCount()}.
+ * </p>
+ *
+ * @author Jamling
+ */
+public final class RequestKey {
+    private static final AtomicInteger sKeyCount = new AtomicInteger();
+    private static final AtomicInteger sNormalizedCount = new AtomicInteger();
+    private static final AtomicInteger sAvoidedMissCount = new AtomicInteger();
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final Comparator<String> NAME_COMPARATOR = new Comparator<String>() {
+        @Override
+        public int compare(String lhs, String rhs) {
+            return name(lhs).compareTo(name(rhs));
+        }
+    };
+
+    private final String mKey;
+    private final String mRawKey;
+
+    private RequestKey(String key, String rawKey) {
+        this.mKey = key;
+        this.mRawKey = rawKey;
+    }
+
+    /**
+     * Create request key.
+     *
+     * @param method
+     *            volley http method, see {@link Method}
+     * @param url
+     *            full URL (with query)
+     * @param body
+     *            request body, may be null
+     * @return request key
+     */
+    public static RequestKey create(int method, String url, String body) {
+        return create(getMethodName(method), url, body);
+    }
+
+    /**
+     * Create request key.
+     *
+     * @param method
+     *            http method name
+     * @param url
+     *            full URL (with query)
+     * @param body
+     *            request body, may be null
+     * @return request key
+     */
+    public static RequestKey create(String method, String url, String body) {
+        StringBuilder raw = new StringBuilder();
+        raw.append(method).append(' ').append(url);
+        StringBuilder key = new StringBuilder(raw.length());
+        key.append(method.toUpperCase(Locale.US)).append(' ').append(canonicalUrl(url));
+        if (body != null) {
+            raw.append('\n').append(body);
+            key.append('\n').append(canonicalBody(body));
+        }
+        RequestKey ret = new RequestKey(key.toString(), raw.toString());
+        sKeyCount.incrementAndGet();
+        if (!ret.isCanonical()) {
+            sNormalizedCount.incrementAndGet();
+        }
+        return ret;
+    }
+
+    /**
+     * @return canonical key
+     */
+    public String getKey() {
+        return mKey;
+    }
+
+    /**
+     * @return key made of method, URL and body as they are
+     */
+    public String getRawKey() {
+        return mRawKey;
+    }
+
+    /**
+     * @return true if the raw key is already canonical
+     */
+    public boolean isCanonical() {
+        return mKey.equals(mRawKey);
+    }
+
+    /**
+     * Record a cache or in-flight hit of this key.
+     *
+     * @param hitRawKey
+     *            raw key of the hit entry (the request that stored the
+     *            entry), null if unknown
+     * @return true if the raw keys differ, the hit would be a miss without
+     * canonical key.
+     */
+    public boolean onHit(String hitRawKey) {
+        if (hitRawKey != null && !hitRawKey.equals(mRawKey)) {
+            sAvoidedMissCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return count of created keys
+     */
+    public static int getKeyCount() {
+        return sKeyCount.get();
+    }
+
+    /**
+     * @return count of created keys whose raw key was not canonical
+     */
+    public static int getNormalizedCount() {
+        return sNormalizedCount.get();
+    }
+
+    /**
+     * @return count of cache or in-flight hits which would be misses without
+     * canonical key
+     */
+    public static int getAvoidedMissCount() {
+        return sAvoidedMissCount.get();
+    }
+
+    public static String getStats() {
+        return String.format("RequestKey[keys=%d,normalized=%d,avoidedMisses=%d]", getKeyCount(),
+            getNormalizedCount(), getAvoidedMissCount());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof RequestKey && mKey.equals(((RequestKey) o).mKey);
+    }
+
+    @Override
+    public int hashCode() {
+        return mKey.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return mKey;
+    }
+
+    /**
+     * Canonicalize URL, see the class description.
+     *
+     * @param url
+     *            URL
+     * @return canonical URL
+     */
+    public static String canonicalUrl(String url) {
+        if (url == null) {
+            return null;
+        }
+        int hash = url.indexOf('#');
+        if (hash >= 0) {
+            url = url.substring(0, hash);
+        }
+        int q = url.indexOf('?');
+        String base = q >= 0 ? url.substring(0, q) : url;
+        String query = q >= 0 ? canonicalParams(url.substring(q + 1)) : "";
+        int scheme = base.indexOf("://");
+        if (scheme > 0) {
+            int path = base.indexOf('/', scheme + 3);
+            int end = path > 0 ? path : base.length();
+            int host = base.lastIndexOf('@', end) + 1;
+            if (host < scheme + 3) {
+                host = scheme + 3;
+            }
+            base = base.substring(0, scheme + 3).toLowerCase(Locale.US) + base.substring(scheme + 3, host)
+                + base.substring(host, end).toLowerCase(Locale.US) + base.substring(end);
+        }
+        return query.length() > 0 ? base + '?' + query : base;
+    }
+
+    /**
+     * Canonicalize parameters (<code>name1=value1&amp;name2=value2</code>),
+     * see the class description.
+     *
+     * @param params
+     *            parameters
+     * @return canonical parameters
+     */
+    public static String canonicalParams(String params) {
+        if (params == null || params.length() == 0) {
+            return "";
+        }
+        List<String> pairs = new ArrayList<String>();
+        int start = 0;
+        while (start <= params.length()) {
+            int end = params.indexOf('&', start);
+            if (end < 0) {
+                end = params.length();
+            }
+            if (end > start) {
+                pairs.add(normalize(params.substring(start, end)));
+            }
+            start = end + 1;
+        }
+        // stable, values of the same name keep their order
+        Collections.sort(pairs, NAME_COMPARATOR);
+        StringBuilder sb = new StringBuilder(params.length());
+        for (String pair : pairs) {
+            if (sb.length() > 0) {
+                sb.append('&');
+            }
+            sb.append(pair);
+        }
+        return sb.toString();
+    }
+
+    private static String canonicalBody(String body) {
+        if (body.length() > 0) {
+            char c = body.charAt(0);
+            // json, xml, etc. are not form parameters
+            if (c == '{' || c == '[' || c == '<' || c == '"' || Character.isWhitespace(c)) {
+                return body;
+            }
+        }
+        return canonicalParams(body);
+    }
+
+    private static String name(String pair) {
+        int eq = pair.indexOf('=');
+        return eq >= 0 ? pair.substring(0, eq) : pair;
+    }
+
+    private static String normalize(String s) {
+        StringBuilder sb = null;
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            String replace = null;
+            int skip = 0;
+            if (c == ' ') {
+                replace = "+";
+            }
+            else if (c == '%' && i + 2 < len && isHex(s.charAt(i + 1)) && isHex(s.charAt(i + 2))) {
+                int b = Character.digit(s.charAt(i + 1), 16) << 4 | Character.digit(s.charAt(i + 2), 16);
+                skip = 2;
+                if (b == ' ') {
+                    replace = "+";
+                }
+                else if (isUnreserved(b)) {
+                    replace = String.valueOf((char) b);
+                }
+                else {
+                    replace = new String(new char[] {'%', HEX[b >> 4], HEX[b & 0xF]});
+                }
+            }
+            if (replace != null && sb == null) {
+                sb = new StringBuilder(len);
+                sb.append(s, 0, i);
+            }
+            if (sb != null) {
+                if (replace != null) {
+                    sb.append(replace);
+                }
+                else {
+                    sb.append(c);
+                }
+            }
+            i += skip;
+        }
+        return sb != null ? sb.toString() : s;
+    }
+
+    private static boolean isHex(char c) {
+        return Character.digit(c, 16) >= 0 && c < 128;
+    }
+
+    private static boolean isUnreserved(int b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '-' || b == '.'
+            || b == '_' || b == '~' || b == '*';
+    }
+
+    private static String getMethodName(int method) {
+        switch (method) {
+            case Method.GET:
+                return "GET";
+            case Method.POST:
+                return "POST";
+            case Method.PUT:
+                return "PUT";
+            case Method.DELETE:
+                return "DELETE";
+            case Method.HEAD:
+                return "HEAD";
+            case Method.OPTIONS:
+                return "OPTIONS";
+            case Method.TRACE:
+                return "TRACE";
+            case Method.PATCH:
+                return "PATCH";
+            default:
+                return String.valueOf(method);
+        }
+    }
+}
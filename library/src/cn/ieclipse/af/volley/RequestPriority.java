@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import com.android.volley.Request.Priority;
+
+/**
+ * Task priority of requests.
+ * <p>
+ * {@link #IMMEDIATE} requests always run first. A waiting lower priority
+ * request is overtaken only by the higher priority requests enqueued within
+ * its {@link #getAging() aging} delay, it will not starve even if the higher
+ * priority requests keep coming. The volley queue applies the aging when a
+ * request is added (see {@link PriorityAging}), the okhttp dispatcher orders
+ * by {@link #compare(RequestPriority, long, long, RequestPriority, long, long)}.
+ * </p>
+ *
+ * @author Jamling
+ */
+public enum RequestPriority {
+    /**
+     * User is waiting for it, e.g. submit
+     */
+    IMMEDIATE(Priority.IMMEDIATE, 0),
+    /**
+     * Visible content, e.g. the first page of list
+     */
+    HIGH(Priority.HIGH, 0),
+    /**
+     * Default priority
+     */
+    NORMAL(Priority.NORMAL, 2000),
+    /**
+     * Background work, e.g. analytics report
+     */
+    LOW(Priority.LOW, 5000),
+    /**
+     * Speculative loading, e.g. next page
+     */
+    PREFETCH(Priority.LOW, 10000);
+
+    private final Priority mVolleyPriority;
+    private final long mAging;
+
+    RequestPriority(Priority volleyPriority, long aging) {
+        this.mVolleyPriority = volleyPriority;
+        this.mAging = aging;
+    }
+
+    /**
+     * @return the nearest volley priority
+     */
+    public Priority toVolley() {
+        return mVolleyPriority;
+    }
+
+    /**
+     * @return max time (in milliseconds) of the request be overtaken by the
+     * higher priority requests
+     */
+    public long getAging() {
+        return mAging;
+    }
+
+    /**
+     * Compare the scheduling order of two requests, the result is constant
+     * during the requests waiting in a priority queue.
+     *
+     * @param p1
+     *            priority of the first request
+     * @param time1
+     *            enqueue time (in milliseconds) of the first request
+     * @param seq1
+     *            sequence of the first request, to keep FIFO
+     * @param p2
+     *            priority of the second request
+     * @param time2
+     *            enqueue time (in milliseconds) of the second request
+     * @param seq2
+     *            sequence of the second request
+     * @return negative if the first request runs first
+     */
+    public static int compare(RequestPriority p1, long time1, long seq1, RequestPriority p2, long time2,
+                              long seq2) {
+        boolean i1 = p1 == IMMEDIATE;
+        boolean i2 = p2 == IMMEDIATE;
+        if (i1 != i2) {
+            return i1 ? -1 : 1;
+        }
+        if (!i1) {
+            long d1 = time1 + p1.mAging;
+            long d2 = time2 + p2.mAging;
+            if (d1 != d2) {
+                return d1 < d2 ? -1 : 1;
+            }
+            if (p1 != p2) {
+                return p1.ordinal() < p2.ordinal() ? -1 : 1;
+            }
+        }
+        return seq1 < seq2 ? -1 : (seq1 == seq2 ? 0 : 1);
+    }
+}
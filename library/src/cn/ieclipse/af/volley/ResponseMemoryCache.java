@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.LruCache;
+
+/**
+ * In-memory LRU cache of already parsed response objects, it's the first tier
+ * in front of the volley disk cache. The size of an entry is the length of
+ * the response body it was parsed from, so the max size is roughly in bytes.
+ * <p>
+ * The cached object is shared by every later hit, so it must be treated as
+ * immutable. {@link Controller} stores and delivers copies of list outputs
+ * (see RequestObjectTask#copyOutput), the items are still shared.
+ * </p>
+ *
+ * @author Jamling
+ */
+public final class ResponseMemoryCache {
+    public static final int DEFAULT_MAX_BYTES = 2 << 20; // 2M
+    private final LruCache<String, Entry> mCache;
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+
+    public ResponseMemoryCache(int maxBytes) {
+        mCache = new LruCache<String, Entry>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Entry value) {
+                return value.size;
+            }
+        };
+    }
+
+    /**
+     * Get the cached object.
+     *
+     * @param key
+     *            cache key
+     * @return cached object or null if not cached or expired.
+     */
+    public Object get(String key) {
+        Entry entry = getEntry(key);
+        return entry != null ? entry.data : null;
+    }
+
+    /**
+     * Get the cache entry, the entry may need to be refreshed, see
+     * {@link Entry#refreshNeeded()}.
+     *
+     * @param key
+     *            cache key
+     * @return cache entry or null if not cached or expired.
+     */
+    public Entry getEntry(String key) {
+        Entry entry = mCache.get(key);
+        if (entry != null && entry.isExpired()) {
+            mCache.remove(key);
+            entry = null;
+        }
+        if (entry == null) {
+            mMissCount.incrementAndGet();
+            return null;
+        }
+        mHitCount.incrementAndGet();
+        return entry;
+    }
+
+    /**
+     * Put an object into cache.
+     *
+     * @param key
+     *            cache key
+     * @param data
+     *            parsed object
+     * @param size
+     *            size (response length) of the object
+     * @param softTtl
+     *            soft expire time (absolute time in milliseconds)
+     * @param ttl
+     *            hard expire time (absolute time in milliseconds)
+     */
+    public void put(String key, Object data, int size, long softTtl, long ttl) {
+        put(key, null, data, size, softTtl, ttl);
+    }
+
+    /**
+     * Put an object into cache.
+     *
+     * @param key
+     *            cache key
+     * @param rawKey
+     *            raw key of the request, see {@link RequestKey#getRawKey()}
+     * @param data
+     *            parsed object
+     * @param size
+     *            size (response length) of the object
+     * @param softTtl
+     *            soft expire time (absolute time in milliseconds)
+     * @param ttl
+     *            hard expire time (absolute time in milliseconds)
+     */
+    public void put(String key, String rawKey, Object data, int size, long softTtl, long ttl) {
+        if (data == null || ttl <= System.currentTimeMillis()) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.rawKey = rawKey;
+        entry.data = data;
+        entry.size = Math.max(size, 1);
+        entry.softTtl = softTtl;
+        entry.ttl = ttl;
+        mCache.put(key, entry);
+    }
+
+    /**
+     * Update the expire time of cached entry, e.g. after revalidated.
+     *
+     * @param key
+     *            cache key
+     * @param softTtl
+     *            soft expire time (absolute time in milliseconds)
+     * @param ttl
+     *            hard expire time (absolute time in milliseconds)
+     */
+    public void refresh(String key, long softTtl, long ttl) {
+        Entry entry = mCache.get(key);
+        if (entry != null) {
+            entry.softTtl = softTtl;
+            entry.ttl = ttl;
+        }
+    }
+
+    public void remove(String key) {
+        mCache.remove(key);
+    }
+
+    public void clear() {
+        mCache.evictAll();
+    }
+
+    public int getHitCount() {
+        return mHitCount.get();
+    }
+
+    public int getMissCount() {
+        return mMissCount.get();
+    }
+
+    /**
+     * @return current size (in bytes) of the cache
+     */
+    public int size() {
+        return mCache.size();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("ResponseMemoryCache[size=%d,max=%d,hits=%d,misses=%d,evictions=%d]", mCache.size(),
+            mCache.maxSize(), getHitCount(), getMissCount(), mCache.evictionCount());
+    }
+
+    public static final class Entry {
+        private String rawKey;
+        private Object data;
+        private int size;
+        private volatile long softTtl;
+        private volatile long ttl;
+
+        public Object getData() {
+            return data;
+        }
+
+        /**
+         * @return raw key of the request which put this entry, may be null
+         */
+        public String getRawKey() {
+            return rawKey;
+        }
+
+        public boolean isExpired() {
+            return ttl < System.currentTimeMillis();
+        }
+
+        public boolean refreshNeeded() {
+            return softTtl < System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Request body which can be written to the connection directly instead of
+ * being built as a byte array by {@link com.android.volley.Request#getBody()}
+ * , see {@link StreamingHurlStack}.
+ *
+ * @author Jamling
+ */
+public interface StreamingBody {
+    /**
+     * @return the exact length of the body in bytes, or -1 if unknown
+     *         (chunked streaming mode is used)
+     */
+    long getContentLength();
+
+    /**
+     * Write the body to the stream.
+     *
+     * @param out
+     *            connection output stream
+     * @throws IOException
+     *             if write failed
+     */
+    void writeTo(OutputStream out) throws IOException;
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2014-2015 ieclipse.cn.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package cn.ieclipse.af.volley;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.MalformedJsonException;
+
+/**
+ * Process wide, thread-safe registry of gson {@link TypeAdapter}s.
+ * <p>
+ * Every adapter is built once per {@link Type} (an output class or a
+ * {@link #type(Class, Type...)} such as <code>List&lt;Item&gt;</code>) and
+ * reused by all requests, so the reflective binding of the entity classes is
+ * only resolved the first time. Hand-written adapters can be registered with
+ * {@link #register(Type, TypeAdapter)} to skip reflection entirely.
+ * </p>
+ *
+ * @author Jamling
+ */
+public final class TypeAdapterRegistry {
+    private static volatile Gson sGson = new Gson();
+    private static final ConcurrentHashMap<Type, TypeAdapter<?>> sAdapters = new ConcurrentHashMap<>();
+
+    private TypeAdapterRegistry() {
+
+    }
+
+    /**
+     * Get the shared {@link Gson} instance.
+     *
+     * @return shared gson
+     */
+    public static Gson getGson() {
+        return sGson;
+    }
+
+    /**
+     * Replace the shared {@link Gson}, e.g. with custom serializers. All the
+     * cached adapters built by the previous gson are dropped.
+     *
+     * @param gson
+     *            new gson instance
+     */
+    public static void setGson(Gson gson) {
+        if (gson == null) {
+            throw new NullPointerException("gson can't be null");
+        }
+        sGson = gson;
+        sAdapters.clear();
+    }
+
+    /**
+     * Register a pre-built adapter, the adapter will be used instead of gson
+     * reflective adapter.
+     *
+     * @param type
+     *            class or parameterized type
+     * @param adapter
+     *            type adapter
+     */
+    public static <T> void register(Type type, TypeAdapter<T> adapter) {
+        sAdapters.put(canonicalize(type), adapter);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> TypeAdapter<T> getAdapter(Class<T> clazz) {
+        return (TypeAdapter<T>) getAdapter((Type) clazz);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> TypeAdapter<List<T>> getListAdapter(Class<T> itemClazz) {
+        return (TypeAdapter<List<T>>) getAdapter(type(List.class, itemClazz));
+    }
+
+    public static TypeAdapter<?> getAdapter(Type type) {
+        Type key = canonicalize(type);
+        TypeAdapter<?> adapter = sAdapters.get(key);
+        if (adapter == null) {
+            adapter = sGson.getAdapter(TypeToken.get(key));
+            TypeAdapter<?> old = sAdapters.putIfAbsent(key, adapter);
+            if (old != null) {
+                adapter = old;
+            }
+        }
+        return adapter;
+    }
+
+    /**
+     * Read json to object, behaves like {@link Gson#fromJson(String, Type)}
+     * (lenient, empty json returns null, trailing data is an error) but uses
+     * the cached adapter.
+     *
+     * @param json
+     *            json string
+     * @param type
+     *            object type
+     * @return object or null if json is null or empty
+     * @throws JsonSyntaxException
+     *             if json is malformed or truncated
+     */
+    public static <T> T fromJson(String json, Type type) {
+        if (json == null) {
+            return null;
+        }
+        return fromJsonDocument(new JsonReader(new StringReader(json)), type);
+    }
+
+    /**
+     * Read the whole document of reader, as {@link #fromJson(String, Type)}.
+     *
+     * @param reader
+     *            json reader of a document
+     * @param type
+     *            object type
+     * @return object or null if the document is empty
+     * @throws JsonSyntaxException
+     *             if json is malformed or truncated
+     * @throws JsonIOException
+     *             if there is data after the object
+     */
+    public static <T> T fromJsonDocument(JsonReader reader, Type type) {
+        T object = fromJson(reader, type);
+        assertFullConsumption(object, reader);
+        return object;
+    }
+
+    /**
+     * Check there is no data after the object, as gson does.
+     *
+     * @param object
+     *            the read object
+     * @param reader
+     *            json reader
+     */
+    static void assertFullConsumption(Object object, JsonReader reader) {
+        try {
+            if (object != null && reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonIOException("JSON document was not fully consumed.");
+            }
+        } catch (MalformedJsonException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    /**
+     * Read the next value of reader, behaves like
+     * {@link Gson#fromJson(JsonReader, Type)}: only an empty document
+     * returns null, an EOF after the first token is a syntax error.
+     *
+     * @param reader
+     *            json reader, the leniency is restored after read
+     * @param type
+     *            object type
+     * @return object or null if the document is empty
+     * @throws JsonSyntaxException
+     *             if json is malformed or truncated
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T fromJson(JsonReader reader, Type type) {
+        boolean isEmpty = true;
+        boolean oldLenient = reader.isLenient();
+        reader.setLenient(true);
+        try {
+            reader.peek();
+            isEmpty = false;
+            return (T) getAdapter(type).read(reader);
+        } catch (EOFException e) {
+            if (isEmpty) {
+                // empty document
+                return null;
+            }
+            throw new JsonSyntaxException(e);
+        } catch (IllegalStateException e) {
+            throw new JsonSyntaxException(e);
+        } catch (IOException e) {
+            throw new JsonSyntaxException(e);
+        } finally {
+            reader.setLenient(oldLenient);
+        }
+    }
+
+    /**
+     * Serialize object to json with the shared gson.
+     *
+     * @param src
+     *            object to serialize
+     * @return json string
+     */
+    public static String toJson(Object src) {
+        return sGson.toJson(src);
+    }
+
+    /**
+     * Create a parameterized type, e.g. <code>type(List.class, Item.class)</code>
+     * for <code>List&lt;Item&gt;</code>. The returned type implements
+     * equals/hashCode so it can be used as a cache key.
+     *
+     * @param raw
+     *            raw type
+     * @param args
+     *            actual type arguments
+     * @return parameterized type
+     */
+    public static ParameterizedType type(Class<?> raw, Type... args) {
+        return new ParameterizedTypeImpl(raw, args);
+    }
+
+    private static Type canonicalize(Type type) {
+        if (type instanceof ParameterizedType && !(type instanceof ParameterizedTypeImpl)) {
+            ParameterizedType p = (ParameterizedType) type;
+            if (p.getOwnerType() == null && p.getRawType() instanceof Class) {
+                return new ParameterizedTypeImpl((Class<?>) p.getRawType(), p.getActualTypeArguments());
+            }
+        }
+        return type;
+    }
+
+    private static final class ParameterizedTypeImpl implements ParameterizedType {
+        private final Class<?> raw;
+        private final Type[] args;
+
+        ParameterizedTypeImpl(Class<?> raw, Type[] args) {
+            this.raw = raw;
+            this.args = args.clone();
+        }
+
+        @Override
+        public Type getRawType() {
+            return raw;
+        }
+
+        @Override
+        public Type[] getActualTypeArguments() {
+            return args.clone();
+        }
+
+        @Override
+        public Type getOwnerType() {
+            return null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof ParameterizedType)) {
+                return false;
+            }
+            ParameterizedType that = (ParameterizedType) o;
+            return that.getOwnerType() == null && raw.equals(that.getRawType())
+                    && Arrays.equals(args, that.getActualTypeArguments());
+        }
+
+        @Override
+        public int hashCode() {
+            // same as gson $Gson$Types
+            return Arrays.hashCode(args) ^ raw.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(raw.getName());
+            sb.append('<');
+            for (int i = 0; i < args.length; i++) {
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(args[i] instanceof Class ? ((Class<?>) args[i]).getName() : args[i].toString());
+            }
+            sb.append('>');
+            return sb.toString();
+        }
+    }
+}
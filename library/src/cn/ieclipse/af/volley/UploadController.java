@@ -17,9 +17,6 @@ package cn.ieclipse.af.volley;
 
 import java.io.File;
 
-import android.os.Handler;
-import android.os.Message;
-
 /**
  * 类/接口描述
  *
@@ -29,8 +26,11 @@ import android.os.Message;
 public class UploadController<Listener> extends Controller<Listener> {
     
     protected abstract class AbstractUploadTask<Output> extends
-            RequestObjectTask<File, Output>implements UploadProgressListener {
-            
+            RequestObjectTask<File, Output>implements UploadProgressListener,
+            ProgressReporter.Callback {
+        
+        private final ProgressReporter mReporter = new ProgressReporter(this);
+        
         @Override
         public void onSuccess(Output out, boolean fromCache) {
             onUploadSuccess(input, out);
@@ -48,18 +48,32 @@ public class UploadController<Listener> extends Controller<Listener> {
         
         @Override
         protected GsonRequest buildRequest(IUrl url, String body) {
+            mReporter.reset();
             UploadRequest request = new UploadRequest(url.getMethod(),
                     url.getUrl(), body, this, this, this);
             upload(request);
             return request;
         }
         
+        @Override
+        public void cancel() {
+            super.cancel();
+            mReporter.cancel();
+        }
+        
         @Override
         public void updateProgress(long transferred, long total, int progress) {
-            Message msg = new Message();
-            msg.what = progress;
-            msg.obj = new long[]{transferred, total, progress};
-            handler.sendMessage(msg);
+            mReporter.update(transferred, total);
+        }
+        
+        /**
+         * Get the progress reporter to set the min interval and delta of
+         * {@link #onProgress(long, long, int)}
+         * 
+         * @return progress reporter
+         */
+        public ProgressReporter getProgressReporter() {
+            return mReporter;
         }
         
         /**
@@ -75,14 +89,12 @@ public class UploadController<Listener> extends Controller<Listener> {
         
         protected abstract void onUploadSuccess(File file, Output out);
 
+        /**
+         * Upload progress, called in main thread, see
+         * {@link ProgressReporter}
+         */
+        @Override
         public abstract void onProgress(long transferred, long total,
                 int progress);
-                
-        private Handler handler = new Handler() {
-            public void handleMessage(android.os.Message msg) {
-                long[] p = (long[]) msg.obj;
-                onProgress(p[0], p[1], (int) p[2]);
-            };
-        };
     }
 }
@@ -36,7 +36,7 @@ import cn.ieclipse.af.volley.content.ByteArrayBody;
 import cn.ieclipse.af.volley.content.FileBody;
 import cn.ieclipse.af.volley.content.StringBody;
 
-public class UploadRequest extends GsonRequest {
+public class UploadRequest extends GsonRequest implements StreamingBody {
     /**
      * The pool of ASCII chars to be used for generating a multipart boundary.
      */
@@ -52,6 +52,7 @@ public class UploadRequest extends GsonRequest {
     public static final long PIC_MAX_LENGTH = 200 << 10; // 200K
     public static final long PIC_LIMIT_LENGTH_OF_QUICK_COMPRESS = 1 << 20;
     private long bitmapMaxLength = PIC_MAX_LENGTH;
+    private int bufferSize = FileBody.DEFAULT_BUFFER_SIZE;
     
     public UploadRequest(int method, String url, String body,
             Listener<IBaseResponse> responseListener, ErrorListener listener,
@@ -77,6 +78,9 @@ public class UploadRequest extends GsonRequest {
     }
     
     private void addBody(String name, AbstractContentBody body) {
+        if (body instanceof FileBody) {
+            ((FileBody) body).setBufferSize(bufferSize);
+        }
         getParam(name).add(body);
     }
     
@@ -103,6 +107,8 @@ public class UploadRequest extends GsonRequest {
         }
         BitmapBody body = new BitmapBody(file, "image/" + ext);
         body.setLimitThresholdSize(bitmapMaxLength);
+        // compress in parallel with the other images
+        body.prepare();
         addBody(name, body);
     }
     
@@ -110,6 +116,18 @@ public class UploadRequest extends GsonRequest {
         this.bitmapMaxLength = bitmapMaxLength;
     }
     
+    /**
+     * Set the size of buffer used to copy files to connection, should be
+     * called before adding the file bodies.
+     * 
+     * @param bufferSize
+     *            buffer size in bytes, default is
+     *            {@link FileBody#DEFAULT_BUFFER_SIZE}
+     */
+    public void setBufferSize(int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+    
     private long getTotalSize() {
         long sum = 0L;
         for (String key : params.keySet()) {
@@ -121,57 +139,93 @@ public class UploadRequest extends GsonRequest {
         return sum;
     }
     
+    /**
+     * Get the whole multipart body, it's only used by the http stack which
+     * doesn't support {@link StreamingBody}, the body (including all the
+     * files) is buffered in memory.
+     *
+     * @see StreamingHurlStack
+     */
     @Override
     public byte[] getBody() {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        
-        CountingOutputStream dos = new CountingOutputStream(bos, getTotalSize(),
-                progressListener);
         try {
-            for (String key : params.keySet()) {
-                List<AbstractContentBody> v = params.get(key);
-                for (AbstractContentBody body : v) {
-                    dos.writeBytes(TWO_DASHES + boundary + CR_LF);
-                    StringBuilder sb = new StringBuilder();
-                    sb.append("Content-Disposition: form-data; name=\"");
-                    sb.append(key);
-                    sb.append("\"");
-                    if (body.getFilename() != null) {
-                        sb.append("; filename=\"");
-                        sb.append(body.getFilename());
-                        sb.append("\"");
-                    }
-                    sb.append(CR_LF);
-                    if (body.getContentType() != null) {
-                        sb.append("Content-Type: ");
-                        sb.append(body.getContentType());
-                        sb.append(CR_LF);
-                    }
-                    sb.append(CR_LF);
-                    dos.writeBytes(sb.toString());
-                    body.writeTo(dos);
-                    dos.writeBytes(CR_LF);
-                }
-            }
-            dos.writeBytes(TWO_DASHES + boundary + TWO_DASHES + CR_LF);
-            byte[] ret = bos.toByteArray();
-            // File f = new File(Environment.getExternalStorageDirectory(),
-            // "aaa_up");
-            // if (!f.exists()) {
-            // f.createNewFile();
-            // }
-            // FileOutputStream fos = new FileOutputStream(f);
-            // fos.write(ret);
-            // fos.flush();
-            // fos.close();
-            return ret;
-            
+            writeTo(bos);
+            return bos.toByteArray();
         } catch (IOException e) {
             e.printStackTrace();
         }
         return null;
     }
     
+    /**
+     * Get the exact length of multipart body, including the part headers and
+     * boundaries.
+     *
+     * @return body length
+     */
+    @Override
+    public long getContentLength() {
+        long sum = 0L;
+        for (String key : params.keySet()) {
+            List<AbstractContentBody> v = params.get(key);
+            for (AbstractContentBody body : v) {
+                sum += TWO_DASHES.length() + boundary.length() + CR_LF.length();
+                sum += getPartHeader(key, body).length();
+                sum += body.getContentLength();
+                sum += CR_LF.length();
+            }
+        }
+        sum += TWO_DASHES.length() + boundary.length() + TWO_DASHES.length() + CR_LF.length();
+        return sum;
+    }
+    
+    /**
+     * Write the multipart body to the stream part by part, the file is read
+     * and written by small buffer.
+     *
+     * @param out
+     *            output stream
+     * @throws IOException
+     *             if write failed
+     */
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        CountingOutputStream dos = new CountingOutputStream(out, getTotalSize(),
+                progressListener);
+        for (String key : params.keySet()) {
+            List<AbstractContentBody> v = params.get(key);
+            for (AbstractContentBody body : v) {
+                dos.writeBytes(TWO_DASHES + boundary + CR_LF);
+                dos.writeBytes(getPartHeader(key, body));
+                body.writeTo(dos);
+                dos.writeBytes(CR_LF);
+            }
+        }
+        dos.writeBytes(TWO_DASHES + boundary + TWO_DASHES + CR_LF);
+        dos.flush();
+    }
+    
+    private String getPartHeader(String key, AbstractContentBody body) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Content-Disposition: form-data; name=\"");
+        sb.append(key);
+        sb.append("\"");
+        if (body.getFilename() != null) {
+            sb.append("; filename=\"");
+            sb.append(body.getFilename());
+            sb.append("\"");
+        }
+        sb.append(CR_LF);
+        if (body.getContentType() != null) {
+            sb.append("Content-Type: ");
+            sb.append(body.getContentType());
+            sb.append(CR_LF);
+        }
+        sb.append(CR_LF);
+        return sb.toString();
+    }
+    
     public static interface MultipartProgressListener {
         void transferred(long transfered, int progress);
     }
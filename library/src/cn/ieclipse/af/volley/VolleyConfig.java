@@ -30,15 +30,31 @@ public final class VolleyConfig {
     private int mMaxDiskCacheBytes;
     private Class<? extends IBaseResponse> mBaseResponseClass;
     private RetryPolicy mRetryPolicy;
+    private int mMemoryCacheBytes;
+    private CachePolicy mCachePolicy;
+    private boolean mOutboundQueueEnabled;
     
     private VolleyConfig(Builder builder) {
-        if (builder.mHttpStack == null) {
-            // TODO set default http stack
-            mHttpStack = null;
+        mHttpStack = builder.mHttpStack;
+        if (mHttpStack == null) {
+            // share the connection pool with okhttp if available
+            mHttpStack = isOkHttpAvailable() ? new OkHttpStack() : new StreamingHurlStack();
         }
         mMaxDiskCacheBytes = builder.mMaxDiskCacheBytes;
         mBaseResponseClass = builder.mBaseResponseClass;
         mRetryPolicy = builder.mRetryPolicy;
+        mMemoryCacheBytes = builder.mMemoryCacheBytes;
+        mCachePolicy = builder.mCachePolicy;
+        mOutboundQueueEnabled = builder.mOutboundQueueEnabled;
+    }
+    
+    private static boolean isOkHttpAvailable() {
+        try {
+            Class.forName("okhttp3.OkHttpClient");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
     }
     
     public HttpStack getHttpStack() {
@@ -57,11 +73,26 @@ public final class VolleyConfig {
         return mRetryPolicy;
     }
     
+    public int getMemoryCacheBytes() {
+        return mMemoryCacheBytes;
+    }
+    
+    public CachePolicy getCachePolicy() {
+        return mCachePolicy;
+    }
+    
+    public boolean isOutboundQueueEnabled() {
+        return mOutboundQueueEnabled;
+    }
+    
     public static final class Builder {
         private HttpStack mHttpStack;
         private int mMaxDiskCacheBytes;
         private Class<? extends IBaseResponse> mBaseResponseClass;
         private RetryPolicy mRetryPolicy;
+        private int mMemoryCacheBytes = ResponseMemoryCache.DEFAULT_MAX_BYTES;
+        private CachePolicy mCachePolicy = CachePolicy.DEFAULT;
+        private boolean mOutboundQueueEnabled;
         
         public Builder setHttpStack(HttpStack httpStack) {
             this.mHttpStack = httpStack;
@@ -84,6 +115,48 @@ public final class VolleyConfig {
             return this;
         }
         
+        /**
+         * Set max size of the parsed response memory cache, 0 to disable it.
+         * 
+         * @param memoryCacheBytes
+         *            max size in bytes
+         * @return builder
+         * @see ResponseMemoryCache
+         */
+        public Builder setMemoryCacheBytes(int memoryCacheBytes) {
+            this.mMemoryCacheBytes = memoryCacheBytes;
+            return this;
+        }
+        
+        /**
+         * Set the default stale-while-revalidate policy of cached responses.
+         * 
+         * @param cachePolicy
+         *            cache policy
+         * @return builder
+         * @see CachePolicy
+         */
+        public Builder setCachePolicy(CachePolicy cachePolicy) {
+            if (cachePolicy != null) {
+                this.mCachePolicy = cachePolicy;
+            }
+            return this;
+        }
+        
+        /**
+         * Enable the persistent write-behind queue of the mutation requests
+         * failed or issued while offline, default is disabled.
+         * 
+         * @param enabled
+         *            enable or not
+         * @return builder
+         * @see OutboundQueue
+         */
+        public Builder setOutboundQueueEnabled(boolean enabled) {
+            this.mOutboundQueueEnabled = enabled;
+            return this;
+        }
+        
         public VolleyConfig build() {
             return new VolleyConfig(this);
         }
@@ -15,8 +15,11 @@
  */
 package cn.ieclipse.af.volley;
 
+import java.io.File;
+
 import android.content.Context;
 
+import com.android.volley.Request;
 import com.android.volley.RequestQueue;
 import com.android.volley.toolbox.Volley;
 
@@ -30,6 +33,8 @@ public final class VolleyManager {
     private RequestQueue mQueue;
     private Context mContext;
     private VolleyConfig mConfig;
+    private ResponseMemoryCache mMemoryCache;
+    private OutboundQueue mOutboundQueue;
     private static VolleyManager mInstance;
     
     private VolleyManager(Context context, VolleyConfig config) {
@@ -44,6 +49,23 @@ public final class VolleyManager {
         }
         mConfig = config;
         mQueue = Volley.newRequestQueue(context, config.getHttpStack(), config.getMaxDiskCacheBytes());
+        // release the coalesced requests even volley finished it without delivering
+        mQueue.addRequestFinishedListener(new RequestQueue.RequestFinishedListener<IBaseResponse>() {
+            @Override
+            public void onRequestFinished(Request<IBaseResponse> request) {
+                if (request instanceof GsonRequest) {
+                    ((GsonRequest) request).notifyFinished();
+                }
+            }
+        });
+        if (config.getMemoryCacheBytes() > 0) {
+            mMemoryCache = new ResponseMemoryCache(config.getMemoryCacheBytes());
+        }
+        if (config.isOutboundQueueEnabled()) {
+            Context app = context.getApplicationContext();
+            mOutboundQueue = new OutboundQueue(app, new File(app.getFilesDir(), OutboundQueue.JOURNAL_NAME),
+                config.getHttpStack());
+        }
     }
     
     static VolleyManager getInstance() {
@@ -62,6 +84,25 @@ public final class VolleyManager {
         return mQueue;
     }
     
+    /**
+     * Get the parsed response memory cache.
+     * 
+     * @return memory cache or null if disabled
+     */
+    public ResponseMemoryCache getMemoryCache() {
+        return mMemoryCache;
+    }
+    
+    /**
+     * Get the write-behind queue of mutation requests.
+     * 
+     * @return outbound queue or null if disabled
+     * @see VolleyConfig.Builder#setOutboundQueueEnabled(boolean)
+     */
+    public static OutboundQueue getOutboundQueue() {
+        return getInstance().mOutboundQueue;
+    }
+    
     public static VolleyConfig getConfig() {
         return getInstance().mConfig;
     }
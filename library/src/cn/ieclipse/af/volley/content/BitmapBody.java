@@ -31,22 +31,49 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.util.LruCache;
 
 /**
  * Binary body part backed by a file.
+ * <p>
+ * The image larger than the limit threshold size is compressed on a bounded
+ * worker pool, call {@link #prepare()} to start it ahead, so multiple images
+ * are compressed in parallel. The image is decoded with sample size toward the
+ * target size and the JPEG quality is binary-searched. The compressed result
+ * is cached, retry doesn't compress again.
+ * </p>
  *
  * #@see org.apache.http.entity.mime.MultipartEntityBuilder
  *      
  * @since 4.0
  */
 public class BitmapBody extends FileBody {
+    private static final int POOL_SIZE = 2;
+    private static final int MIN_QUALITY = 20;
+    private static final int MAX_QUALITY = 100;
+    private static final int QUALITY_STEP = 5;
+    private static final int CACHE_SIZE = 4 << 20;
+    private static ExecutorService sExecutor;
+    private static final LruCache<String, byte[]> sCache = new LruCache<String, byte[]>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(String key, byte[] value) {
+            return value.length;
+        }
+    };
+    
     private long limitThresholdSize;
     private long scaleThresholdSize;
-    private boolean compressed;
-    private ByteArrayOutputStream bos;
+    private Future<byte[]> future;
     
     public BitmapBody(final File file) {
         this(file, "application/octet-stream",
@@ -68,13 +95,24 @@ public class BitmapBody extends FileBody {
         this(file, contentType, file.getName());
     }
     
-    public void writeTo(final OutputStream out) throws IOException {
-        if (!compressed) {
-            bos = compress(getFile(), limitThresholdSize);
-            compressed = true;
+    /**
+     * Start compressing in background if not started.
+     */
+    public synchronized void prepare() {
+        if (future == null) {
+            future = getExecutor().submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return getCompressed(getFile(), limitThresholdSize);
+                }
+            });
         }
-        if (bos != null) {
-            out.write(bos.toByteArray());
+    }
+    
+    public void writeTo(final OutputStream out) throws IOException {
+        byte[] data = getCompressed();
+        if (data != null) {
+            out.write(data);
         }
         else {
             super.writeTo(out);
@@ -83,12 +121,9 @@ public class BitmapBody extends FileBody {
     
     @Override
     public long getContentLength() {
-        if (!compressed) {
-            bos = compress(getFile(), limitThresholdSize);
-            compressed = true;
-        }
-        if (bos != null) {
-            return bos.size();
+        byte[] data = getCompressed();
+        if (data != null) {
+            return data.length;
         }
         return super.getContentLength();
     }
@@ -97,51 +132,101 @@ public class BitmapBody extends FileBody {
         this.limitThresholdSize = limitThresholdSize;
     }
     
-    protected static ByteArrayOutputStream compress(File src, long maxLength) {
+    /**
+     * @return compressed image or null if not compressed (the origin file is
+     *         used)
+     */
+    private byte[] getCompressed() {
+        prepare();
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // e.g. out of memory, upload the origin file
+        }
+        return null;
+    }
+    
+    private static synchronized ExecutorService getExecutor() {
+        if (sExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(POOL_SIZE,
+                    POOL_SIZE, 30, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+            executor.allowCoreThreadTimeOut(true);
+            sExecutor = executor;
+        }
+        return sExecutor;
+    }
+    
+    private static byte[] getCompressed(File src, long maxLength) {
+        String key = src.getAbsolutePath() + ':' + src.length() + ':'
+                + src.lastModified() + ':' + maxLength;
+        byte[] data = sCache.get(key);
+        if (data == null) {
+            data = compress(src, maxLength);
+            if (data != null) {
+                sCache.put(key, data);
+            }
+        }
+        return data;
+    }
+    
+    protected static byte[] compress(File src, long maxLength) {
         long length = src.length();
         if (length > maxLength) {
+            // decode bounds first, sample toward the target size
             BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(src.getAbsolutePath(), options);
+            if (options.outWidth <= 0 || options.outHeight <= 0) {
+                return null;
+            }
+            double scale = Math.sqrt((double) length / maxLength);
+            int sampleSize = 1;
+            while (sampleSize * 2 <= scale) {
+                sampleSize *= 2;
+            }
+            options.inSampleSize = sampleSize;
+            options.inJustDecodeBounds = false;
             Bitmap bitmap = BitmapFactory.decodeFile(src.getAbsolutePath(),
                     options);
-            // log(String.format("compressed size: %dx%d sample size : %d",
-            // options.outWidth, options.outHeight, options.inSampleSize));
-            
-            int quality = 100;
-            if (length > maxLength * 4) {
-                quality = 50;
+            if (bitmap == null) {
+                return null;
             }
-            ByteArrayOutputStream bos = compress(bitmap, quality, maxLength);
+            byte[] data = compress(bitmap, maxLength);
             bitmap.recycle();
-            // log(String.format("picture (%s) length is %s exceed the limit
-            // (%s)",
-            // src.getAbsolutePath(), length, maxLength));
-            //
-            // options.inJustDecodeBounds = true;
-            // BitmapFactory.decodeFile(src.getAbsolutePath(), options);
-            // int height = options.outHeight;
-            // int width = options.outWidth;
-            //
-            // // log(String.format("picture origin size is %sx%s", width,
-            // // height));
-            // double scale = Math.sqrt((float) length / maxLength);
-            // options.outHeight = (int) (height / scale);
-            // options.outWidth = (int) (width / scale);
-            // options.inSampleSize = (int) (scale + 0.5);
-            // options.inJustDecodeBounds = false;
-            return bos;
+            return data;
         }
         return null;
     }
     
-    protected static ByteArrayOutputStream compress(Bitmap bitmap, int quality,
-            long maxLength) {
+    /**
+     * Compress bitmap to JPEG with the max quality which size is not larger
+     * than max length, the min quality is used if it's always larger.
+     */
+    protected static byte[] compress(Bitmap bitmap, long maxLength) {
         ByteArrayOutputStream fos = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.JPEG, quality, fos);
-        while (fos.size() > maxLength && quality > 20) {
+        byte[] best = null;
+        int low = MIN_QUALITY / QUALITY_STEP;
+        int high = MAX_QUALITY / QUALITY_STEP;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            fos.reset();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, mid * QUALITY_STEP, fos);
+            if (fos.size() <= maxLength) {
+                best = fos.toByteArray();
+                low = mid + 1;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        if (best == null) {
             fos.reset();
-            quality = quality - 10;
-            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, fos);
+            bitmap.compress(Bitmap.CompressFormat.JPEG, MIN_QUALITY, fos);
+            best = fos.toByteArray();
         }
-        return fos;
+        return best;
     }
-}
\ No newline at end of file
+}
@@ -34,6 +34,8 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
  
+import cn.ieclipse.af.util.ByteArrayPool;
+ 
 /**
  * Binary body part backed by a file.
  *
@@ -43,8 +45,11 @@ import java.nio.charset.Charset;
  */
 public class FileBody extends AbstractContentBody {
  
+    public static final int DEFAULT_BUFFER_SIZE = 32 << 10;
+ 
     private final File file;
     private final String filename;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
  
  
     public FileBody(final File file) {
@@ -73,18 +78,30 @@ public class FileBody extends AbstractContentBody {
  
     public void writeTo(final OutputStream out) throws IOException {
         final InputStream in = new FileInputStream(this.file);
+        final byte[] tmp = ByteArrayPool.get().getBuf(bufferSize);
         try {
-            final byte[] tmp = new byte[4096];
             int l;
             while ((l = in.read(tmp)) != -1) {
                 out.write(tmp, 0, l);
             }
             out.flush();
         } finally {
+            ByteArrayPool.get().returnBuf(tmp);
             in.close();
         }
     }
  
+    /**
+     * Set the size of buffer used to copy the file to output stream.
+     *
+     * @param bufferSize buffer size in bytes
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize > 0) {
+            this.bufferSize = bufferSize;
+        }
+    }
+ 
     public String getTransferEncoding() {
         return ENC_BINARY;
     }
@@ -28,7 +28,6 @@ package cn.ieclipse.af.volley.content;
  
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.Reader;
@@ -72,12 +71,7 @@ public class StringBody extends AbstractContentBody {
     }
  
     public void writeTo(final OutputStream out) throws IOException {
-        final InputStream in = new ByteArrayInputStream(this.content);
-        final byte[] tmp = new byte[4096];
-        int l;
-        while ((l = in.read(tmp)) != -1) {
-            out.write(tmp, 0, l);
-        }
+        out.write(this.content);
         out.flush();
     }
  